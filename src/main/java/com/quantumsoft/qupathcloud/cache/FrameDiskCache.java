@@ -0,0 +1,332 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.cache;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent LRU cache of compressed frames on the local disk. DICOM Instances are immutable, so
+ * a cached frame never needs to be revalidated. Each frame is stored as a separate file in a
+ * Study/Series/Instance directory hierarchy. The LRU order survives restarts through file
+ * modification times. The index of cached frames is loaded in the background, until then frames
+ * are looked up on disk directly. I/O errors are logged and treated as cache misses.
+ */
+public class FrameDiskCache {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final String FRAME_FILE_EXTENSION = ".frame";
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+  private static final int CREATE_TEMP_FILE_ATTEMPTS = 3;
+  // file systems may store modification times in whole seconds
+  private static final long LEFTOVER_GRACE_MILLIS = 60_000;
+
+  private final Path directory;
+  private final long maxSizeInBytes;
+  private final LinkedHashMap<Path, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+  // frames removed while the index is loading, the walk may have seen them before
+  private final Set<Path> removedWhileLoading = new HashSet<>();
+  private long sizeInBytes;
+  private boolean indexLoaded;
+
+  /**
+   * Instantiates a new Frame disk cache.
+   *
+   * @param directory the cache directory
+   * @param maxSizeInBytes the maximum total size of cached frames
+   */
+  public FrameDiskCache(Path directory, long maxSizeInBytes) {
+    this.directory = directory;
+    this.maxSizeInBytes = maxSizeInBytes;
+    if (maxSizeInBytes > 0) {
+      // walking a full cache takes a while, tile requests mustn't wait for it
+      long loadStartMillis = System.currentTimeMillis();
+      IoExecutors.start(() -> loadIndex(loadStartMillis));
+    }
+  }
+
+  /**
+   * Gets a cached frame.
+   *
+   * @param studyUID the Study UID
+   * @param seriesUID the Series UID
+   * @param instanceUID the Instance UID
+   * @param frameNumber the frame number
+   * @return the compressed frame bytes or null if the frame is not cached
+   */
+  public ByteBuffer get(String studyUID, String seriesUID, String instanceUID, int frameNumber) {
+    if (maxSizeInBytes <= 0) {
+      return null;
+    }
+    Path frameFile = getFrameFile(studyUID, seriesUID, instanceUID, frameNumber);
+    synchronized (this) {
+      if (index.get(frameFile) == null && indexLoaded) {
+        return null;
+      }
+    }
+    try (FileChannel channel = FileChannel.open(frameFile, READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new IOException("Unexpected end of cached frame " + frameFile);
+        }
+      }
+      buffer.flip();
+      Files.setLastModifiedTime(frameFile, FileTime.fromMillis(System.currentTimeMillis()));
+      synchronized (this) {
+        if (!indexLoaded && !index.containsKey(frameFile)) {
+          // found before the index is loaded, the loaded index doesn't count it twice
+          index.put(frameFile, (long) buffer.remaining());
+          sizeInBytes += buffer.remaining();
+        }
+      }
+      return buffer;
+    } catch (NoSuchFileException e) {
+      remove(frameFile);
+      return null;
+    } catch (IOException e) {
+      LOGGER.warn("Failed to read cached frame " + frameFile, e);
+      remove(frameFile);
+      return null;
+    }
+  }
+
+  /**
+   * Puts a frame into the cache, evicting least recently used frames if the cache is full.
+   *
+   * @param studyUID the Study UID
+   * @param seriesUID the Series UID
+   * @param instanceUID the Instance UID
+   * @param frameNumber the frame number
+   * @param frame the compressed frame bytes
+   */
+  public void put(String studyUID, String seriesUID, String instanceUID, int frameNumber,
+      ByteBuffer frame) {
+    long frameSize = frame.remaining();
+    if (frameSize > maxSizeInBytes) {
+      return;
+    }
+    Path frameFile = getFrameFile(studyUID, seriesUID, instanceUID, frameNumber);
+    try {
+      // write to a temporary file first, so readers never see a partially written frame
+      Path tempFile = createTempFile(frameFile.getParent());
+      try (FileChannel channel = FileChannel.open(tempFile, WRITE)) {
+        ByteBuffer source = frame.duplicate();
+        while (source.hasRemaining()) {
+          channel.write(source);
+        }
+      }
+      Files.move(tempFile, frameFile, ATOMIC_MOVE, REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to cache frame " + frameFile, e);
+      return;
+    }
+
+    List<Path> evictedFiles = new ArrayList<>();
+    synchronized (this) {
+      Long previousSize = index.put(frameFile, frameSize);
+      sizeInBytes += frameSize - (previousSize == null ? 0 : previousSize);
+      evict(evictedFiles);
+    }
+    deleteEvictedFiles(evictedFiles);
+  }
+
+  /**
+   * Removes a frame from the cache, e.g. a frame that turned out not to decode.
+   *
+   * @param studyUID the Study UID
+   * @param seriesUID the Series UID
+   * @param instanceUID the Instance UID
+   * @param frameNumber the frame number
+   */
+  public void remove(String studyUID, String seriesUID, String instanceUID, int frameNumber) {
+    if (maxSizeInBytes <= 0) {
+      return;
+    }
+    Path frameFile = getFrameFile(studyUID, seriesUID, instanceUID, frameNumber);
+    remove(frameFile);
+    deleteEvictedFiles(Collections.singletonList(frameFile));
+  }
+
+  /**
+   * Gets the current total size of cached frames.
+   *
+   * @return the size in bytes
+   */
+  public synchronized long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /**
+   * Checks whether the index of cached frames is loaded. Until then the size only includes the
+   * frames used since the cache was created.
+   *
+   * @return true if the index is loaded
+   */
+  public synchronized boolean isIndexLoaded() {
+    return indexLoaded;
+  }
+
+  private Path getFrameFile(String studyUID, String seriesUID, String instanceUID,
+      int frameNumber) {
+    // UIDs consist of digits and dots only, so they are safe to use as file names
+    return directory.resolve(studyUID).resolve(seriesUID).resolve(instanceUID)
+        .resolve(frameNumber + FRAME_FILE_EXTENSION);
+  }
+
+  private synchronized void remove(Path frameFile) {
+    if (!indexLoaded) {
+      removedWhileLoading.add(frameFile);
+    }
+    Long size = index.remove(frameFile);
+    if (size != null) {
+      sizeInBytes -= size;
+    }
+  }
+
+  private Path createTempFile(Path instanceDirectory) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      Files.createDirectories(instanceDirectory);
+      try {
+        return Files.createTempFile(instanceDirectory, null, TEMP_FILE_SUFFIX);
+      } catch (NoSuchFileException e) {
+        // the directory was deleted by an eviction in between
+        if (attempt == CREATE_TEMP_FILE_ATTEMPTS) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private void evict(List<Path> evictedFiles) {
+    Iterator<Map.Entry<Path, Long>> iterator = index.entrySet().iterator();
+    while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+      Map.Entry<Path, Long> eldest = iterator.next();
+      sizeInBytes -= eldest.getValue();
+      evictedFiles.add(eldest.getKey());
+      if (!indexLoaded) {
+        removedWhileLoading.add(eldest.getKey());
+      }
+      iterator.remove();
+    }
+  }
+
+  private void deleteEvictedFiles(List<Path> evictedFiles) {
+    for (Path evictedFile : evictedFiles) {
+      try {
+        Files.deleteIfExists(evictedFile);
+        deleteEmptyDirectories(evictedFile.getParent());
+      } catch (IOException e) {
+        LOGGER.warn("Failed to evict cached frame " + evictedFile, e);
+      }
+    }
+  }
+
+  private void deleteEmptyDirectories(Path instanceDirectory) throws IOException {
+    // the Instance, Series and Study directories, as long as they are empty
+    for (Path current = instanceDirectory; current != null && !current.equals(directory);
+        current = current.getParent()) {
+      try {
+        Files.deleteIfExists(current);
+      } catch (DirectoryNotEmptyException e) {
+        return;
+      }
+    }
+  }
+
+  private void loadIndex(long loadStartMillis) {
+    if (Files.notExists(directory)) {
+      markIndexLoaded(new ArrayList<>());
+      return;
+    }
+    LOGGER.debug("Start loading frame cache index");
+    List<Map.Entry<Path, BasicFileAttributes>> entries = new ArrayList<>();
+    try {
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            throws IOException {
+          if (file.getFileName().toString().endsWith(FRAME_FILE_EXTENSION)) {
+            entries.add(Map.entry(file, attributes));
+          } else if (attributes.lastModifiedTime().toMillis()
+              < loadStartMillis - LEFTOVER_GRACE_MILLIS) {
+            // leftovers of writes interrupted by a crash, newer ones are being written now
+            Files.deleteIfExists(file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          // evicted while the index is loaded
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      LOGGER.warn("Failed to load frame cache index", e);
+    }
+    entries.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+    markIndexLoaded(entries);
+    LOGGER.debug("Finish loading frame cache index");
+  }
+
+  private void markIndexLoaded(List<Map.Entry<Path, BasicFileAttributes>> entries) {
+    List<Path> evictedFiles = new ArrayList<>();
+    synchronized (this) {
+      // frames used while the index was loading are more recent than the loaded ones
+      LinkedHashMap<Path, Long> usedFrames = new LinkedHashMap<>(index);
+      index.clear();
+      for (Map.Entry<Path, BasicFileAttributes> entry : entries) {
+        if (!usedFrames.containsKey(entry.getKey())
+            && !removedWhileLoading.contains(entry.getKey())) {
+          index.put(entry.getKey(), entry.getValue().size());
+          sizeInBytes += entry.getValue().size();
+        }
+      }
+      index.putAll(usedFrames);
+      removedWhileLoading.clear();
+      indexLoaded = true;
+      evict(evictedFiles);
+    }
+    deleteEvictedFiles(evictedFiles);
+  }
+}
@@ -0,0 +1,167 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.cache;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory LRU cache of decoded tiles bounded by the total size of tile pixel data. Cached
+ * images are shared between callers and must be treated as read-only.
+ */
+public class TileCache {
+
+  private final long maxSizeInBytes;
+  private final LinkedHashMap<TileKey, BufferedImage> tiles = new LinkedHashMap<>(16, 0.75f, true);
+  private long sizeInBytes;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+
+  /**
+   * Instantiates a new Tile cache.
+   *
+   * @param maxSizeInBytes the maximum total size of cached tiles
+   */
+  public TileCache(long maxSizeInBytes) {
+    this.maxSizeInBytes = maxSizeInBytes;
+  }
+
+  /**
+   * Gets a cached tile and marks it as most recently used.
+   *
+   * @param key the tile key
+   * @return the tile or null if the tile is not cached
+   */
+  public synchronized BufferedImage get(TileKey key) {
+    BufferedImage tile = tiles.get(key);
+    if (tile == null) {
+      missCount.increment();
+    } else {
+      hitCount.increment();
+    }
+    return tile;
+  }
+
+  /**
+   * Checks whether a tile is cached without affecting its recency or the hit/miss counters.
+   *
+   * @param key the tile key
+   * @return true if the tile is cached
+   */
+  public synchronized boolean contains(TileKey key) {
+    return tiles.containsKey(key);
+  }
+
+  /**
+   * Puts a tile into the cache, evicting least recently used tiles if the cache is full. Tiles
+   * larger than the whole cache are not stored.
+   *
+   * @param key the tile key
+   * @param tile the tile
+   */
+  public synchronized void put(TileKey key, BufferedImage tile) {
+    long tileSize = getSizeInBytes(tile);
+    if (tileSize > maxSizeInBytes) {
+      return;
+    }
+    BufferedImage previous = tiles.put(key, tile);
+    if (previous != null) {
+      sizeInBytes -= getSizeInBytes(previous);
+    }
+    sizeInBytes += tileSize;
+
+    Iterator<Map.Entry<TileKey, BufferedImage>> iterator = tiles.entrySet().iterator();
+    while (sizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+      Map.Entry<TileKey, BufferedImage> eldest = iterator.next();
+      sizeInBytes -= getSizeInBytes(eldest.getValue());
+      iterator.remove();
+      evictionCount.increment();
+    }
+  }
+
+  /**
+   * Removes all tiles from the cache.
+   */
+  public synchronized void clear() {
+    tiles.clear();
+    sizeInBytes = 0;
+  }
+
+  /**
+   * Gets the current total size of cached tiles.
+   *
+   * @return the size in bytes
+   */
+  public synchronized long getSizeInBytes() {
+    return sizeInBytes;
+  }
+
+  /**
+   * Gets the maximum total size of cached tiles.
+   *
+   * @return the maximum size in bytes
+   */
+  public long getMaxSizeInBytes() {
+    return maxSizeInBytes;
+  }
+
+  /**
+   * Gets hit count.
+   *
+   * @return the hit count
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * Gets miss count.
+   *
+   * @return the miss count
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * Gets eviction count.
+   *
+   * @return the eviction count
+   */
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "TileCache{size=" + getSizeInBytes() + "/" + maxSizeInBytes
+        + ", hits=" + getHitCount()
+        + ", misses=" + getMissCount()
+        + ", evictions=" + getEvictionCount() + "}";
+  }
+
+  private static long getSizeInBytes(BufferedImage tile) {
+    DataBuffer dataBuffer = tile.getRaster().getDataBuffer();
+    long elementSize = DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / Byte.SIZE;
+    return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * elementSize;
+  }
+}
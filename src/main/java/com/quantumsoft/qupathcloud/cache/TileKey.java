@@ -0,0 +1,92 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.cache;
+
+import java.util.Objects;
+
+/**
+ * TileKey identifies a single frame of a whole-slide image Instance.
+ */
+public final class TileKey {
+
+  private final String seriesUID;
+  private final String instanceUID;
+  private final int frameIndex;
+
+  /**
+   * Instantiates a new Tile key.
+   *
+   * @param seriesUID the Series UID
+   * @param instanceUID the Instance UID
+   * @param frameIndex the frame index
+   */
+  public TileKey(String seriesUID, String instanceUID, int frameIndex) {
+    this.seriesUID = seriesUID;
+    this.instanceUID = instanceUID;
+    this.frameIndex = frameIndex;
+  }
+
+  /**
+   * Gets Series UID.
+   *
+   * @return the Series UID
+   */
+  public String getSeriesUID() {
+    return seriesUID;
+  }
+
+  /**
+   * Gets Instance UID.
+   *
+   * @return the Instance UID
+   */
+  public String getInstanceUID() {
+    return instanceUID;
+  }
+
+  /**
+   * Gets frame index.
+   *
+   * @return the frame index
+   */
+  public int getFrameIndex() {
+    return frameIndex;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    TileKey tileKey = (TileKey) o;
+    return frameIndex == tileKey.frameIndex &&
+        Objects.equals(seriesUID, tileKey.seriesUID) &&
+        Objects.equals(instanceUID, tileKey.instanceUID);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(seriesUID, instanceUID, frameIndex);
+  }
+
+  @Override
+  public String toString() {
+    return seriesUID + "/" + instanceUID + "/" + frameIndex;
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.concurrent;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Executors for blocking Healthcare API calls. With -DquPathCloud.virtualThreads=true and a Java
+ * runtime that has virtual threads, every task runs on its own virtual thread and the number of
+ * calls in flight is limited by the semaphores of {@link OperationType} instead of pool sizes.
+ * Otherwise the tasks run on platform threads as before.
+ */
+public final class IoExecutors {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final String VIRTUAL_THREADS_PROPERTY = "quPathCloud.virtualThreads";
+  private static final String NEW_VIRTUAL_THREAD_EXECUTOR_METHOD =
+      "newVirtualThreadPerTaskExecutor";
+  // shared by background tasks, a virtual thread per task executor needs no shutdown
+  private static final ExecutorService VIRTUAL_THREAD_EXECUTOR =
+      Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY) ? createVirtualThreadExecutor() : null;
+  private static final ThreadFactory BACKGROUND_THREAD_FACTORY =
+      createThreadFactory("cloud-background");
+
+  private IoExecutors() {
+  }
+
+  /**
+   * Checks whether blocking calls run on virtual threads.
+   *
+   * @return true if virtual threads are enabled and available
+   */
+  public static boolean isVirtualThreads() {
+    return VIRTUAL_THREAD_EXECUTOR != null;
+  }
+
+  /**
+   * Creates an executor running at most the given number of tasks at once. With virtual threads
+   * the number isn't limited by the executor.
+   *
+   * @param threadName the name of platform threads
+   * @param maxThreads the number of platform threads
+   * @return the executor
+   */
+  public static ExecutorService newExecutor(String threadName, int maxThreads) {
+    if (isVirtualThreads()) {
+      return createVirtualThreadExecutor();
+    }
+    return Executors.newFixedThreadPool(maxThreads, createThreadFactory(threadName));
+  }
+
+  /**
+   * Creates an executor starting every task at once, for callers limiting concurrency
+   * themselves.
+   *
+   * @param threadName the name of platform threads
+   * @return the executor
+   */
+  public static ExecutorService newExecutor(String threadName) {
+    if (isVirtualThreads()) {
+      return createVirtualThreadExecutor();
+    }
+    return Executors.newCachedThreadPool(createThreadFactory(threadName));
+  }
+
+  /**
+   * Starts a background task, such as loading data for the GUI. The task runs on a daemon thread,
+   * a virtual one if virtual threads are enabled, so it doesn't keep QuPath from exiting.
+   *
+   * @param task the task
+   */
+  public static void start(Runnable task) {
+    if (isVirtualThreads()) {
+      VIRTUAL_THREAD_EXECUTOR.execute(task);
+    } else {
+      BACKGROUND_THREAD_FACTORY.newThread(task).start();
+    }
+  }
+
+  private static ThreadFactory createThreadFactory(String threadName) {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, threadName + "-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static ExecutorService createVirtualThreadExecutor() {
+    // the extension targets Java 11, so virtual threads are only reachable through reflection
+    try {
+      return (ExecutorService) Executors.class.getMethod(NEW_VIRTUAL_THREAD_EXECUTOR_METHOD)
+          .invoke(null);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      LOGGER.warn("Virtual threads are not available in this Java runtime, "
+          + "using platform threads", e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Type of blocking Healthcare API operations run concurrently. Each type has its own limit of
+ * operations in flight, shared by the whole process.
+ */
+public enum OperationType {
+  UPLOAD("quPathCloud.maxConcurrentUploads", "cloud-upload"),
+  DOWNLOAD("quPathCloud.maxConcurrentDownloads", "cloud-download"),
+  DELETE("quPathCloud.maxConcurrentDeletes", "cloud-delete");
+
+  private static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+  private final String threadName;
+  private final int maxConcurrency;
+  private final Semaphore semaphore;
+
+  OperationType(String maxConcurrencyProperty, String threadName) {
+    this.threadName = threadName;
+    this.maxConcurrency = Math.max(1, Integer.getInteger(maxConcurrencyProperty,
+        DEFAULT_MAX_CONCURRENCY));
+    this.semaphore = new Semaphore(maxConcurrency, true);
+  }
+
+  /**
+   * Gets the maximum number of operations in flight.
+   *
+   * @return the maximum concurrency
+   */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Creates an executor for operations of this type. Tasks submitted to it must be wrapped with
+   * {@link #limit(Callable)}.
+   *
+   * @return the executor
+   */
+  public ExecutorService newExecutor() {
+    return IoExecutors.newExecutor(threadName, maxConcurrency);
+  }
+
+  /**
+   * Wraps an operation, so it waits for a free slot of this type before running.
+   *
+   * @param operation the operation
+   * @param <V> the type of the result
+   * @return the limited operation
+   */
+  public <V> Callable<V> limit(Callable<V> operation) {
+    return () -> {
+      semaphore.acquire();
+      try {
+        return operation.call();
+      } finally {
+        semaphore.release();
+      }
+    };
+  }
+}
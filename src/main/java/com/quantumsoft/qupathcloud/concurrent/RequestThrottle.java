@@ -0,0 +1,309 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Client-side throttle of all Healthcare API requests of the process, so the per-project quotas
+ * are hit less often. A token bucket caps the request rate (-DquPathCloud.maxRequestsPerSecond,
+ * 0 disables it), and an AIMD controller adapts the number of requests in flight: it's halved on
+ * 429 and 503 responses, cut by a tenth when the smoothed latency grows to twice the best seen,
+ * and grows by one per limit of healthy responses, between 1 and
+ * -DquPathCloud.maxRequestConcurrency.
+ */
+public final class RequestThrottle {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int SERVICE_UNAVAILABLE = 503;
+  private static final double THROTTLED_DECREASE = 0.5;
+  private static final double LATENCY_DECREASE = 0.9;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final double LATENCY_SMOOTHING = 0.1;
+  // the baseline creeps towards recent latencies, so a slower network isn't taken for overload
+  private static final double BASELINE_DRIFT = 0.01;
+  private static final long MIN_BASELINE_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final RequestThrottle INSTANCE = new RequestThrottle(
+      Double.parseDouble(System.getProperty("quPathCloud.maxRequestsPerSecond", "100")),
+      Math.max(1, Integer.getInteger("quPathCloud.initialRequestConcurrency", 16)),
+      Math.max(1, Integer.getInteger("quPathCloud.maxRequestConcurrency", 64)));
+
+  private final double requestsPerSecond;
+  private final int maxConcurrency;
+  private final Deque<CompletableFuture<Permit>> waiters = new ArrayDeque<>();
+  private final LongAdder throttledCount = new LongAdder();
+  private final LongAdder delayedCount = new LongAdder();
+  private final LongAdder decreaseCount = new LongAdder();
+  private double storedTokens;
+  private long lastRefillNanos = System.nanoTime();
+  private double concurrencyLimit;
+  private int inFlight;
+  private long lastDecreaseNanos = System.nanoTime();
+  private double baselineLatencyNanos = Double.NaN;
+  private double smoothedLatencyNanos = Double.NaN;
+
+  /**
+   * Instantiates a new request throttle.
+   *
+   * @param requestsPerSecond the maximum request rate, 0 or less for no limit
+   * @param initialConcurrency the initial number of requests in flight
+   * @param maxConcurrency the maximum number of requests in flight
+   */
+  RequestThrottle(double requestsPerSecond, int initialConcurrency, int maxConcurrency) {
+    this.requestsPerSecond = requestsPerSecond;
+    this.maxConcurrency = maxConcurrency;
+    this.concurrencyLimit = Math.min(initialConcurrency, maxConcurrency);
+    // a second worth of requests may burst
+    this.storedTokens = Math.max(1, requestsPerSecond);
+  }
+
+  /**
+   * Gets the throttle shared by the whole process.
+   *
+   * @return the throttle
+   */
+  public static RequestThrottle getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Waits for a permit to send a request.
+   *
+   * @return the permit, which must be released once the response headers arrived
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public Permit acquire() throws InterruptedException {
+    CompletableFuture<Permit> future = acquireAsync();
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      if (!future.cancel(false)) {
+        future.join().release(-1, false);
+      }
+      throw e;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Gets a permit to send a request without blocking a thread. Cancelling the future gives up
+   * the wait.
+   *
+   * @return the future of the permit, which must be released once the response headers arrived
+   */
+  public CompletableFuture<Permit> acquireAsync() {
+    CompletableFuture<Permit> waiter = new CompletableFuture<>();
+    long delayNanos = reserveToken();
+    if (delayNanos > 0) {
+      delayedCount.increment();
+      CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS)
+          .execute(() -> enqueue(waiter));
+    } else {
+      enqueue(waiter);
+    }
+    return waiter;
+  }
+
+  /**
+   * Gets the current limit of requests in flight.
+   *
+   * @return the concurrency limit
+   */
+  public synchronized int getConcurrencyLimit() {
+    return (int) concurrencyLimit;
+  }
+
+  /**
+   * Gets the number of requests in flight.
+   *
+   * @return the number of requests in flight
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Gets the maximum request rate.
+   *
+   * @return the requests per second, 0 or less for no limit
+   */
+  public double getRequestsPerSecond() {
+    return requestsPerSecond;
+  }
+
+  /**
+   * Gets the number of responses with a 429 or 503 status.
+   *
+   * @return the throttled count
+   */
+  public long getThrottledCount() {
+    return throttledCount.sum();
+  }
+
+  /**
+   * Gets the number of requests delayed by the rate limit.
+   *
+   * @return the delayed count
+   */
+  public long getDelayedCount() {
+    return delayedCount.sum();
+  }
+
+  /**
+   * Gets the number of times the concurrency limit was decreased.
+   *
+   * @return the decrease count
+   */
+  public long getDecreaseCount() {
+    return decreaseCount.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "RequestThrottle{limit=" + getConcurrencyLimit() + "/" + maxConcurrency
+        + ", inFlight=" + getInFlight()
+        + ", requestsPerSecond=" + requestsPerSecond
+        + ", throttled=" + getThrottledCount()
+        + ", delayed=" + getDelayedCount()
+        + ", decreases=" + getDecreaseCount() + "}";
+  }
+
+  // takes a token, going into debt if there is none, and returns how long to wait for it
+  private synchronized long reserveToken() {
+    if (requestsPerSecond <= 0) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    storedTokens = Math.min(Math.max(1, requestsPerSecond),
+        storedTokens + (now - lastRefillNanos) * requestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+    lastRefillNanos = now;
+    storedTokens -= 1;
+    return storedTokens >= 0
+        ? 0 : (long) (-storedTokens / requestsPerSecond * TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private void enqueue(CompletableFuture<Permit> waiter) {
+    synchronized (this) {
+      waiters.addLast(waiter);
+    }
+    dispatch();
+  }
+
+  // hands free slots to the waiters in arrival order, skipping cancelled ones
+  private void dispatch() {
+    while (true) {
+      CompletableFuture<Permit> waiter;
+      Permit permit;
+      synchronized (this) {
+        if (inFlight >= (int) concurrencyLimit || waiters.isEmpty()) {
+          return;
+        }
+        waiter = waiters.pollFirst();
+        if (waiter.isDone()) {
+          continue;
+        }
+        inFlight++;
+        permit = new Permit(System.nanoTime());
+      }
+      if (!waiter.complete(permit)) {
+        synchronized (this) {
+          inFlight--;
+        }
+      }
+    }
+  }
+
+  private void release(Permit permit, int statusCode, boolean withRequestBody) {
+    long latencyNanos = System.nanoTime() - permit.acquiredNanos;
+    synchronized (this) {
+      inFlight--;
+      if (statusCode == TOO_MANY_REQUESTS || statusCode == SERVICE_UNAVAILABLE) {
+        throttledCount.increment();
+        decrease(permit, THROTTLED_DECREASE);
+      } else if (statusCode > 0 && statusCode < 500) {
+        // the latency of a request with a body includes its upload, so it's not comparable
+        if (!withRequestBody && isLatencyGrowing(latencyNanos)) {
+          decrease(permit, LATENCY_DECREASE);
+        } else {
+          concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+        }
+      }
+    }
+    dispatch();
+  }
+
+  private boolean isLatencyGrowing(long latencyNanos) {
+    if (Double.isNaN(baselineLatencyNanos)) {
+      baselineLatencyNanos = Math.max(MIN_BASELINE_LATENCY_NANOS, latencyNanos);
+      smoothedLatencyNanos = latencyNanos;
+      return false;
+    }
+    smoothedLatencyNanos += (latencyNanos - smoothedLatencyNanos) * LATENCY_SMOOTHING;
+    if (latencyNanos < baselineLatencyNanos) {
+      baselineLatencyNanos = Math.max(MIN_BASELINE_LATENCY_NANOS, latencyNanos);
+    } else {
+      baselineLatencyNanos += (smoothedLatencyNanos - baselineLatencyNanos) * BASELINE_DRIFT;
+    }
+    return smoothedLatencyNanos > LATENCY_TOLERANCE * baselineLatencyNanos;
+  }
+
+  // responses to requests sent before the last decrease already reflect it
+  private void decrease(Permit permit, double factor) {
+    if (permit.acquiredNanos - lastDecreaseNanos <= 0) {
+      return;
+    }
+    lastDecreaseNanos = System.nanoTime();
+    concurrencyLimit = Math.max(1, concurrencyLimit * factor);
+    decreaseCount.increment();
+    LOGGER.debug("Request concurrency limit decreased to {}", (int) concurrencyLimit);
+  }
+
+  /**
+   * Permit of one request in flight.
+   */
+  public final class Permit {
+
+    private final long acquiredNanos;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(long acquiredNanos) {
+      this.acquiredNanos = acquiredNanos;
+    }
+
+    /**
+     * Releases the permit and feeds the response into the concurrency controller. Releasing it
+     * again has no effect.
+     *
+     * @param statusCode the response status or -1 if no response arrived
+     * @param withRequestBody true if the request uploaded a body
+     */
+    public void release(int statusCode, boolean withRequestBody) {
+      if (released.compareAndSet(false, true)) {
+        RequestThrottle.this.release(this, statusCode, withRequestBody);
+      }
+    }
+  }
+}
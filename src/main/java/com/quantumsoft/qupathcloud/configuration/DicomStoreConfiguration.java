@@ -18,6 +18,7 @@ package com.quantumsoft.qupathcloud.configuration;
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quantumsoft.qupathcloud.dao.JsonCodec;
 import com.quantumsoft.qupathcloud.entities.DicomStore;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import java.io.IOException;
@@ -44,7 +45,7 @@ public class DicomStoreConfiguration {
    */
   public DicomStoreConfiguration(Path projectDirectory) {
     configurationFileInProjectDirectory = projectDirectory.resolve(configurationFileName);
-    mapper = new ObjectMapper();
+    mapper = JsonCodec.getMapper();
   }
 
   /**
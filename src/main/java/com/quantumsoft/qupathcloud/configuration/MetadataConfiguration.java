@@ -17,9 +17,13 @@ package com.quantumsoft.qupathcloud.configuration;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quantumsoft.qupathcloud.dao.JsonCodec;
 import com.quantumsoft.qupathcloud.entities.Series;
 import com.quantumsoft.qupathcloud.entities.instance.Instance;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import com.quantumsoft.qupathcloud.pyramid.Pyramid;
+import com.quantumsoft.qupathcloud.pyramid.PyramidIndexFile;
+import com.quantumsoft.qupathcloud.pyramid.PyramidInstance;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -34,6 +38,7 @@ import org.apache.logging.log4j.Logger;
 public class MetadataConfiguration {
 
   public static final String METADATA_FILE_EXTENSION = "mtd";
+  public static final String PYRAMID_INDEX_FILE_EXTENSION = "pyr";
   private static final Logger LOGGER = LogManager.getLogger();
   private static final Path PROJECT_METADATA_INDEX_FILE = Paths.get("project.mtdp");
   private Path metadataDirectory;
@@ -48,33 +53,60 @@ public class MetadataConfiguration {
   public MetadataConfiguration(Path metadataDirectory) {
     this.metadataDirectory = metadataDirectory;
     projectMetadataIndexFile = metadataDirectory.resolve(PROJECT_METADATA_INDEX_FILE);
-    mapper = new ObjectMapper();
+    mapper = JsonCodec.getMapper();
   }
 
   /**
-   * Saves the current image metadata file.
+   * Checks whether a file extension is one of the image metadata files opened by the Cloud image
+   * server.
+   *
+   * @param extension the file extension
+   * @return true for pyramid index files and legacy JSON metadata files
+   */
+  public static boolean isMetadataFileExtension(String extension) {
+    return extension.equals(PYRAMID_INDEX_FILE_EXTENSION)
+        || extension.equals(METADATA_FILE_EXTENSION);
+  }
+
+  /**
+   * Gets the pyramid index file of an image metadata file.
+   *
+   * @param metadataFile the pyramid index file or a legacy JSON metadata file
+   * @return the pyramid index file
+   */
+  public static Path getPyramidIndexFile(Path metadataFile) {
+    String fileName = metadataFile.getFileName().toString();
+    String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+    return metadataFile.resolveSibling(baseName + "." + PYRAMID_INDEX_FILE_EXTENSION);
+  }
+
+  /**
+   * Saves the current image metadata as a pyramid index file. A legacy JSON metadata file of the
+   * series is removed, so it can't shadow the new index.
    *
    * @param series the series
    * @param instancesInSeries the instances in series
-   * @return path to the saved metadata file
-   * @throws QuPathCloudException if IOException occurs
+   * @return path to the saved pyramid index file
+   * @throws QuPathCloudException if the instances don't form a valid pyramid or IOException
+   * occurs
    */
-  public Path saveMetadataFile(Series series, List<Instance> instancesInSeries)
+  public Path saveMetadataFile(Series series, List<PyramidInstance> instancesInSeries)
       throws QuPathCloudException {
     String seriesId = series.getSeriesInstanceUID().getValue1();
-    Path metadataFile = Paths.get(seriesId + "." + METADATA_FILE_EXTENSION);
-    Path pathToMetadataFile = metadataDirectory.resolve(metadataFile);
+    Path pathToIndexFile =
+        metadataDirectory.resolve(seriesId + "." + PYRAMID_INDEX_FILE_EXTENSION);
+    LOGGER.debug("Start saving metadata file");
+    PyramidIndexFile.write(Pyramid.create(instancesInSeries, false), pathToIndexFile);
     try {
-      LOGGER.debug("Start saving metadata file");
-      mapper.writeValue(pathToMetadataFile.toFile(), instancesInSeries);
-      return pathToMetadataFile;
+      Files.deleteIfExists(metadataDirectory.resolve(seriesId + "." + METADATA_FILE_EXTENSION));
     } catch (IOException e) {
       throw new QuPathCloudException(e);
     }
+    return pathToIndexFile;
   }
 
   /**
-   * Reads the current image metadata file.
+   * Reads a legacy JSON image metadata file.
    *
    * @param metadataFile the metadata file
    * @return list of instances of the current image
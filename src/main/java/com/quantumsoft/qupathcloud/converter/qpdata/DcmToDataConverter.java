@@ -16,12 +16,20 @@
 package com.quantumsoft.qupathcloud.converter.qpdata;
 
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.io.DicomInputHandler;
 import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.util.StreamUtils;
 
 /**
  * DcmToDataConverter converts DICOM files with Qpdata data (which contains user-generated
@@ -29,6 +37,9 @@ import org.dcm4che3.io.DicomInputStream;
  */
 public class DcmToDataConverter {
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final String QPDATA_NOT_FOUND = "DICOM file has no Qpdata data";
+
   private final Path inputFile;
   private final Path outputFile;
 
@@ -49,15 +60,107 @@ public class DcmToDataConverter {
    * @throws QuPathCloudException if IOException occurs
    */
   public void convertDcmToQuPathData() throws QuPathCloudException {
-    try (DicomInputStream dis = new DicomInputStream(inputFile.toFile())) {
-      Attributes attrs = dis.readDataset(-1, -1);
-      byte[] qpdataBytes = (byte[]) ((Fragments) attrs.getValue(DataToDcmConverter.QPDATA_TAG))
-          .get(0);
-      try (FileOutputStream fos = new FileOutputStream(outputFile.toFile(), false)) {
-        fos.write(qpdataBytes, 0, qpdataBytes.length);
+    try (InputStream inputStream = Files.newInputStream(inputFile)) {
+      convertDcmToQuPathData(inputStream, outputFile);
+    } catch (IOException e) {
+      throw new QuPathCloudException(e);
+    }
+  }
+
+  /**
+   * Converts a DICOM stream to Qpdata as it is read, for example while it is downloaded. The
+   * Qpdata data is copied from the stream to the output file without holding it in memory. It is
+   * written to a temporary file next to the output file first and then moved over it, so the
+   * output file is never left half written.
+   *
+   * @param dicomStream the DICOM stream, not closed
+   * @param outputFile the output file
+   * @throws QuPathCloudException if IOException occurs or the DICOM has no Qpdata data
+   */
+  public static void convertDcmToQuPathData(InputStream dicomStream, Path outputFile)
+      throws QuPathCloudException {
+    Path tempFile = null;
+    try {
+      tempFile = Files.createTempFile(outputFile.toAbsolutePath().getParent(),
+          outputFile.getFileName().toString(), null);
+      QpdataHandler handler;
+      try (OutputStream outputStream =
+          new BufferedOutputStream(Files.newOutputStream(tempFile), BUFFER_SIZE)) {
+        // the DicomInputStream isn't closed, that would close the caller's stream
+        DicomInputStream dis =
+            new DicomInputStream(new BufferedInputStream(dicomStream, BUFFER_SIZE));
+        handler = new QpdataHandler(outputStream);
+        dis.setDicomInputHandler(handler);
+        dis.readDataset(-1, -1);
+      }
+      if (!handler.written) {
+        throw new QuPathCloudException(QPDATA_NOT_FOUND);
       }
+      Files.move(tempFile, outputFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
     } catch (IOException e) {
+      deleteTempFile(tempFile);
       throw new QuPathCloudException(e);
+    } catch (QuPathCloudException e) {
+      deleteTempFile(tempFile);
+      throw e;
+    }
+  }
+
+  private static void deleteTempFile(Path tempFile) {
+    if (tempFile == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(tempFile);
+    } catch (IOException e) {
+      // the next conversion creates a new temporary file, a leftover one is harmless
+    }
+  }
+
+  /**
+   * Handler copying the first fragment of the Qpdata tag to an output stream instead of reading
+   * it into the dataset. Everything else is read as usual.
+   */
+  private static class QpdataHandler implements DicomInputHandler {
+
+    private final OutputStream outputStream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private boolean written;
+
+    QpdataHandler(OutputStream outputStream) {
+      this.outputStream = outputStream;
+    }
+
+    @Override
+    public void readValue(DicomInputStream dis, Attributes attrs) throws IOException {
+      dis.readValue(dis, attrs);
+    }
+
+    @Override
+    public void readValue(DicomInputStream dis, Sequence seq) throws IOException {
+      dis.readValue(dis, seq);
+    }
+
+    @Override
+    public void readValue(DicomInputStream dis, Fragments frags) throws IOException {
+      if (frags.tag() != DataToDcmConverter.QPDATA_TAG || written) {
+        dis.readValue(dis, frags);
+        return;
+      }
+      // copied with the pad byte, as the in-memory conversion did
+      StreamUtils.copy(dis, outputStream, dis.length(), buffer);
+      written = true;
+    }
+
+    @Override
+    public void startDataset(DicomInputStream dis) throws IOException {
+      dis.startDataset(dis);
+    }
+
+    @Override
+    public void endDataset(DicomInputStream dis) throws IOException {
+      dis.endDataset(dis);
     }
   }
 }
@@ -0,0 +1,352 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static com.quantumsoft.qupathcloud.dao.Constants.APPLICATION_JSON_CHARSET_UTF8;
+import static com.quantumsoft.qupathcloud.dao.Constants.BEARER;
+import static com.quantumsoft.qupathcloud.dao.Constants.HEALTHCARE_HOST;
+import static com.quantumsoft.qupathcloud.dao.Constants.MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX;
+import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_BOUNDARY;
+import static com.quantumsoft.qupathcloud.dao.Constants.SCHEME;
+import static org.apache.http.HttpHeaders.ACCEPT;
+import static org.apache.http.HttpHeaders.AUTHORIZATION;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.RETRY_AFTER;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.api.client.http.HttpStatusCodes;
+import com.quantumsoft.qupathcloud.cache.FrameDiskCache;
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
+import com.quantumsoft.qupathcloud.concurrent.RequestThrottle;
+import com.quantumsoft.qupathcloud.dao.spec.QueryBuilder;
+import com.quantumsoft.qupathcloud.entities.instance.Instance;
+import com.quantumsoft.qupathcloud.exception.HttpStatusException;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Asynchronous variant of the Cloud dao for frame retrieval, Instance search and upload.
+ * Retrieval and search requests are sent with the non-blocking Java HTTP client and responses are
+ * received in full before they are handled, so no thread waits for them. Uploads are not
+ * non-blocking: each one runs the blocking STOW-RS requests of the Cloud dao and holds a
+ * background thread until it's done. At most -DquPathCloud.maxConcurrentImageUploads (2 by
+ * default) uploads run at once, later ones wait for a thread. The returned futures complete
+ * exceptionally with a {@link QuPathCloudException} on errors, and cancelling a future aborts its
+ * requests. Every retrieval and search request has a timeout (-DquPathCloud.requestTimeoutSeconds,
+ * 60 by default); callers can compose shorter ones with {@link CompletableFuture#orTimeout}.
+ */
+public class AsyncCloudDao {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final String REQUEST_TIMEOUT_SECONDS_PROPERTY =
+      "quPathCloud.requestTimeoutSeconds";
+  private static final int DEFAULT_REQUEST_TIMEOUT_SECONDS = 60;
+
+  // an upload holds its thread until all its files are sent, so the number of threads is bounded
+  private static final ExecutorService UPLOAD_EXECUTOR = IoExecutors.newExecutor("cloud-upload",
+      Math.max(1, Integer.getInteger("quPathCloud.maxConcurrentImageUploads", 2)));
+
+  private final OAuth20 oAuth20;
+  private final FrameDiskCache frameDiskCache;
+  private final StowUploader stowUploader;
+  private final HttpClient httpClient;
+  private final Duration requestTimeout;
+
+  /**
+   * Instantiates a new Async cloud dao uploading through the uploader of a Cloud dao, so it
+   * shares that dao's pooled HTTP client. Use {@link CloudDao#getAsyncCloudDao} to get one.
+   *
+   * @param oAuth20 the oAuth20
+   * @param frameDiskCache the persistent frame cache or null if frames are not cached
+   * @param stowUploader the uploader shared with the blocking Cloud dao
+   */
+  AsyncCloudDao(OAuth20 oAuth20, FrameDiskCache frameDiskCache, StowUploader stowUploader) {
+    this.oAuth20 = oAuth20;
+    this.frameDiskCache = frameDiskCache;
+    this.stowUploader = stowUploader;
+    this.httpClient = HttpClient.newBuilder()
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+    this.requestTimeout = Duration.ofSeconds(
+        Integer.getInteger(REQUEST_TIMEOUT_SECONDS_PROPERTY, DEFAULT_REQUEST_TIMEOUT_SECONDS));
+  }
+
+  /**
+   * Gets frame.
+   *
+   * @param queryBuilder the query builder
+   * @return the future of the frame
+   */
+  public CompletableFuture<BufferedImage> getFrameAsync(QueryBuilder queryBuilder) {
+    QueryBuilder frameQuery = new QueryBuilder(queryBuilder)
+        .setFrameNumbers(new int[]{queryBuilder.getFrameNumber()});
+    return getFramesAsync(frameQuery).thenApply(frames -> frames.get(0));
+  }
+
+  /**
+   * Gets several frames of one Instance in a single request.
+   *
+   * @param queryBuilder the query builder with frame numbers
+   * @return the future of the frames in the order of the requested frame numbers
+   */
+  public CompletableFuture<List<BufferedImage>> getFramesAsync(QueryBuilder queryBuilder) {
+    if (frameDiskCache == null) {
+      return retrieveFramesAsync(queryBuilder,
+          new BufferedImage[queryBuilder.getFrameNumbers().length]);
+    }
+    // cached frames are read and decoded off the calling thread
+    AtomicReference<CompletableFuture<List<BufferedImage>>> retrieval = new AtomicReference<>();
+    CompletableFuture<List<BufferedImage>> result = CompletableFuture
+        .supplyAsync(() -> CloudDaoImpl.getCachedFrames(frameDiskCache, queryBuilder))
+        .thenCompose(images -> {
+          retrieval.set(retrieveFramesAsync(queryBuilder, images));
+          return retrieval.get();
+        });
+    result.whenComplete((ignored, throwable) -> {
+      if (result.isCancelled() && retrieval.get() != null) {
+        retrieval.get().cancel(true);
+      }
+    });
+    return result;
+  }
+
+  // retrieves the frames missing from images, which are null
+  private CompletableFuture<List<BufferedImage>> retrieveFramesAsync(QueryBuilder queryBuilder,
+      BufferedImage[] images) {
+    int[] frameNumbers = queryBuilder.getFrameNumbers();
+    int[] missingFrameIndices = IntStream.range(0, images.length)
+        .filter(i -> images[i] == null)
+        .toArray();
+    if (missingFrameIndices.length == 0) {
+      return CompletableFuture.completedFuture(Arrays.asList(images));
+    }
+
+    int[] missingFrameNumbers = Arrays.stream(missingFrameIndices)
+        .map(i -> frameNumbers[i])
+        .toArray();
+    QueryBuilder missingFramesQuery = new QueryBuilder(queryBuilder)
+        .setFrameNumbers(missingFrameNumbers);
+    HttpRequest request;
+    try {
+      request = createRequestBuilder(CloudDaoImpl.createFramesUriBuilder(missingFramesQuery))
+          .header(ACCEPT, MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX)
+          .GET()
+          .build();
+    } catch (QuPathCloudException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    // frame retrievals are idempotent, so they are retried on transient failures
+    CompletableFuture<List<ByteBuffer>> retrieval =
+        Retries.callAsync(() -> send(request, BodyHandlers.ofByteArray(), response -> {
+          List<ByteBuffer> receivedFrames = readFrames(response);
+          if (receivedFrames.size() != missingFrameNumbers.length) {
+            throw new QuPathCloudException("Requested " + missingFrameNumbers.length
+                + " frames, but received " + receivedFrames.size());
+          }
+          return receivedFrames;
+        }));
+    // a frame that doesn't decode won't decode when retrieved again, so decoding isn't retried
+    CompletableFuture<List<BufferedImage>> result = retrieval.thenApply(receivedFrames -> {
+      try {
+        for (int i = 0; i < missingFrameIndices.length; i++) {
+          images[missingFrameIndices[i]] = CloudDaoImpl.decodeReceivedFrame(frameDiskCache,
+              queryBuilder, missingFrameNumbers[i], receivedFrames.get(i));
+        }
+      } catch (IOException e) {
+        throw new CompletionException(new QuPathCloudException(e));
+      }
+      return Arrays.asList(images);
+    });
+    result.whenComplete((ignored, throwable) -> {
+      if (result.isCancelled()) {
+        retrieval.cancel(true);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Gets Instances list. The Instances are searched page by page like by
+   * {@link CloudDao#searchInstances}.
+   *
+   * @param queryBuilder the query builder
+   * @return the future of the list of Instances
+   */
+  public CompletableFuture<List<Instance>> getInstancesAsync(QueryBuilder queryBuilder) {
+    URIBuilder uriBuilder;
+    try {
+      uriBuilder = CloudDaoImpl.addAttributeMatches(
+          CloudDaoImpl.createInstancesUriBuilder(queryBuilder), queryBuilder);
+    } catch (QuPathCloudException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    ObjectReader reader = JsonCodec.getResponseReader(new TypeReference<List<Instance>>() {});
+    return QidoSearch.toListAsync((offset, limit) -> {
+      HttpRequest request;
+      try {
+        request = createRequestBuilder(CloudDaoImpl.createPageUriBuilder(uriBuilder, offset, limit))
+            .header(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF8)
+            .GET()
+            .build();
+      } catch (QuPathCloudException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+      // a search past the last match has no content
+      return send(request, BodyHandlers.ofByteArray(), response -> {
+        if (response.body().length == 0) {
+          return Collections.<Instance>emptyList();
+        }
+        return reader.<List<Instance>>readValue(response.body());
+      }, Collections.emptyList());
+    });
+  }
+
+  /**
+   * Uploads DICOM files to the DICOM Store. The upload blocks one of the bounded upload threads
+   * while it runs, and waits for a free one first if all are busy. It sends the same STOW-RS
+   * requests as {@link CloudDao#uploadToDicomStore}: files are packed into requests of several
+   * Instances, each request is retried on transient failures, and a file that still fails doesn't
+   * stop the others. With a journal, files it marks done are skipped and each stored file is
+   * marked done. Upload requests have no timeout, a large file may take long to send.
+   *
+   * @param queryBuilder the query builder with paths of the files
+   * @return the future completed when all files are uploaded
+   */
+  public CompletableFuture<Void> uploadAsync(QueryBuilder queryBuilder) {
+    CompletableFuture<Void> result = new CompletableFuture<>();
+    Future<?> upload = UPLOAD_EXECUTOR.submit(() -> {
+      try {
+        stowUploader.upload(queryBuilder);
+        result.complete(null);
+      } catch (QuPathCloudException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+    // cancelling interrupts the upload, which cancels its requests in flight
+    result.whenComplete((ignored, throwable) -> {
+      if (result.isCancelled()) {
+        upload.cancel(true);
+      }
+    });
+    return result;
+  }
+
+  private HttpRequest.Builder createRequestBuilder(URIBuilder uriBuilder)
+      throws QuPathCloudException {
+    URI uri;
+    try {
+      uri = uriBuilder.build();
+    } catch (URISyntaxException e) {
+      throw new QuPathCloudException(e);
+    }
+    return HttpRequest.newBuilder(uri)
+        .timeout(requestTimeout)
+        .header(AUTHORIZATION, BEARER + oAuth20.getCredential().getAccessToken());
+  }
+
+  private <B, T> CompletableFuture<T> send(HttpRequest request,
+      HttpResponse.BodyHandler<B> bodyHandler, ResponseHandler<B, T> responseHandler) {
+    return send(request, bodyHandler, responseHandler, null);
+  }
+
+  // noContentResult is returned for 204 No Content, null if the response must have content
+  private <B, T> CompletableFuture<T> send(HttpRequest request,
+      HttpResponse.BodyHandler<B> bodyHandler, ResponseHandler<B, T> responseHandler,
+      T noContentResult) {
+    // the permit is released as soon as the response, which is received in full, arrives
+    CompletableFuture<RequestThrottle.Permit> permitFuture =
+        RequestThrottle.getInstance().acquireAsync();
+    AtomicReference<CompletableFuture<HttpResponse<B>>> sendFuture = new AtomicReference<>();
+    CompletableFuture<HttpResponse<B>> responseFuture = permitFuture.thenCompose(permit -> {
+      sendFuture.set(httpClient.sendAsync(request, bodyHandler));
+      return sendFuture.get().whenComplete((response, throwable) ->
+          permit.release(response == null ? -1 : response.statusCode(),
+              request.bodyPublisher().isPresent()));
+    });
+    CompletableFuture<T> result = responseFuture.thenApply(response -> {
+      try {
+        if (noContentResult != null
+            && response.statusCode() == HttpStatusCodes.STATUS_CODE_NO_CONTENT) {
+          return noContentResult;
+        }
+        if (response.statusCode() != HttpStatusCodes.STATUS_CODE_OK) {
+          throw new HttpStatusException(response.statusCode(), Retries.parseRetryAfterMillis(
+              response.headers().firstValue(RETRY_AFTER).orElse(null)));
+        }
+        return responseHandler.handle(response);
+      } catch (IOException | QuPathCloudException e) {
+        throw new CompletionException(e);
+      }
+    }).exceptionally(throwable -> {
+      Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+          ? throwable.getCause() : throwable;
+      if (cause instanceof QuPathCloudException) {
+        throw new CompletionException(cause);
+      }
+      throw new CompletionException(new QuPathCloudException(cause));
+    });
+    result.whenComplete((ignored, throwable) -> {
+      if (result.isCancelled()) {
+        permitFuture.cancel(true);
+        if (sendFuture.get() != null) {
+          sendFuture.get().cancel(true);
+        }
+      }
+    });
+    return result;
+  }
+
+  private static List<ByteBuffer> readFrames(HttpResponse<byte[]> response)
+      throws IOException, QuPathCloudException {
+    String boundary = response.headers().firstValue(CONTENT_TYPE)
+        .map(ContentType::parse)
+        .map(contentType -> contentType.getParameter(PARAM_BOUNDARY))
+        .orElse(null);
+    return new MultipartRelatedReader(new ByteArrayInputStream(response.body()), boundary)
+        .readAllParts();
+  }
+
+  @FunctionalInterface
+  private interface ResponseHandler<B, T> {
+
+    T handle(HttpResponse<B> response) throws IOException, QuPathCloudException;
+  }
+}
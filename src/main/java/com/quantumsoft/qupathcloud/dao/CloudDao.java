@@ -25,15 +25,20 @@ import com.quantumsoft.qupathcloud.entities.Study;
 import com.quantumsoft.qupathcloud.entities.instance.Instance;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import com.quantumsoft.qupathcloud.pyramid.PyramidInstance;
 import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.List;
+import org.apache.http.impl.client.CloseableHttpClient;
 
 /**
  * Cloud dao.
  */
-public abstract class CloudDao {
+public abstract class CloudDao implements Closeable {
 
   private OAuth20 oAuth20;
+  private final CloseableHttpClient httpClient;
 
   /**
    * Instantiates a new Cloud dao.
@@ -42,6 +47,7 @@ public abstract class CloudDao {
    */
   CloudDao(OAuth20 oAuth20) {
     this.oAuth20 = oAuth20;
+    this.httpClient = HttpClientFactory.createPooledHttpClient();
   }
 
   /**
@@ -110,6 +116,38 @@ public abstract class CloudDao {
   public abstract List<Instance> getInstances(QueryBuilder queryBuilder)
       throws QuPathCloudException;
 
+  /**
+   * Searches Instances page by page.
+   *
+   * @param queryBuilder the query builder
+   * @return the lazy search
+   * @throws QuPathCloudException if an error occurs
+   */
+  public abstract QidoSearch<Instance> searchInstances(QueryBuilder queryBuilder)
+      throws QuPathCloudException;
+
+  /**
+   * Searches Series page by page.
+   *
+   * @param queryBuilder the query builder
+   * @return the lazy search
+   * @throws QuPathCloudException if an error occurs
+   */
+  public abstract QidoSearch<Series> searchSeries(QueryBuilder queryBuilder)
+      throws QuPathCloudException;
+
+  /**
+   * Gets the Instances of a whole-slide image with only the attributes needed to build a
+   * Pyramid, reading the response as a stream.
+   *
+   * @param queryBuilder the query builder
+   * @return the list of Pyramid instances
+   * @throws QuPathCloudException if an error occurs or an Instance isn't a valid DICOM WSI
+   * instance
+   */
+  public abstract List<PyramidInstance> getPyramidInstances(QueryBuilder queryBuilder)
+      throws QuPathCloudException;
+
   /**
    * Gets frame.
    *
@@ -119,6 +157,23 @@ public abstract class CloudDao {
    */
   public abstract BufferedImage getFrame(QueryBuilder queryBuilder) throws QuPathCloudException;
 
+  /**
+   * Gets several frames of one Instance in a single request.
+   *
+   * @param queryBuilder the query builder with frame numbers
+   * @return the frames in the order of the requested frame numbers
+   * @throws QuPathCloudException if an error occurs
+   */
+  public abstract List<BufferedImage> getFrames(QueryBuilder queryBuilder)
+      throws QuPathCloudException;
+
+  /**
+   * Gets the asynchronous variant of this dao.
+   *
+   * @return the async cloud dao
+   */
+  public abstract AsyncCloudDao getAsyncCloudDao();
+
   /**
    * Creates Dataset.
    *
@@ -151,6 +206,17 @@ public abstract class CloudDao {
    */
   public abstract void downloadInstances(QueryBuilder queryBuilder) throws QuPathCloudException;
 
+  /**
+   * Downloads Instances list from DICOM Store, streaming each DICOM file to a consumer instead
+   * of saving it.
+   *
+   * @param queryBuilder the query builder
+   * @param consumer the consumer of the DICOM files, called concurrently
+   * @throws QuPathCloudException if an error occurs
+   */
+  public abstract void streamInstances(QueryBuilder queryBuilder,
+      InstanceStreamConsumer consumer) throws QuPathCloudException;
+
   /**
    * Deletes Instances list in DICOM Store.
    *
@@ -167,4 +233,25 @@ public abstract class CloudDao {
   public OAuth20 getoAuth20() {
     return oAuth20;
   }
+
+  /**
+   * Gets the pooled HTTP client shared by all requests of this dao. It must not be closed by
+   * callers, only the responses it returns.
+   *
+   * @return the HTTP client
+   */
+  CloseableHttpClient getHttpClient() {
+    return httpClient;
+  }
+
+  /**
+   * Closes the pooled HTTP client and its connections. The dao, and the async dao it provides,
+   * can't send requests afterwards.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
 }
@@ -15,15 +15,18 @@
 
 package com.quantumsoft.qupathcloud.dao;
 
+import static com.quantumsoft.qupathcloud.concurrent.OperationType.DELETE;
+import static com.quantumsoft.qupathcloud.concurrent.OperationType.DOWNLOAD;
 import static com.quantumsoft.qupathcloud.dao.Constants.APPLICATION_JSON_CHARSET_UTF8;
 import static com.quantumsoft.qupathcloud.dao.Constants.BEARER;
 import static com.quantumsoft.qupathcloud.dao.Constants.CLOUD_RESOURCE_MANAGER_HOST;
 import static com.quantumsoft.qupathcloud.dao.Constants.HEALTHCARE_HOST;
 import static com.quantumsoft.qupathcloud.dao.Constants.INSTANCES;
-import static com.quantumsoft.qupathcloud.dao.Constants.MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX;
 import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_DATASET_ID;
 import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_DICOM_STORE_ID;
 import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_INCLUDE_FIELD;
+import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_LIMIT;
+import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_OFFSET;
 import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_PAGE_TOKEN;
 import static com.quantumsoft.qupathcloud.dao.Constants.PATH_TO_PROJECTS;
 import static com.quantumsoft.qupathcloud.dao.Constants.SCHEME;
@@ -43,16 +46,14 @@ import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_STUDY_INSTAN
 import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_TIMEZONE_OFFSET_FROM_UTC;
 import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_TOTAL_PIXEL_MATRIX_COLUMNS;
 import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_TOTAL_PIXEL_MATRIX_ROWS;
-import static com.quantumsoft.qupathcloud.exception.Errors.FAILED_HTTP;
-import static org.apache.http.HttpHeaders.ACCEPT;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.http.HttpStatusCodes;
+import com.quantumsoft.qupathcloud.cache.FrameDiskCache;
 import com.quantumsoft.qupathcloud.dao.spec.DatasetsPathBuilder;
 import com.quantumsoft.qupathcloud.dao.spec.DicomStoresPathBuilder;
 import com.quantumsoft.qupathcloud.dao.spec.FramePathBuilder;
@@ -74,36 +75,46 @@ import com.quantumsoft.qupathcloud.entities.Study;
 import com.quantumsoft.qupathcloud.entities.instance.Instance;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import com.quantumsoft.qupathcloud.pyramid.PyramidInstance;
+import com.quantumsoft.qupathcloud.pyramid.PyramidInstanceReader;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import javax.imageio.ImageIO;
-import org.apache.http.HttpEntity;
+import java.util.stream.IntStream;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Implementation of Cloud dao for access to Healthcare API.
  */
 public class CloudDaoImpl extends CloudDao {
 
+  private static final Logger LOGGER = LogManager.getLogger();
   private static final String DCM_EXTENSION = "dcm";
-  private static final int THREADS_COUNT = 4;
-  private static final int R = 0x0d; // "\r"
-  private static final int N = 0x0a; // "\n"
+
+  private final FrameDiskCache frameDiskCache;
+  private final StowUploader stowUploader;
+  private final AsyncCloudDao asyncCloudDao;
+  private final FrameTransport frameTransport;
 
   /**
    * Instantiates a new Cloud dao.
@@ -111,7 +122,21 @@ public class CloudDaoImpl extends CloudDao {
    * @param oAuth20 the o auth 20
    */
   public CloudDaoImpl(OAuth20 oAuth20) {
+    this(oAuth20, null);
+  }
+
+  /**
+   * Instantiates a new Cloud dao which keeps retrieved frames in a persistent disk cache.
+   *
+   * @param oAuth20 the o auth 20
+   * @param frameDiskCache the frame disk cache or null to disable disk caching
+   */
+  public CloudDaoImpl(OAuth20 oAuth20, FrameDiskCache frameDiskCache) {
     super(oAuth20);
+    this.frameDiskCache = frameDiskCache;
+    this.stowUploader = new StowUploader(oAuth20, getHttpClient());
+    this.asyncCloudDao = new AsyncCloudDao(oAuth20, frameDiskCache, stowUploader);
+    this.frameTransport = FrameTransport.create(oAuth20, getHttpClient());
   }
 
   @Override
@@ -189,47 +214,88 @@ public class CloudDaoImpl extends CloudDao {
 
   @Override
   public List<Series> getSeries(QueryBuilder queryBuilder) throws QuPathCloudException {
+    return searchSeries(queryBuilder).toList();
+  }
+
+  @Override
+  public List<Instance> getInstances(QueryBuilder queryBuilder) throws QuPathCloudException {
+    return searchInstances(queryBuilder).toList();
+  }
+
+  @Override
+  public QidoSearch<Instance> searchInstances(QueryBuilder queryBuilder)
+      throws QuPathCloudException {
+    URIBuilder uriBuilder = createInstancesUriBuilder(queryBuilder);
+    return createSearch(uriBuilder, queryBuilder, new TypeReference<List<Instance>>() {});
+  }
+
+  @Override
+  public QidoSearch<Series> searchSeries(QueryBuilder queryBuilder) throws QuPathCloudException {
     SeriesPathBuilder seriesPathBuilder = new SeriesPathBuilder(queryBuilder);
     URIBuilder uriBuilder = new URIBuilder()
         .setScheme(SCHEME)
         .setHost(HEALTHCARE_HOST)
-        .setParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_IMAGE_COMMENTS)
         .setPath(seriesPathBuilder.toPath());
-    return createRequestForObjectList(uriBuilder, new TypeReference<List<Series>>() {});
+    addIncludeFields(uriBuilder, queryBuilder, VALUE_PARAM_IMAGE_COMMENTS);
+    return createSearch(uriBuilder, queryBuilder, new TypeReference<List<Series>>() {});
   }
 
   @Override
-  public List<Instance> getInstances(QueryBuilder queryBuilder) throws QuPathCloudException {
-    InstancesPathBuilder instancesPathBuilder = new InstancesPathBuilder(queryBuilder);
-    URIBuilder uriBuilder = new URIBuilder()
-        .setScheme(SCHEME)
-        .setHost(HEALTHCARE_HOST)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_MODALITY)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_STUDY_INSTANCE_UID)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_SERIES_INSTANCE_UID)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_TOTAL_PIXEL_MATRIX_COLUMNS)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_TOTAL_PIXEL_MATRIX_ROWS)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_PER_FRAME_FUNCTIONAL_GROUP_SEQUENCE)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_INSTANCE_CREATION_DATE)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_INSTANCE_CREATION_TIME)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_TIMEZONE_OFFSET_FROM_UTC)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_SOP_AUTHORIZATHION_COMMENT)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_DIMENSION_ORGANIZATION_TYPE)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_CONCATENATION_UID)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_CONCATENATION_FRAME_OFFSET_NUMBER)
-        .addParameter(PARAM_INCLUDE_FIELD, VALUE_PARAM_NUMBER_OF_FRAMES)
-        .setPath(instancesPathBuilder.toPath());
-    return createRequestForObjectList(uriBuilder, new TypeReference<List<Instance>>() {});
+  public List<PyramidInstance> getPyramidInstances(QueryBuilder queryBuilder)
+      throws QuPathCloudException {
+    URIBuilder uriBuilder = createInstancesUriBuilder(queryBuilder);
+    return createRequest(uriBuilder, PyramidInstanceReader::read);
   }
 
   @Override
   public BufferedImage getFrame(QueryBuilder queryBuilder) throws QuPathCloudException {
-    FramePathBuilder framePathBuilder = new FramePathBuilder(queryBuilder);
-    URIBuilder uriBuilder = new URIBuilder()
-        .setScheme(SCHEME)
-        .setHost(HEALTHCARE_HOST)
-        .setPath(framePathBuilder.toPath());
-    return createRequestForFrame(uriBuilder);
+    QueryBuilder frameQuery = new QueryBuilder(queryBuilder)
+        .setFrameNumbers(new int[]{queryBuilder.getFrameNumber()});
+    return getFrames(frameQuery).get(0);
+  }
+
+  @Override
+  public List<BufferedImage> getFrames(QueryBuilder queryBuilder) throws QuPathCloudException {
+    int[] frameNumbers = queryBuilder.getFrameNumbers();
+    BufferedImage[] images = frameDiskCache == null
+        ? new BufferedImage[frameNumbers.length]
+        : getCachedFrames(frameDiskCache, queryBuilder);
+    int[] missingFrameIndices = IntStream.range(0, images.length)
+        .filter(i -> images[i] == null)
+        .toArray();
+    if (missingFrameIndices.length > 0) {
+      int[] missingFrameNumbers = Arrays.stream(missingFrameIndices)
+          .map(i -> frameNumbers[i])
+          .toArray();
+      QueryBuilder missingFramesQuery = new QueryBuilder(queryBuilder)
+          .setFrameNumbers(missingFrameNumbers);
+      URI uri;
+      try {
+        uri = createFramesUriBuilder(missingFramesQuery).build();
+      } catch (URISyntaxException e) {
+        throw new QuPathCloudException(e);
+      }
+      // frame retrievals are idempotent, so they are retried on transient failures
+      List<ByteBuffer> receivedFrames = Retries.call(() -> frameTransport.retrieveFrames(uri));
+      if (receivedFrames.size() != missingFrameNumbers.length) {
+        throw new QuPathCloudException("Requested " + missingFrameNumbers.length
+            + " frames, but received " + receivedFrames.size());
+      }
+      try {
+        for (int i = 0; i < missingFrameIndices.length; i++) {
+          images[missingFrameIndices[i]] = decodeReceivedFrame(frameDiskCache, queryBuilder,
+              missingFrameNumbers[i], receivedFrames.get(i));
+        }
+      } catch (IOException e) {
+        throw new QuPathCloudException(e);
+      }
+    }
+    return Arrays.asList(images);
+  }
+
+  @Override
+  public AsyncCloudDao getAsyncCloudDao() {
+    return asyncCloudDao;
   }
 
   @Override
@@ -256,33 +322,53 @@ public class CloudDaoImpl extends CloudDao {
 
   @Override
   public void uploadToDicomStore(QueryBuilder queryBuilder) throws QuPathCloudException {
-    StudiesPathBuilder studiesPathBuilder = new StudiesPathBuilder(queryBuilder);
-    URIBuilder uriBuilder = new URIBuilder()
-        .setScheme(SCHEME)
-        .setHost(HEALTHCARE_HOST)
-        .setPath(studiesPathBuilder.toPath());
-    ExecutorService executorService = Executors.newFixedThreadPool(THREADS_COUNT);
-    List<Future<Void>> list = new ArrayList<>();
-    for (Path inputFile : queryBuilder.getPaths()) {
-      UploadDicomCallable uploadDicomCallable =
-          new UploadDicomCallable(getoAuth20(), inputFile, uriBuilder);
-      Future<Void> future = executorService.submit(uploadDicomCallable);
-      list.add(future);
-    }
-    for (Future<Void> future : list) {
+    stowUploader.upload(queryBuilder);
+  }
+
+  // every operation is awaited before failing, so one failure doesn't throw away the others
+  private static void awaitAll(List<Future<Void>> futures, String operations)
+      throws QuPathCloudException {
+    List<Exception> failures = new ArrayList<>();
+    for (Future<Void> future : futures) {
       try {
         future.get();
-      } catch (InterruptedException | ExecutionException e) {
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
         throw new QuPathCloudException(e);
+      } catch (ExecutionException e) {
+        failures.add(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
       }
     }
-    executorService.shutdown();
+    throwIfFailed(failures, futures.size(), operations);
+  }
+
+  static void throwIfFailed(List<Exception> failures, int total, String operations)
+      throws QuPathCloudException {
+    if (failures.isEmpty()) {
+      return;
+    }
+    QuPathCloudException exception = new QuPathCloudException(
+        failures.size() + " of " + total + " " + operations + " failed", failures.get(0));
+    for (Exception failure : failures.subList(1, failures.size())) {
+      exception.addSuppressed(failure);
+    }
+    throw exception;
   }
 
   @Override
   public void downloadInstances(QueryBuilder queryBuilder) throws QuPathCloudException {
+    Path outputDirectory = queryBuilder.getDirectory();
+    // a retry overwrites the part written by the failed attempt
+    streamInstances(queryBuilder, (instance, inputStream) -> Files.copy(inputStream,
+        outputDirectory.resolve(instance.getSopInstanceUID().getValue1() + "." + DCM_EXTENSION),
+        StandardCopyOption.REPLACE_EXISTING));
+  }
+
+  @Override
+  public void streamInstances(QueryBuilder queryBuilder, InstanceStreamConsumer consumer)
+      throws QuPathCloudException {
     StudiesPathBuilder studiesPathBuilder = new StudiesPathBuilder(queryBuilder);
-    ExecutorService executorService = Executors.newFixedThreadPool(THREADS_COUNT);
+    ExecutorService executorService = DOWNLOAD.newExecutor();
     List<Future<Void>> list = new ArrayList<>();
     for (Instance instance : queryBuilder.getInstances()) {
       String studyValue = instance.getStudyInstanceUID().getValue1();
@@ -293,27 +379,23 @@ public class CloudDaoImpl extends CloudDao {
           .setHost(HEALTHCARE_HOST)
           .setPath(studiesPathBuilder.toPath() + studyValue + SERIES + seriesValue + INSTANCES
               + instanceValue);
-      Path outputDirectory = queryBuilder.getDirectory();
-      Path outputFile = outputDirectory.resolve(instanceValue + "." + DCM_EXTENSION);
-      DownloadDicomCallable downloadInstance =
-          new DownloadDicomCallable(getoAuth20(), outputFile, uriBuilderInstance);
-      Future<Void> future = executorService.submit(downloadInstance);
+      DownloadDicomCallable downloadInstance = new DownloadDicomCallable(getoAuth20(),
+          getHttpClient(), instance, consumer, uriBuilderInstance);
+      Future<Void> future =
+          executorService.submit(Retries.withRetries(DOWNLOAD.limit(downloadInstance)));
       list.add(future);
     }
-    for (Future<Void> future : list) {
-      try {
-        future.get();
-      } catch (InterruptedException | ExecutionException e) {
-        throw new QuPathCloudException(e);
-      }
+    try {
+      awaitAll(list, "downloads");
+    } finally {
+      executorService.shutdown();
     }
-    executorService.shutdown();
   }
 
   @Override
   public void deleteInstances(QueryBuilder queryBuilder) throws QuPathCloudException {
     StudiesPathBuilder studiesPathBuilder = new StudiesPathBuilder(queryBuilder);
-    ExecutorService executorService = Executors.newFixedThreadPool(THREADS_COUNT);
+    ExecutorService executorService = DELETE.newExecutor();
     List<Future<Void>> list = new ArrayList<>();
     for (Instance instance : queryBuilder.getInstances()) {
       String studyValue = instance.getStudyInstanceUID().getValue1();
@@ -325,76 +407,220 @@ public class CloudDaoImpl extends CloudDao {
           .setPath(studiesPathBuilder.toPath() + studyValue + SERIES + seriesValue + INSTANCES
               + instanceValue);
       DeleteInstanceCallable deleteInstanceCallable =
-          new DeleteInstanceCallable(getoAuth20(), uriBuilderInstance);
-      Future<Void> future = executorService.submit(deleteInstanceCallable);
+          new DeleteInstanceCallable(getoAuth20(), getHttpClient(), uriBuilderInstance);
+      Future<Void> future =
+          executorService.submit(Retries.withRetries(DELETE.limit(deleteInstanceCallable)));
       list.add(future);
     }
-    for (Future<Void> future : list) {
+    try {
+      awaitAll(list, "deletions");
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  /**
+   * Creates the URI of an Instance search with all attributes needed by the extension.
+   *
+   * @param queryBuilder the query builder
+   * @return the uri builder
+   * @throws QuPathCloudException if the query is incomplete
+   */
+  static URIBuilder createInstancesUriBuilder(QueryBuilder queryBuilder)
+      throws QuPathCloudException {
+    InstancesPathBuilder instancesPathBuilder = new InstancesPathBuilder(queryBuilder);
+    URIBuilder uriBuilder = new URIBuilder()
+        .setScheme(SCHEME)
+        .setHost(HEALTHCARE_HOST)
+        .setPath(instancesPathBuilder.toPath());
+    addIncludeFields(uriBuilder, queryBuilder,
+        VALUE_PARAM_MODALITY,
+        VALUE_PARAM_STUDY_INSTANCE_UID,
+        VALUE_PARAM_SERIES_INSTANCE_UID,
+        VALUE_PARAM_TOTAL_PIXEL_MATRIX_COLUMNS,
+        VALUE_PARAM_TOTAL_PIXEL_MATRIX_ROWS,
+        VALUE_PARAM_PER_FRAME_FUNCTIONAL_GROUP_SEQUENCE,
+        VALUE_PARAM_INSTANCE_CREATION_DATE,
+        VALUE_PARAM_INSTANCE_CREATION_TIME,
+        VALUE_PARAM_TIMEZONE_OFFSET_FROM_UTC,
+        VALUE_PARAM_SOP_AUTHORIZATHION_COMMENT,
+        VALUE_PARAM_DIMENSION_ORGANIZATION_TYPE,
+        VALUE_PARAM_CONCATENATION_UID,
+        VALUE_PARAM_CONCATENATION_FRAME_OFFSET_NUMBER,
+        VALUE_PARAM_NUMBER_OF_FRAMES);
+    return uriBuilder;
+  }
+
+  // the include fields of the query replace the default ones
+  private static void addIncludeFields(URIBuilder uriBuilder, QueryBuilder queryBuilder,
+      String... defaultIncludeFields) {
+    List<String> includeFields = queryBuilder.getIncludeFields() != null
+        ? queryBuilder.getIncludeFields() : Arrays.asList(defaultIncludeFields);
+    for (String includeField : includeFields) {
+      uriBuilder.addParameter(PARAM_INCLUDE_FIELD, includeField);
+    }
+  }
+
+  /**
+   * Gets the decoded frames of an Instance kept by the persistent frame cache. A cached frame that
+   * fails to decode is removed from the cache and counted as not cached, so it's retrieved again.
+   *
+   * @param frameDiskCache the persistent frame cache
+   * @param queryBuilder the query builder with frame numbers
+   * @return the frames in the order of the frame numbers, null for frames not cached
+   */
+  static BufferedImage[] getCachedFrames(FrameDiskCache frameDiskCache,
+      QueryBuilder queryBuilder) {
+    int[] frameNumbers = queryBuilder.getFrameNumbers();
+    BufferedImage[] images = new BufferedImage[frameNumbers.length];
+    for (int i = 0; i < frameNumbers.length; i++) {
+      ByteBuffer frame = frameDiskCache.get(queryBuilder.getStudyId(), queryBuilder.getSeriesId(),
+          queryBuilder.getInstanceId(), frameNumbers[i]);
+      if (frame == null) {
+        continue;
+      }
       try {
-        future.get();
-      } catch (InterruptedException | ExecutionException e) {
-        throw new QuPathCloudException(e);
+        images[i] = JpegTileDecoder.decode(frame);
+      } catch (IOException e) {
+        LOGGER.warn("Removing cached frame " + frameNumbers[i] + " of Instance "
+            + queryBuilder.getInstanceId() + " which fails to decode", e);
+        frameDiskCache.remove(queryBuilder.getStudyId(), queryBuilder.getSeriesId(),
+            queryBuilder.getInstanceId(), frameNumbers[i]);
       }
     }
-    executorService.shutdown();
+    return images;
+  }
+
+  /**
+   * Decodes a retrieved frame and puts it into the persistent frame cache. A frame that fails to
+   * decode is not cached, so a corrupt response isn't served again.
+   *
+   * @param frameDiskCache the persistent frame cache or null if frames are not cached
+   * @param queryBuilder the query builder of the Instance
+   * @param frameNumber the frame number
+   * @param frame the compressed frame bytes
+   * @return the decoded frame
+   * @throws IOException if the frame is not a valid JPEG image
+   */
+  static BufferedImage decodeReceivedFrame(FrameDiskCache frameDiskCache,
+      QueryBuilder queryBuilder, int frameNumber, ByteBuffer frame) throws IOException {
+    BufferedImage image = JpegTileDecoder.decode(frame);
+    if (frameDiskCache != null) {
+      frameDiskCache.put(queryBuilder.getStudyId(), queryBuilder.getSeriesId(),
+          queryBuilder.getInstanceId(), frameNumber, frame);
+    }
+    return image;
+  }
+
+  /**
+   * Creates the URI of a frames retrieval.
+   *
+   * @param queryBuilder the query builder with frame numbers
+   * @return the uri builder
+   * @throws QuPathCloudException if the query is incomplete
+   */
+  static URIBuilder createFramesUriBuilder(QueryBuilder queryBuilder)
+      throws QuPathCloudException {
+    FramePathBuilder framePathBuilder = new FramePathBuilder(queryBuilder);
+    return new URIBuilder()
+        .setScheme(SCHEME)
+        .setHost(HEALTHCARE_HOST)
+        .setPath(framePathBuilder.toPath());
+  }
+
+  /**
+   * Adds the attribute matches of a query to the URI of a search.
+   *
+   * @param uriBuilder the uri builder of the search
+   * @param queryBuilder the query builder
+   * @return the uri builder
+   */
+  static URIBuilder addAttributeMatches(URIBuilder uriBuilder, QueryBuilder queryBuilder) {
+    Map<String, String> attributeMatches = queryBuilder.getAttributeMatches();
+    for (Map.Entry<String, String> attributeMatch : attributeMatches.entrySet()) {
+      uriBuilder.setParameter(attributeMatch.getKey(), attributeMatch.getValue());
+    }
+    return uriBuilder;
+  }
+
+  /**
+   * Creates the URI of one page of a search.
+   *
+   * @param uriBuilder the uri builder of the search
+   * @param offset the number of results to skip
+   * @param limit the maximum number of results
+   * @return the uri builder of the page
+   * @throws QuPathCloudException if the URI is invalid
+   */
+  static URIBuilder createPageUriBuilder(URIBuilder uriBuilder, int offset, int limit)
+      throws QuPathCloudException {
+    try {
+      return new URIBuilder(uriBuilder.build())
+          .setParameter(PARAM_LIMIT, String.valueOf(limit))
+          .setParameter(PARAM_OFFSET, String.valueOf(offset));
+    } catch (URISyntaxException e) {
+      throw new QuPathCloudException(e);
+    }
+  }
+
+  private <T> QidoSearch<T> createSearch(URIBuilder uriBuilder, QueryBuilder queryBuilder,
+      TypeReference<List<T>> typeReference) {
+    addAttributeMatches(uriBuilder, queryBuilder);
+    ObjectReader reader = JsonCodec.getResponseReader(typeReference);
+    return new QidoSearch<>((offset, limit) -> {
+      URIBuilder pageUriBuilder = createPageUriBuilder(uriBuilder, offset, limit);
+      // a search past the last match has no content
+      return createRequest(pageUriBuilder, reader::readValue, Collections.emptyList());
+    });
   }
 
   private <T> T createRequestForObjectList(URIBuilder uriBuilder, TypeReference<T> typeReference)
       throws QuPathCloudException {
-    ObjectMapper mapper = new ObjectMapper();
-    mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    ObjectReader reader = JsonCodec.getResponseReader(typeReference);
+    return createRequest(uriBuilder, reader::readValue);
+  }
+
+  private <T> T createRequest(URIBuilder uriBuilder, ResponseReader<T> responseReader)
+      throws QuPathCloudException {
+    return createRequest(uriBuilder, responseReader, null);
+  }
 
-    T result;
-    try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
+  // noContentResult is returned for 204 No Content, null if the response must have content
+  // reads are idempotent, so they are retried on transient failures
+  private <T> T createRequest(URIBuilder uriBuilder, ResponseReader<T> responseReader,
+      T noContentResult) throws QuPathCloudException {
+    return Retries.call(() -> {
       URI uri = uriBuilder.build();
       HttpGet request = new HttpGet(uri);
       request.addHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF8);
       Credential credential = getoAuth20().getCredential();
       request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
-      try (CloseableHttpResponse response = httpclient.execute(request)) {
+      try (CloseableHttpResponse response = getHttpClient().execute(request)) {
+        if (noContentResult != null && response.getStatusLine().getStatusCode()
+            == HttpStatusCodes.STATUS_CODE_NO_CONTENT) {
+          EntityUtils.consume(response.getEntity());
+          return noContentResult;
+        }
         checkStatusCode(response);
 
         try (InputStream inputStream = response.getEntity().getContent()) {
-          result = mapper.readValue(inputStream, typeReference);
+          return responseReader.read(inputStream);
         }
       }
-    } catch (IOException | URISyntaxException e) {
-      throw new QuPathCloudException(e);
-    }
-    return result;
+    });
   }
 
   private void createRequestForCreateQbject(URIBuilder uriBuilder) throws QuPathCloudException {
-    try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
+    try {
       URI uri = uriBuilder.build();
       HttpPost request = new HttpPost(uri);
       request.addHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF8);
       Credential credential = getoAuth20().getCredential();
       request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
-      try (CloseableHttpResponse response = httpclient.execute(request)) {
+      try (CloseableHttpResponse response = getHttpClient().execute(request)) {
         checkStatusCode(response);
-      }
-    } catch (IOException | URISyntaxException e) {
-      throw new QuPathCloudException(e);
-    }
-  }
-
-  private BufferedImage createRequestForFrame(URIBuilder uriBuilder) throws QuPathCloudException {
-    try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-      URI uri = uriBuilder.build();
-      HttpGet request = new HttpGet(uri);
-      request.addHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF8);
-      request.addHeader(ACCEPT, MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX);
-      Credential credential = getoAuth20().getCredential();
-      request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
-      try (CloseableHttpResponse response = httpclient.execute(request)) {
-        checkStatusCode(response);
-        HttpEntity entity = response.getEntity();
-
-        try (InputStream inputStream = entity.getContent()) {
-          InputStream imageInputStream = cutHeadersAndTopBoundary(inputStream);
-          return ImageIO.read(imageInputStream);
-        }
+        // the response must be consumed for the connection to return to the pool
+        EntityUtils.consume(response.getEntity());
       }
     } catch (IOException | URISyntaxException e) {
       throw new QuPathCloudException(e);
@@ -420,38 +646,15 @@ public class CloudDaoImpl extends CloudDao {
     return datasetsInProjectLocation;
   }
 
-  /**
-   * This method cuts only the top headers and the top boundary besides the down boundary. It's
-   * necessary for a delay of ~ 1 millisecond when the method cuts inputStream. This method works
-   * only for cuts an image.
-   *
-   * @param inputStream without cuts body.
-   * @return cut inputStream.
-   * @throws IOException when read method throws an exception.
-   */
-  private InputStream cutHeadersAndTopBoundary(InputStream inputStream) throws IOException {
-    int b;
-    while ((b = inputStream.read()) != -1) {
-      if (b == R) {
-        b = inputStream.read();
-        if (b == N) {
-          b = inputStream.read();
-          if (b == R) {
-            b = inputStream.read();
-            if (b == N) {
-              break;
-            }
-          }
-        }
-      }
-    }
-    return inputStream;
-  }
-
   private void checkStatusCode(CloseableHttpResponse response) throws QuPathCloudException {
     int statusCode = response.getStatusLine().getStatusCode();
     if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
-      throw new QuPathCloudException(FAILED_HTTP + statusCode);
+      throw Retries.statusException(response);
     }
   }
+
+  private interface ResponseReader<T> {
+
+    T read(InputStream inputStream) throws IOException, QuPathCloudException;
+  }
 }
@@ -41,6 +41,9 @@ public class Constants {
   static final String PARAM_DICOM_STORE_ID = "dicomStoreId";
   static final String PARAM_DATASET_ID = "datasetId";
   static final String PARAM_INCLUDE_FIELD = "includefield";
+  static final String PARAM_BOUNDARY = "boundary";
+  static final String PARAM_LIMIT = "limit";
+  static final String PARAM_OFFSET = "offset";
   static final String VALUE_PARAM_STUDY_INSTANCE_UID = "0020000D";
   static final String VALUE_PARAM_SERIES_INSTANCE_UID = "0020000E";
   static final String VALUE_PARAM_TOTAL_PIXEL_MATRIX_COLUMNS = "00480006";
@@ -15,8 +15,18 @@
 
 package com.quantumsoft.qupathcloud.dao;
 
+import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_INSTANCE_CREATION_DATE;
+import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_INSTANCE_CREATION_TIME;
+import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_MODALITY;
+import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_SERIES_INSTANCE_UID;
+import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_SOP_AUTHORIZATHION_COMMENT;
+import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_STUDY_INSTANCE_UID;
+import static com.quantumsoft.qupathcloud.dao.Constants.VALUE_PARAM_TIMEZONE_OFFSET_FROM_UTC;
+
+import com.quantumsoft.qupathcloud.dao.spec.QueryBuilder;
 import com.quantumsoft.qupathcloud.entities.Series;
 import com.quantumsoft.qupathcloud.entities.instance.Instance;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -25,6 +35,29 @@ import java.util.stream.Collectors;
  */
 public class DaoHelper {
 
+  // what synchronization reads from a Qpdata Instance: location, name and creation date
+  private static final List<String> QPDATA_INSTANCE_FIELDS = Arrays.asList(
+      VALUE_PARAM_MODALITY,
+      VALUE_PARAM_STUDY_INSTANCE_UID,
+      VALUE_PARAM_SERIES_INSTANCE_UID,
+      VALUE_PARAM_SOP_AUTHORIZATHION_COMMENT,
+      VALUE_PARAM_INSTANCE_CREATION_DATE,
+      VALUE_PARAM_INSTANCE_CREATION_TIME,
+      VALUE_PARAM_TIMEZONE_OFFSET_FROM_UTC);
+
+  /**
+   * Narrows a query to Qpdata Instances. The Modality is matched by the server and only the
+   * attributes synchronization needs are returned.
+   *
+   * @param queryBuilder the query for the project, Study or Series
+   * @return the query builder for Qpdata Instances
+   */
+  public static QueryBuilder forQpdataInstances(QueryBuilder queryBuilder) {
+    return new QueryBuilder(queryBuilder)
+        .addAttributeMatch(VALUE_PARAM_MODALITY, Modality.QU_PATH_DATA.getValue())
+        .setIncludeFields(QPDATA_INSTANCE_FIELDS);
+  }
+
   /**
    * Gets image Series list.
    *
@@ -17,7 +17,6 @@ package com.quantumsoft.qupathcloud.dao;
 
 import static com.quantumsoft.qupathcloud.dao.Constants.APPLICATION_JSON_CHARSET_UTF8;
 import static com.quantumsoft.qupathcloud.dao.Constants.BEARER;
-import static com.quantumsoft.qupathcloud.exception.Errors.FAILED_HTTP;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
 
@@ -33,7 +32,7 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -44,34 +43,37 @@ public class DeleteInstanceCallable implements Callable<Void> {
 
   private static final Logger LOGGER = LogManager.getLogger();
   private OAuth20 oAuth20;
+  private CloseableHttpClient httpClient;
   private URIBuilder uriBuilder;
 
   /**
    * Instantiates a new Delete instance callable.
    *
    * @param oAuth20 the oAuth20
+   * @param httpClient the shared HTTP client
    * @param uriBuilder the uri builder
    */
-  DeleteInstanceCallable(OAuth20 oAuth20, URIBuilder uriBuilder) {
+  DeleteInstanceCallable(OAuth20 oAuth20, CloseableHttpClient httpClient, URIBuilder uriBuilder) {
     this.oAuth20 = oAuth20;
+    this.httpClient = httpClient;
     this.uriBuilder = uriBuilder;
   }
 
   @Override
   public Void call() throws IOException, QuPathCloudException, URISyntaxException {
-    try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-      URI uri = uriBuilder.build();
-      HttpDelete request = new HttpDelete(uri);
-      request.addHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF8);
-      Credential credential = oAuth20.getCredential();
-      request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
-      LOGGER.debug("Start deleting Instance in DICOM store");
-      try (CloseableHttpResponse response = httpclient.execute(request)) {
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
-          throw new QuPathCloudException(FAILED_HTTP + statusCode);
-        }
+    URI uri = uriBuilder.build();
+    HttpDelete request = new HttpDelete(uri);
+    request.addHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF8);
+    Credential credential = oAuth20.getCredential();
+    request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
+    LOGGER.debug("Start deleting Instance in DICOM store");
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
+        throw Retries.statusException(response);
       }
+      // the response must be consumed for the connection to return to the pool
+      EntityUtils.consume(response.getEntity());
     }
     return null;
   }
@@ -0,0 +1,199 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Multipart/related STOW-RS body of one or more DICOM files. The files are streamed from their
+ * FileChannel through one reusable buffer as the request is sent, so neither a file nor the body
+ * is ever held in memory. The length of the body is known up front, so it's sent with a
+ * Content-Length instead of chunked.
+ */
+final class DicomMultipartEntity extends AbstractHttpEntity {
+
+  private static final String CRLF = "\r\n";
+  private static final String PART_HEADERS = "Content-Type: application/dicom" + CRLF + CRLF;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final List<Path> files;
+  private final long[] fileSizes;
+  private final byte[] partStart;
+  private final byte[] partEnd;
+  private final byte[] bodyEnd;
+  private final long contentLength;
+  private final TransferProgress progress;
+  // file bytes added to the progress by the last write
+  private long writtenBytes;
+
+  /**
+   * Instantiates a new DICOM multipart entity.
+   *
+   * @param files the DICOM files, one part each
+   * @param boundary the multipart boundary
+   * @param progress the progress the written file bytes are added to
+   * @throws IOException if the size of a file can't be read
+   */
+  DicomMultipartEntity(List<Path> files, String boundary, TransferProgress progress)
+      throws IOException {
+    this.files = Collections.unmodifiableList(new ArrayList<>(files));
+    this.partStart = ("--" + boundary + CRLF + PART_HEADERS).getBytes(US_ASCII);
+    this.partEnd = CRLF.getBytes(US_ASCII);
+    this.bodyEnd = ("--" + boundary + "--" + CRLF).getBytes(US_ASCII);
+    this.progress = progress;
+    this.fileSizes = new long[this.files.size()];
+    long length = bodyEnd.length;
+    for (int i = 0; i < fileSizes.length; i++) {
+      fileSizes[i] = Files.size(this.files.get(i));
+      length += partStart.length + fileSizes[i] + partEnd.length;
+    }
+    this.contentLength = length;
+    setContentType(Constants.MULTIPART_RELATED_TYPE_APPLICATION_DICOM_BOUNDARY + boundary);
+  }
+
+  /**
+   * Gets the DICOM files.
+   *
+   * @return the files
+   */
+  List<Path> getFiles() {
+    return files;
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return contentLength;
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  @Override
+  public InputStream getContent() {
+    // the parts are read one after another, a file is opened only when its part is reached
+    return new SequenceInputStream(new Enumeration<InputStream>() {
+      private int part;
+
+      @Override
+      public boolean hasMoreElements() {
+        return part <= files.size() * 3;
+      }
+
+      @Override
+      public InputStream nextElement() {
+        if (!hasMoreElements()) {
+          throw new NoSuchElementException();
+        }
+        int index = part++;
+        if (index == files.size() * 3) {
+          return new ByteArrayInputStream(bodyEnd);
+        }
+        switch (index % 3) {
+          case 0:
+            return new ByteArrayInputStream(partStart);
+          case 1:
+            try {
+              return Files.newInputStream(files.get(index / 3));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          default:
+            return new ByteArrayInputStream(partEnd);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void writeTo(OutputStream outputStream) throws IOException {
+    // a rewrite of the body sends the same bytes again
+    discardProgress();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    for (Path file : files) {
+      outputStream.write(partStart);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        int read;
+        while ((read = channel.read(byteBuffer)) >= 0) {
+          outputStream.write(buffer, 0, read);
+          byteBuffer.clear();
+          addProgress(read);
+        }
+      }
+      outputStream.write(partEnd);
+    }
+    outputStream.write(bodyEnd);
+    outputStream.flush();
+  }
+
+  /**
+   * Takes the file bytes of the last write back from the progress, because the request failed
+   * and its files will be sent again.
+   */
+  synchronized void discardProgress() {
+    if (progress != null && writtenBytes != 0) {
+      progress.add(-writtenBytes);
+    }
+    writtenBytes = 0;
+  }
+
+  /**
+   * Takes the bytes of refused files back from the progress, because they will be sent again or
+   * not stored at all.
+   *
+   * @param refusedFiles the refused files of the last write
+   */
+  synchronized void discardProgress(List<Path> refusedFiles) {
+    for (int i = 0; i < fileSizes.length; i++) {
+      if (progress != null && refusedFiles.contains(files.get(i))) {
+        progress.add(-fileSizes[i]);
+        writtenBytes -= fileSizes[i];
+      }
+    }
+  }
+
+  private synchronized void addProgress(int bytes) {
+    if (progress != null) {
+      progress.add(bytes);
+      writtenBytes += bytes;
+    }
+  }
+}
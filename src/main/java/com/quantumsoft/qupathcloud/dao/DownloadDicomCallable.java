@@ -18,28 +18,25 @@ package com.quantumsoft.qupathcloud.dao;
 import static com.quantumsoft.qupathcloud.dao.Constants.APPLICATION_DICOM_JSON_CHARSET_UTF8;
 import static com.quantumsoft.qupathcloud.dao.Constants.APPLICATION_DICOM_TRANSFER_SYNTAX;
 import static com.quantumsoft.qupathcloud.dao.Constants.BEARER;
-import static com.quantumsoft.qupathcloud.exception.Errors.FAILED_HTTP;
 import static org.apache.http.HttpHeaders.ACCEPT;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
 import static org.apache.http.HttpHeaders.CONTENT_TYPE;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.http.HttpStatusCodes;
+import com.quantumsoft.qupathcloud.entities.instance.Instance;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import com.quantumsoft.qupathcloud.oauth20.OAuth20;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.concurrent.Callable;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -50,43 +47,48 @@ public class DownloadDicomCallable implements Callable<Void> {
 
   private static final Logger LOGGER = LogManager.getLogger();
   private OAuth20 oAuth20;
-  private Path outputFile;
+  private CloseableHttpClient httpClient;
+  private Instance instance;
+  private InstanceStreamConsumer consumer;
   private URIBuilder uriBuilder;
 
   /**
    * Instantiates a new Download dicom callable.
    *
    * @param oAuth20 the oAuth20
-   * @param outputFile the output file
+   * @param httpClient the shared HTTP client
+   * @param instance the Instance passed to the consumer
+   * @param consumer the consumer of the DICOM file
    * @param uriBuilder the uri builder
    */
-  DownloadDicomCallable(OAuth20 oAuth20, Path outputFile, URIBuilder uriBuilder) {
+  DownloadDicomCallable(OAuth20 oAuth20, CloseableHttpClient httpClient, Instance instance,
+      InstanceStreamConsumer consumer, URIBuilder uriBuilder) {
     this.oAuth20 = oAuth20;
-    this.outputFile = outputFile;
+    this.httpClient = httpClient;
+    this.instance = instance;
+    this.consumer = consumer;
     this.uriBuilder = uriBuilder;
   }
 
   @Override
   public Void call() throws IOException, QuPathCloudException, URISyntaxException {
-    try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-      URI uri = uriBuilder.build();
-      HttpGet request = new HttpGet(uri);
-      request.addHeader(ACCEPT, APPLICATION_DICOM_TRANSFER_SYNTAX);
-      request.addHeader(CONTENT_TYPE, APPLICATION_DICOM_JSON_CHARSET_UTF8);
-      Credential credential = oAuth20.getCredential();
-      request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
-      LOGGER.debug("Start downloading DICOM file");
-      try (CloseableHttpResponse response = httpclient.execute(request)) {
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
-          throw new QuPathCloudException(FAILED_HTTP + statusCode);
-        }
+    URI uri = uriBuilder.build();
+    HttpGet request = new HttpGet(uri);
+    request.addHeader(ACCEPT, APPLICATION_DICOM_TRANSFER_SYNTAX);
+    request.addHeader(CONTENT_TYPE, APPLICATION_DICOM_JSON_CHARSET_UTF8);
+    Credential credential = oAuth20.getCredential();
+    request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
+    LOGGER.debug("Start downloading DICOM file");
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
+        throw Retries.statusException(response);
+      }
 
-        HttpEntity entity = response.getEntity();
+      HttpEntity entity = response.getEntity();
 
-        try (InputStream inputStream = entity.getContent()) {
-          Files.copy(inputStream, outputFile);
-        }
+      try (InputStream inputStream = entity.getContent()) {
+        consumer.accept(instance, inputStream);
       }
     }
     return null;
@@ -0,0 +1,64 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Transport of frame retrieval requests. The transport is chosen with -DquPathCloud.transport:
+ * "http1" (default) uses the pooled HTTP/1.1 client shared by all dao requests, "http2"
+ * multiplexes all frame requests over a single HTTP/2 connection per host.
+ */
+interface FrameTransport {
+
+  /**
+   * Transport system property name.
+   */
+  String TRANSPORT_PROPERTY = "quPathCloud.transport";
+
+  /**
+   * HTTP/2 transport property value.
+   */
+  String HTTP2 = "http2";
+
+  /**
+   * Retrieves frames.
+   *
+   * @param uri the uri of the frames
+   * @return the compressed frames in the order of the response parts
+   * @throws QuPathCloudException if an error occurs
+   */
+  List<ByteBuffer> retrieveFrames(URI uri) throws QuPathCloudException;
+
+  /**
+   * Creates the transport configured by the transport system property.
+   *
+   * @param oAuth20 the oAuth20
+   * @param httpClient the shared HTTP/1.1 client
+   * @return the frame transport
+   */
+  static FrameTransport create(OAuth20 oAuth20, CloseableHttpClient httpClient) {
+    if (HTTP2.equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY))) {
+      return new Http2FrameTransport(oAuth20);
+    }
+    return new HttpClientFrameTransport(oAuth20, httpClient);
+  }
+}
@@ -0,0 +1,103 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static com.quantumsoft.qupathcloud.dao.Constants.BEARER;
+import static com.quantumsoft.qupathcloud.dao.Constants.MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX;
+import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_BOUNDARY;
+import static org.apache.http.HttpHeaders.ACCEPT;
+import static org.apache.http.HttpHeaders.AUTHORIZATION;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.RETRY_AFTER;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpStatusCodes;
+import com.quantumsoft.qupathcloud.concurrent.RequestThrottle;
+import com.quantumsoft.qupathcloud.exception.HttpStatusException;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Frame transport over HTTP/2. Concurrent requests are multiplexed as streams of one connection
+ * per host, so the number of frame requests in flight is not limited by a connection pool and
+ * a slow frame doesn't block the frames requested after it. Falls back to HTTP/1.1 if the server
+ * doesn't negotiate HTTP/2.
+ */
+final class Http2FrameTransport implements FrameTransport {
+
+  private final OAuth20 oAuth20;
+  private final HttpClient httpClient;
+
+  /**
+   * Instantiates a new Http2 frame transport.
+   *
+   * @param oAuth20 the oAuth20
+   */
+  Http2FrameTransport(OAuth20 oAuth20) {
+    this.oAuth20 = oAuth20;
+    this.httpClient = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .build();
+  }
+
+  @Override
+  public List<ByteBuffer> retrieveFrames(URI uri) throws QuPathCloudException {
+    Credential credential = oAuth20.getCredential();
+    HttpRequest request = HttpRequest.newBuilder(uri)
+        .header(ACCEPT, MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX)
+        .header(AUTHORIZATION, BEARER + credential.getAccessToken())
+        .GET()
+        .build();
+    try {
+      HttpResponse<InputStream> response;
+      RequestThrottle.Permit permit = RequestThrottle.getInstance().acquire();
+      int statusCode = -1;
+      try {
+        response = httpClient.send(request, BodyHandlers.ofInputStream());
+        statusCode = response.statusCode();
+      } finally {
+        permit.release(statusCode, false);
+      }
+      try (InputStream inputStream = response.body()) {
+        if (response.statusCode() != HttpStatusCodes.STATUS_CODE_OK) {
+          throw new HttpStatusException(response.statusCode(), Retries.parseRetryAfterMillis(
+              response.headers().firstValue(RETRY_AFTER).orElse(null)));
+        }
+        String boundary = response.headers().firstValue(CONTENT_TYPE)
+            .map(ContentType::parse)
+            .map(contentType -> contentType.getParameter(PARAM_BOUNDARY))
+            .orElse(null);
+        return new MultipartRelatedReader(inputStream, boundary).readAllParts();
+      }
+    } catch (IOException e) {
+      throw new QuPathCloudException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QuPathCloudException(e);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.quantumsoft.qupathcloud.concurrent.RequestThrottle;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Factory for the long-lived pooled HTTP client shared by all requests of a Cloud dao. Reusing
+ * connections saves a TCP and TLS handshake per frame, which dominates tile latency otherwise.
+ */
+final class HttpClientFactory {
+
+  private static final String MAX_CONNECTIONS_TOTAL_PROPERTY = "quPathCloud.maxConnectionsTotal";
+  private static final String MAX_CONNECTIONS_PER_ROUTE_PROPERTY =
+      "quPathCloud.maxConnectionsPerRoute";
+  private static final String KEEP_ALIVE_SECONDS_PROPERTY = "quPathCloud.keepAliveSeconds";
+  private static final String IDLE_TIMEOUT_SECONDS_PROPERTY = "quPathCloud.idleTimeoutSeconds";
+  private static final String CONNECT_TIMEOUT_SECONDS_PROPERTY =
+      "quPathCloud.connectTimeoutSeconds";
+  private static final String SOCKET_TIMEOUT_SECONDS_PROPERTY = "quPathCloud.socketTimeoutSeconds";
+  private static final String CONNECTION_REQUEST_TIMEOUT_SECONDS_PROPERTY =
+      "quPathCloud.connectionRequestTimeoutSeconds";
+  private static final int DEFAULT_MAX_CONNECTIONS_TOTAL = 64;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 32;
+  private static final int DEFAULT_KEEP_ALIVE_SECONDS = 60;
+  private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 30;
+  private static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 30;
+  // the DICOM Store may take a while to answer a large STOW-RS request after it's sent
+  private static final int DEFAULT_SOCKET_TIMEOUT_SECONDS = 120;
+  private static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_SECONDS = 60;
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+  private HttpClientFactory() {
+  }
+
+  /**
+   * Creates a pooled HTTP client. Pool limits, keep-alive, idle eviction and request timeouts can
+   * be overridden with system properties. The socket timeout bounds the wait for each read, not a
+   * whole request, so a large upload is never cut off while data keeps flowing. Requests go
+   * through the shared request throttle.
+   *
+   * @return the pooled HTTP client
+   */
+  static CloseableHttpClient createPooledHttpClient() {
+    int maxTotal = Integer.getInteger(MAX_CONNECTIONS_TOTAL_PROPERTY,
+        DEFAULT_MAX_CONNECTIONS_TOTAL);
+    int maxPerRoute = Integer.getInteger(MAX_CONNECTIONS_PER_ROUTE_PROPERTY,
+        DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    long keepAliveMillis = TimeUnit.SECONDS.toMillis(
+        Integer.getInteger(KEEP_ALIVE_SECONDS_PROPERTY, DEFAULT_KEEP_ALIVE_SECONDS));
+    int idleTimeoutSeconds = Integer.getInteger(IDLE_TIMEOUT_SECONDS_PROPERTY,
+        DEFAULT_IDLE_TIMEOUT_SECONDS);
+    // a half-open keep-alive connection or an exhausted pool would block a caller forever
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(getTimeoutMillis(CONNECT_TIMEOUT_SECONDS_PROPERTY,
+            DEFAULT_CONNECT_TIMEOUT_SECONDS))
+        .setSocketTimeout(getTimeoutMillis(SOCKET_TIMEOUT_SECONDS_PROPERTY,
+            DEFAULT_SOCKET_TIMEOUT_SECONDS))
+        .setConnectionRequestTimeout(getTimeoutMillis(CONNECTION_REQUEST_TIMEOUT_SECONDS_PROPERTY,
+            DEFAULT_CONNECTION_REQUEST_TIMEOUT_SECONDS))
+        .build();
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxTotal);
+    connectionManager.setDefaultMaxPerRoute(Math.min(maxPerRoute, maxTotal));
+    connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+    // servers usually omit the Keep-Alive header, which would mean "keep forever" by default
+    ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+      long serverKeepAlive =
+          DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+    };
+
+    CloseableHttpClient httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(keepAliveStrategy)
+        .setDefaultRequestConfig(requestConfig)
+        .evictExpiredConnections()
+        .evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+        .build();
+    return new ThrottledHttpClient(httpClient, RequestThrottle.getInstance());
+  }
+
+  // 0 disables a timeout, as in RequestConfig
+  private static int getTimeoutMillis(String property, int defaultSeconds) {
+    return (int) TimeUnit.SECONDS.toMillis(Math.max(0, Integer.getInteger(property,
+        defaultSeconds)));
+  }
+}
@@ -0,0 +1,80 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static com.quantumsoft.qupathcloud.dao.Constants.BEARER;
+import static com.quantumsoft.qupathcloud.dao.Constants.MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX;
+import static com.quantumsoft.qupathcloud.dao.Constants.PARAM_BOUNDARY;
+import static org.apache.http.HttpHeaders.ACCEPT;
+import static org.apache.http.HttpHeaders.AUTHORIZATION;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpStatusCodes;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Frame transport over the pooled HTTP/1.1 client shared by all dao requests.
+ */
+final class HttpClientFrameTransport implements FrameTransport {
+
+  private final OAuth20 oAuth20;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * Instantiates a new Http client frame transport.
+   *
+   * @param oAuth20 the oAuth20
+   * @param httpClient the shared HTTP client
+   */
+  HttpClientFrameTransport(OAuth20 oAuth20, CloseableHttpClient httpClient) {
+    this.oAuth20 = oAuth20;
+    this.httpClient = httpClient;
+  }
+
+  @Override
+  public List<ByteBuffer> retrieveFrames(URI uri) throws QuPathCloudException {
+    HttpGet request = new HttpGet(uri);
+    request.addHeader(ACCEPT, MULTIPART_RELATED_TYPE_IMAGE_JPEG_TRANSFER_SYNTAX);
+    Credential credential = oAuth20.getCredential();
+    request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
+        throw Retries.statusException(response);
+      }
+      HttpEntity entity = response.getEntity();
+      ContentType contentType = ContentType.get(entity);
+      String boundary = contentType == null ? null : contentType.getParameter(PARAM_BOUNDARY);
+
+      try (InputStream inputStream = entity.getContent()) {
+        return new MultipartRelatedReader(inputStream, boundary).readAllParts();
+      }
+    } catch (IOException e) {
+      throw new QuPathCloudException(e);
+    }
+  }
+}
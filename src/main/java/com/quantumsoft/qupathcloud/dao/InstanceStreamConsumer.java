@@ -0,0 +1,41 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.quantumsoft.qupathcloud.entities.instance.Instance;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Consumer of a downloaded Instance, reading the DICOM file as it arrives. A download is retried
+ * on transient failures, so the consumer may be called again for the same Instance and must not
+ * leave partial results behind.
+ */
+@FunctionalInterface
+public interface InstanceStreamConsumer {
+
+  /**
+   * Consumes an Instance.
+   *
+   * @param instance the Instance
+   * @param inputStream the DICOM file, closed by the caller
+   * @throws IOException if the stream can't be read
+   * @throws QuPathCloudException if the Instance can't be consumed
+   */
+  void accept(Instance instance, InputStream inputStream)
+      throws IOException, QuPathCloudException;
+}
@@ -0,0 +1,176 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Decoder of baseline JPEG frames. Unlike ImageIO.read, it doesn't look up a reader for every
+ * frame and reads the compressed bytes directly from the buffer without an intermediate stream
+ * cache. Colour frames are returned as TYPE_INT_RGB images, the type of the region image tiles are
+ * drawn into, so they can be copied without colour conversion. Readers are kept in a small pool,
+ * sized by -DquPathCloud.jpegReaderPoolSize (the number of processors by default).
+ */
+final class JpegTileDecoder {
+
+  private static final String JPEG_FORMAT_NAME = "jpeg";
+
+  private static final int READER_POOL_SIZE = Math.max(1, Integer.getInteger(
+      "quPathCloud.jpegReaderPoolSize", Runtime.getRuntime().availableProcessors()));
+
+  // ImageReader is not thread-safe, but it is expensive to create and holds native state until
+  // it is disposed, so idle readers are shared by all threads, virtual ones included
+  private static final BlockingQueue<ImageReader> IDLE_READERS =
+      new ArrayBlockingQueue<>(READER_POOL_SIZE);
+
+  private JpegTileDecoder() {
+  }
+
+  /**
+   * Decodes a JPEG frame.
+   *
+   * @param frame the compressed frame bytes
+   * @return the decoded frame, TYPE_INT_RGB for colour frames
+   * @throws IOException if the frame is not a valid JPEG image
+   */
+  static BufferedImage decode(ByteBuffer frame) throws IOException {
+    ImageReader reader = borrowReader();
+    boolean reusable = false;
+    try (ByteBufferImageInputStream input = new ByteBufferImageInputStream(frame.duplicate())) {
+      reader.setInput(input, true, true);
+      BufferedImage image = reader.read(0);
+      reusable = true;
+      return image.getColorModel().getNumComponents() == 3 ? toIntRgb(image) : image;
+    } catch (IIOException e) {
+      // a corrupt frame doesn't break the reader
+      reusable = true;
+      throw e;
+    } catch (IllegalArgumentException e) {
+      reusable = true;
+      throw new IIOException("Failed to decode JPEG frame", e);
+    } finally {
+      reader.setInput(null);
+      returnReader(reader, reusable);
+    }
+  }
+
+  /**
+   * Gets the number of idle readers kept for reuse.
+   *
+   * @return the number of idle readers
+   */
+  static int getIdleReaderCount() {
+    return IDLE_READERS.size();
+  }
+
+  private static ImageReader borrowReader() {
+    ImageReader reader = IDLE_READERS.poll();
+    if (reader != null) {
+      return reader;
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(JPEG_FORMAT_NAME);
+    if (!readers.hasNext()) {
+      throw new IllegalStateException("No JPEG image reader available");
+    }
+    return readers.next();
+  }
+
+  private static void returnReader(ImageReader reader, boolean reusable) {
+    // readers beyond the pool size, created while more threads decode at once, are released
+    if (!reusable || !IDLE_READERS.offer(reader)) {
+      reader.dispose();
+    }
+  }
+
+  private static BufferedImage toIntRgb(BufferedImage image) {
+    if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+      return image;
+    }
+    BufferedImage intRgb =
+        new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+      // decoding into an INT_RGB destination makes the JPEG reader convert every scanline through
+      // a generic path, packing its native BGR bytes afterwards is much cheaper
+      byte[] source = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+      int[] destination = ((DataBufferInt) intRgb.getRaster().getDataBuffer()).getData();
+      for (int i = 0, j = 0; i < destination.length; i++, j += 3) {
+        destination[i] =
+            (source[j + 2] & 0xff) << 16 | (source[j + 1] & 0xff) << 8 | source[j] & 0xff;
+      }
+    } else {
+      Graphics2D graphics = intRgb.createGraphics();
+      graphics.drawImage(image, 0, 0, null);
+      graphics.dispose();
+    }
+    return intRgb;
+  }
+
+  /**
+   * Image input stream over a buffer already holding the whole frame, so unlike the streams
+   * created by ImageIO it needs no cache.
+   */
+  private static final class ByteBufferImageInputStream extends ImageInputStreamImpl {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferImageInputStream(ByteBuffer buffer) {
+      this.buffer = buffer.slice();
+    }
+
+    @Override
+    public int read() {
+      bitOffset = 0;
+      if (streamPos >= buffer.limit()) {
+        return -1;
+      }
+      return buffer.get((int) streamPos++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      bitOffset = 0;
+      if (len == 0) {
+        return 0;
+      }
+      int available = buffer.limit() - (int) Math.min(streamPos, buffer.limit());
+      if (available <= 0) {
+        return -1;
+      }
+      int count = Math.min(len, available);
+      buffer.position((int) streamPos);
+      buffer.get(b, off, count);
+      streamPos += count;
+      return count;
+    }
+
+    @Override
+    public long length() {
+      return buffer.limit();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Process-wide JSON codec. ObjectMapper caches its serializers and deserializers, so one shared
+ * mapper only builds them once, and the readers of Healthcare API responses are cached per type.
+ * With -DquPathCloud.jsonAfterburner=true and jackson-module-afterburner on the classpath, the
+ * mapper also uses generated bytecode instead of reflection to access properties.
+ */
+public final class JsonCodec {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final String AFTERBURNER_PROPERTY = "quPathCloud.jsonAfterburner";
+  private static final String AFTERBURNER_MODULE =
+      "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+  private static final ObjectMapper MAPPER = createMapper();
+  private static final Map<Type, ObjectReader> RESPONSE_READERS = new ConcurrentHashMap<>();
+
+  private JsonCodec() {
+  }
+
+  /**
+   * Gets the shared mapper. It must not be reconfigured.
+   *
+   * @return the mapper
+   */
+  public static ObjectMapper getMapper() {
+    return MAPPER;
+  }
+
+  /**
+   * Gets the cached reader of Healthcare API responses of a type. Unknown properties are ignored,
+   * as the API may add fields at any time.
+   *
+   * @param typeReference the type of the response
+   * @param <T> the type of the response
+   * @return the reader
+   */
+  public static <T> ObjectReader getResponseReader(TypeReference<T> typeReference) {
+    return RESPONSE_READERS.computeIfAbsent(typeReference.getType(),
+        type -> MAPPER.readerFor(typeReference)
+            .without(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES));
+  }
+
+  private static ObjectMapper createMapper() {
+    ObjectMapper mapper = new ObjectMapper();
+    if (Boolean.getBoolean(AFTERBURNER_PROPERTY)) {
+      // an optional dependency, so it's only reachable through reflection
+      try {
+        mapper.registerModule((Module) Class.forName(AFTERBURNER_MODULE)
+            .getDeclaredConstructor().newInstance());
+      } catch (ReflectiveOperationException | LinkageError e) {
+        LOGGER.warn("Jackson Afterburner is not on the classpath, using reflection", e);
+      }
+    }
+    return mapper;
+  }
+}
@@ -0,0 +1,190 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming reader of multipart/related bodies, which the DICOMweb frames endpoint returns. The
+ * body is read in large chunks, and each part is returned as a slice of the buffer it was received
+ * into, without part headers and delimiters, so no separate array is allocated per part. Part
+ * bodies are still copied in two cases: a part larger than the buffer is copied each time the
+ * buffer doubles, about once in total, and the start of the next part, read together with the end
+ * of the current one, is moved into a new buffer.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc2046#section-5.1.1">RFC 2046 multipart syntax</a>
+ */
+final class MultipartRelatedReader {
+
+  private static final int READ_CHUNK_SIZE = 64 * 1024;
+  private static final byte[] CRLF = {'\r', '\n'};
+  private static final byte[] HEADERS_END = {'\r', '\n', '\r', '\n'};
+
+  private final InputStream inputStream;
+  private final byte[] delimiter;
+  // the CRLF preceding a delimiter belongs to the delimiter
+  private final byte[] innerDelimiter;
+
+  private byte[] buffer = new byte[READ_CHUNK_SIZE];
+  private int position;
+  private int limit;
+  private boolean started;
+  private boolean finished;
+
+  /**
+   * Instantiates a new Multipart related reader.
+   *
+   * @param inputStream the multipart body
+   * @param boundary the boundary parameter of the Content-Type header
+   * @throws QuPathCloudException if the boundary is absent
+   */
+  MultipartRelatedReader(InputStream inputStream, String boundary) throws QuPathCloudException {
+    if (boundary == null || boundary.isEmpty()) {
+      throw new QuPathCloudException("Multipart boundary is absent");
+    }
+    this.inputStream = inputStream;
+    this.delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+    this.innerDelimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Reads all remaining parts.
+   *
+   * @return the part bodies in the order of the body
+   * @throws IOException if the body can't be read
+   * @throws QuPathCloudException if the body is not a valid multipart body
+   */
+  List<ByteBuffer> readAllParts() throws IOException, QuPathCloudException {
+    List<ByteBuffer> parts = new ArrayList<>();
+    ByteBuffer part;
+    while ((part = nextPart()) != null) {
+      parts.add(part);
+    }
+    return parts;
+  }
+
+  /**
+   * Reads the next part.
+   *
+   * @return the part body or null after the close delimiter
+   * @throws IOException if the body can't be read
+   * @throws QuPathCloudException if the body is not a valid multipart body
+   */
+  ByteBuffer nextPart() throws IOException, QuPathCloudException {
+    if (finished) {
+      return null;
+    }
+    if (!started) {
+      // anything before the first delimiter is a preamble
+      int delimiterPosition = find(delimiter, position);
+      if (delimiterPosition < 0) {
+        throw new QuPathCloudException("Multipart boundary not found");
+      }
+      position = delimiterPosition + delimiter.length;
+      started = true;
+    }
+    if (!ensureAvailable(2)) {
+      throw new QuPathCloudException("Unexpected end of multipart body");
+    }
+    if (buffer[position] == '-' && buffer[position + 1] == '-') {
+      finished = true;
+      return null;
+    }
+
+    int headersEnd = find(HEADERS_END, position);
+    if (headersEnd < 0) {
+      throw new QuPathCloudException("Malformed multipart part headers");
+    }
+    int partStart = headersEnd + HEADERS_END.length;
+    int partEnd = find(innerDelimiter, partStart);
+    if (partEnd < 0) {
+      throw new QuPathCloudException("Multipart close delimiter not found");
+    }
+    ByteBuffer part = ByteBuffer.wrap(buffer, partStart, partEnd - partStart).slice();
+
+    // the part keeps the current buffer, the rest of the body continues in a new one, so the bytes
+    // already read past the part are copied
+    int restStart = partEnd + CRLF.length + delimiter.length;
+    int restLength = limit - restStart;
+    byte[] nextBuffer = new byte[Math.max(READ_CHUNK_SIZE, restLength + READ_CHUNK_SIZE)];
+    System.arraycopy(buffer, restStart, nextBuffer, 0, restLength);
+    buffer = nextBuffer;
+    position = 0;
+    limit = restLength;
+    return part;
+  }
+
+  private int find(byte[] pattern, int from) throws IOException {
+    int searchFrom = from;
+    while (true) {
+      int index = indexOf(pattern, searchFrom);
+      if (index >= 0) {
+        return index;
+      }
+      // a match may start in the already searched data and end in the next chunk
+      searchFrom = Math.max(from, limit - pattern.length + 1);
+      if (!fill()) {
+        return -1;
+      }
+    }
+  }
+
+  private boolean ensureAvailable(int count) throws IOException {
+    while (limit - position < count) {
+      if (!fill()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean fill() throws IOException {
+    if (limit == buffer.length) {
+      // the current part doesn't fit, the bytes read so far are copied into a larger buffer
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+    }
+    int read = inputStream.read(buffer, limit, buffer.length - limit);
+    if (read < 0) {
+      return false;
+    }
+    limit += read;
+    return true;
+  }
+
+  private int indexOf(byte[] pattern, int from) {
+    byte first = pattern[0];
+    for (int i = from; i <= limit - pattern.length; i++) {
+      if (buffer[i] != first) {
+        continue;
+      }
+      int j = 1;
+      while (j < pattern.length && buffer[i + j] == pattern[j]) {
+        j++;
+      }
+      if (j == pattern.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,247 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lazy, paged QIDO-RS search. Pages are requested with limit and offset as they are consumed, so
+ * only the pages in flight are held in memory. QIDO-RS doesn't report the total number of
+ * matches, so instead of fetching all pages at once a few pages ahead are fetched in parallel,
+ * until a page comes back empty. A shorter page doesn't end the search, as the server may cap the
+ * limit: the pages fetched ahead are dropped and the search continues right after that page, with
+ * its size as the limit.
+ *
+ * @param <T> the type of the results
+ */
+public final class QidoSearch<T> {
+
+  private static final ExecutorService EXECUTOR_SERVICE = IoExecutors.newExecutor("cloud-qido");
+  private static final int PAGE_SIZE =
+      Math.max(1, Integer.getInteger("quPathCloud.qidoPageSize", 1000));
+  private static final int PAGES_IN_FLIGHT =
+      Math.max(1, Integer.getInteger("quPathCloud.qidoPagesInFlight", 2));
+
+  private final PageLoader<T> pageLoader;
+  private final Deque<PageInFlight<T>> pagesInFlight = new ArrayDeque<>();
+  private int nextOffset;
+  private int pageSize = PAGE_SIZE;
+  private boolean lastPageRequested;
+
+  /**
+   * Loader of one page of results.
+   *
+   * @param <T> the type of the results
+   */
+  interface PageLoader<T> {
+
+    /**
+     * Loads a page of results.
+     *
+     * @param offset the number of results to skip
+     * @param limit the maximum number of results
+     * @return the results, empty past the last result
+     * @throws QuPathCloudException if an error occurs
+     */
+    List<T> loadPage(int offset, int limit) throws QuPathCloudException;
+  }
+
+  /**
+   * Loader of one page of results without blocking.
+   *
+   * @param <T> the type of the results
+   */
+  interface AsyncPageLoader<T> {
+
+    /**
+     * Loads a page of results.
+     *
+     * @param offset the number of results to skip
+     * @param limit the maximum number of results
+     * @return the future of the results, empty past the last result
+     */
+    CompletableFuture<List<T>> loadPage(int offset, int limit);
+  }
+
+  /**
+   * Instantiates a new QIDO-RS search.
+   *
+   * @param pageLoader the page loader
+   */
+  QidoSearch(PageLoader<T> pageLoader) {
+    this.pageLoader = pageLoader;
+  }
+
+  /**
+   * Gets the next page of results, fetching the following pages in the background.
+   *
+   * @return the next page or null if there are no more results
+   * @throws QuPathCloudException if a page can't be loaded
+   */
+  public synchronized List<T> nextPage() throws QuPathCloudException {
+    while (!lastPageRequested && pagesInFlight.size() < PAGES_IN_FLIGHT) {
+      int offset = nextOffset;
+      int limit = pageSize;
+      pagesInFlight.addLast(new PageInFlight<>(offset, limit,
+          EXECUTOR_SERVICE.submit(() -> pageLoader.loadPage(offset, limit))));
+      nextOffset += limit;
+    }
+    PageInFlight<T> pageInFlight = pagesInFlight.pollFirst();
+    if (pageInFlight == null) {
+      return null;
+    }
+    List<T> page;
+    try {
+      page = pageInFlight.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      close();
+      throw new QuPathCloudException(e);
+    } catch (ExecutionException e) {
+      close();
+      if (e.getCause() instanceof QuPathCloudException) {
+        throw (QuPathCloudException) e.getCause();
+      }
+      throw new QuPathCloudException(e.getCause());
+    }
+    if (page.isEmpty()) {
+      close();
+      return null;
+    }
+    if (page.size() < pageInFlight.limit) {
+      // either the last page or the server caps the limit, the pages fetched ahead skip results
+      // in the latter case, so the search goes on right after this page
+      cancelPagesInFlight();
+      nextOffset = pageInFlight.offset + page.size();
+      pageSize = page.size();
+    }
+    return page;
+  }
+
+  /**
+   * Gets all remaining results.
+   *
+   * @return the results
+   * @throws QuPathCloudException if a page can't be loaded
+   */
+  public List<T> toList() throws QuPathCloudException {
+    List<T> results = new ArrayList<>();
+    for (List<T> page = nextPage(); page != null; page = nextPage()) {
+      results.addAll(page);
+    }
+    return results;
+  }
+
+  /**
+   * Gets all results of a search without blocking a thread. Pages are requested with the same
+   * page size and the same number of pages in flight as by {@link #nextPage()}, until a page
+   * comes back empty, and a shorter page is handled the same way. Cancelling the returned future
+   * cancels the pages in flight.
+   *
+   * @param pageLoader the page loader
+   * @param <T> the type of the results
+   * @return the future of the results
+   */
+  static <T> CompletableFuture<List<T>> toListAsync(AsyncPageLoader<T> pageLoader) {
+    CompletableFuture<List<T>> result = new CompletableFuture<>();
+    List<CompletableFuture<List<T>>> pagesInFlight = new ArrayList<>();
+    loadPagesAsync(pageLoader, 0, PAGE_SIZE, new ArrayList<>(), pagesInFlight, result);
+    result.whenComplete((ignored, throwable) -> {
+      if (result.isCancelled()) {
+        synchronized (pagesInFlight) {
+          pagesInFlight.forEach(pageFuture -> pageFuture.cancel(true));
+        }
+      }
+    });
+    return result;
+  }
+
+  private static <T> void loadPagesAsync(AsyncPageLoader<T> pageLoader, int offset, int pageSize,
+      List<T> results, List<CompletableFuture<List<T>>> pagesInFlight,
+      CompletableFuture<List<T>> result) {
+    List<CompletableFuture<List<T>>> pages = new ArrayList<>();
+    synchronized (pagesInFlight) {
+      if (result.isDone()) {
+        return;
+      }
+      pagesInFlight.clear();
+      for (int page = 0; page < PAGES_IN_FLIGHT; page++) {
+        pages.add(pageLoader.loadPage(offset + page * pageSize, pageSize));
+      }
+      pagesInFlight.addAll(pages);
+    }
+    CompletableFuture.allOf(pages.toArray(new CompletableFuture<?>[0]))
+        .whenComplete((ignored, throwable) -> {
+          if (throwable != null) {
+            result.completeExceptionally(throwable);
+            return;
+          }
+          for (int i = 0; i < pages.size(); i++) {
+            List<T> page = pages.get(i).join();
+            if (page.isEmpty()) {
+              result.complete(results);
+              return;
+            }
+            results.addAll(page);
+            if (page.size() < pageSize) {
+              // either the last page or the server caps the limit, see nextPage
+              loadPagesAsync(pageLoader, offset + i * pageSize + page.size(), page.size(),
+                  results, pagesInFlight, result);
+              return;
+            }
+          }
+          loadPagesAsync(pageLoader, offset + PAGES_IN_FLIGHT * pageSize, pageSize, results,
+              pagesInFlight, result);
+        });
+  }
+
+  /**
+   * Stops the search, cancelling the pages fetched ahead.
+   */
+  public synchronized void close() {
+    lastPageRequested = true;
+    cancelPagesInFlight();
+  }
+
+  private void cancelPagesInFlight() {
+    for (PageInFlight<T> pageInFlight : pagesInFlight) {
+      pageInFlight.future.cancel(false);
+    }
+    pagesInFlight.clear();
+  }
+
+  private static final class PageInFlight<T> {
+
+    private final int offset;
+    private final int limit;
+    private final Future<List<T>> future;
+
+    PageInFlight(int offset, int limit, Future<List<T>> future) {
+      this.offset = offset;
+      this.limit = limit;
+      this.future = future;
+    }
+  }
+}
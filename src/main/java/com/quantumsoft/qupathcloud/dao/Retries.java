@@ -0,0 +1,212 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.google.api.client.http.HttpStatusCodes;
+import com.quantumsoft.qupathcloud.exception.HttpStatusException;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Retries of Healthcare API requests. A request failing with 429, a 5xx status or an I/O error is
+ * sent again after a jittered exponential backoff, or after the delay of the Retry-After header if
+ * that's longer. The number of retries and the backoff bounds can be overridden with system
+ * properties.
+ */
+final class Retries {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int MAX_RETRIES =
+      Math.max(0, Integer.getInteger("quPathCloud.maxRetries", 5));
+  private static final long BASE_DELAY_MILLIS =
+      Math.max(1, Long.getLong("quPathCloud.retryBaseDelayMillis", 500));
+  private static final long MAX_DELAY_MILLIS =
+      Math.max(BASE_DELAY_MILLIS, Long.getLong("quPathCloud.retryMaxDelayMillis", 30_000));
+
+  private Retries() {
+  }
+
+  /**
+   * Calls an operation, retrying it on transient failures.
+   *
+   * @param operation the operation
+   * @param <V> the type of the result
+   * @return the result
+   * @throws QuPathCloudException if the operation fails permanently or runs out of retries
+   */
+  static <V> V call(Callable<V> operation) throws QuPathCloudException {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        return operation.call();
+      } catch (Exception e) {
+        if (attempt >= MAX_RETRIES || !isRetryable(e)) {
+          throw e instanceof QuPathCloudException
+              ? (QuPathCloudException) e : new QuPathCloudException(e);
+        }
+        long delayMillis = getDelayMillis(attempt, e);
+        LOGGER.warn("Request failed, retrying in {} ms: {}", delayMillis, e.toString());
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException interruptedException) {
+          Thread.currentThread().interrupt();
+          throw new QuPathCloudException(interruptedException);
+        }
+      }
+    }
+  }
+
+  /**
+   * Wraps an operation, so it's retried on transient failures.
+   *
+   * @param operation the operation
+   * @param <V> the type of the result
+   * @return the retrying operation
+   */
+  static <V> Callable<V> withRetries(Callable<V> operation) {
+    return () -> call(operation);
+  }
+
+  /**
+   * Starts an asynchronous operation, starting it again on transient failures. The backoff
+   * doesn't block a thread, and cancelling the returned future cancels the attempt in flight.
+   *
+   * @param operation the supplier of the future of an attempt
+   * @param <V> the type of the result
+   * @return the future of the result
+   */
+  static <V> CompletableFuture<V> callAsync(Supplier<CompletableFuture<V>> operation) {
+    CompletableFuture<V> result = new CompletableFuture<>();
+    AtomicReference<CompletableFuture<V>> attemptInFlight = new AtomicReference<>();
+    result.whenComplete((ignored, throwable) -> {
+      CompletableFuture<V> attempt = attemptInFlight.get();
+      if (result.isCancelled() && attempt != null) {
+        attempt.cancel(true);
+      }
+    });
+    attemptAsync(operation, 0, result, attemptInFlight);
+    return result;
+  }
+
+  /**
+   * Creates the exception of an unexpected response status.
+   *
+   * @param response the response
+   * @return the exception
+   */
+  static HttpStatusException statusException(HttpResponse response) {
+    return new HttpStatusException(response.getStatusLine().getStatusCode(),
+        response.containsHeader(HttpHeaders.RETRY_AFTER)
+            ? parseRetryAfterMillis(response.getFirstHeader(HttpHeaders.RETRY_AFTER).getValue())
+            : -1);
+  }
+
+  /**
+   * Parses a Retry-After header, either delay seconds or an HTTP date.
+   *
+   * @param retryAfter the header value or null if absent
+   * @return the delay in milliseconds or -1 if absent or invalid
+   */
+  static long parseRetryAfterMillis(String retryAfter) {
+    if (retryAfter == null) {
+      return -1;
+    }
+    try {
+      return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(retryAfter.trim());
+      return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+  }
+
+  private static <V> void attemptAsync(Supplier<CompletableFuture<V>> operation, int attempt,
+      CompletableFuture<V> result, AtomicReference<CompletableFuture<V>> attemptInFlight) {
+    if (result.isDone()) {
+      return;
+    }
+    CompletableFuture<V> future = operation.get();
+    attemptInFlight.set(future);
+    future.whenComplete((value, throwable) -> {
+      if (throwable == null) {
+        result.complete(value);
+        return;
+      }
+      Throwable failure = throwable instanceof CompletionException
+          || throwable instanceof ExecutionException ? throwable.getCause() : throwable;
+      if (attempt >= MAX_RETRIES || !isRetryable(failure)) {
+        result.completeExceptionally(failure);
+        return;
+      }
+      long delayMillis = getDelayMillis(attempt, failure);
+      LOGGER.warn("Request failed, retrying in {} ms: {}", delayMillis, failure.toString());
+      CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(
+          () -> attemptAsync(operation, attempt + 1, result, attemptInFlight));
+    });
+  }
+
+  private static boolean isRetryable(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof HttpStatusException) {
+        int statusCode = ((HttpStatusException) cause).getStatusCode();
+        return statusCode == TOO_MANY_REQUESTS
+            || statusCode >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR;
+      }
+      // a missing or unreadable local file won't appear by retrying
+      if (cause instanceof FileNotFoundException || cause instanceof FileSystemException) {
+        return false;
+      }
+      if (cause instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Gets the delay before the next attempt, at least the Retry-After delay of a response.
+   *
+   * @param attempt the number of the failed attempt, starting at 0
+   * @param failure the failure of the attempt
+   * @return the delay in milliseconds
+   */
+  static long getDelayMillis(int attempt, Throwable failure) {
+    long backoff = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt, 30));
+    // equal jitter keeps concurrent retries apart while still backing off
+    long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof HttpStatusException) {
+        return Math.max(delay, ((HttpStatusException) cause).getRetryAfterMillis());
+      }
+    }
+    return delay;
+  }
+}
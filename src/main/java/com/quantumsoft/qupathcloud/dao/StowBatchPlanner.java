@@ -0,0 +1,62 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Planner of STOW-RS requests. Consecutive files are packed into one multipart/related request
+ * until it reaches a byte or an Instance budget, so small Instances share a round trip while a
+ * large Instance gets a request of its own.
+ */
+final class StowBatchPlanner {
+
+  private StowBatchPlanner() {
+  }
+
+  /**
+   * Packs files into requests, keeping their order.
+   *
+   * @param files the files
+   * @param sizes the size of each file
+   * @param maxBytes the byte budget of a request, a larger file is sent alone
+   * @param maxInstances the Instance budget of a request
+   * @return the files of each request
+   */
+  static List<List<Path>> plan(List<Path> files, ToLongFunction<Path> sizes, long maxBytes,
+      int maxInstances) {
+    List<List<Path>> batches = new ArrayList<>();
+    List<Path> batch = new ArrayList<>();
+    long batchBytes = 0;
+    for (Path file : files) {
+      long size = sizes.applyAsLong(file);
+      if (!batch.isEmpty() && (batch.size() >= maxInstances || batchBytes + size > maxBytes)) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchBytes = 0;
+      }
+      batch.add(file);
+      batchBytes += size;
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+    return batches;
+  }
+}
@@ -0,0 +1,199 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static com.quantumsoft.qupathcloud.concurrent.OperationType.UPLOAD;
+import static com.quantumsoft.qupathcloud.dao.Constants.HEALTHCARE_HOST;
+import static com.quantumsoft.qupathcloud.dao.Constants.SCHEME;
+
+import com.quantumsoft.qupathcloud.dao.spec.QueryBuilder;
+import com.quantumsoft.qupathcloud.dao.spec.StudiesPathBuilder;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * STOW-RS upload of DICOM files, shared by the blocking and the asynchronous Cloud dao. The files
+ * are packed into multipart/related requests by {@link StowBatchPlanner}, at most the configured
+ * number of requests (-DquPathCloud.maxConcurrentUploads) are in flight at once, and the files of
+ * a failed request are retried one by one, so one bad Instance doesn't fail the others. Requests
+ * are sent with the pooled HTTP client, which has no timeout on the request as a whole, so a large
+ * body is never cut off while it's being sent.
+ */
+final class StowUploader {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  // -DquPathCloud.maxInstancesPerStowRequest=1 restores one request per file
+  private static final int MAX_INSTANCES_PER_STOW_REQUEST =
+      Math.max(1, Integer.getInteger("quPathCloud.maxInstancesPerStowRequest", 16));
+  private static final long MAX_STOW_REQUEST_BYTES =
+      Long.getLong("quPathCloud.maxStowRequestBytes", 64L * 1024 * 1024);
+  private static final String STOW_REFUSED = "DICOM Store refused to store ";
+
+  private final OAuth20 oAuth20;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * Instantiates a new STOW-RS uploader.
+   *
+   * @param oAuth20 the oAuth20
+   * @param httpClient the shared HTTP client
+   */
+  StowUploader(OAuth20 oAuth20, CloseableHttpClient httpClient) {
+    this.oAuth20 = oAuth20;
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * Uploads DICOM files to the DICOM Store. With a journal, files it marks done are skipped and
+   * each stored file is marked done. Interrupting the calling thread cancels the requests in
+   * flight.
+   *
+   * @param queryBuilder the query builder with paths of the files
+   * @throws QuPathCloudException if a file isn't stored or an error occurs
+   */
+  void upload(QueryBuilder queryBuilder) throws QuPathCloudException {
+    StudiesPathBuilder studiesPathBuilder = new StudiesPathBuilder(queryBuilder);
+    URIBuilder uriBuilder = new URIBuilder()
+        .setScheme(SCHEME)
+        .setHost(HEALTHCARE_HOST)
+        .setPath(studiesPathBuilder.toPath());
+    TransferJournal journal = queryBuilder.getJournal();
+    List<Path> inputFiles = new ArrayList<>();
+    for (Path inputFile : queryBuilder.getPaths()) {
+      if (journal == null || !journal.isDone(inputFile.getFileName().toString())) {
+        inputFiles.add(inputFile);
+      }
+    }
+    Map<Path, Long> sizes = new HashMap<>();
+    long totalBytes = 0;
+    try {
+      for (Path inputFile : inputFiles) {
+        long size = Files.size(inputFile);
+        sizes.put(inputFile, size);
+        totalBytes += size;
+      }
+    } catch (IOException e) {
+      throw new QuPathCloudException(e);
+    }
+    TransferProgress progress = new TransferProgress("Upload to DICOM Store", totalBytes);
+    List<List<Path>> batches = StowBatchPlanner.plan(inputFiles, sizes::get,
+        MAX_STOW_REQUEST_BYTES, MAX_INSTANCES_PER_STOW_REQUEST);
+    ExecutorService executorService = UPLOAD.newExecutor();
+    List<Exception> failures = new ArrayList<>();
+    try {
+      List<Path> retryFiles = new ArrayList<>();
+      List<Future<List<Path>>> list = submitUploads(executorService, uriBuilder, batches, progress);
+      for (int i = 0; i < list.size(); i++) {
+        List<Path> batch = batches.get(i);
+        List<Path> failedFiles;
+        try {
+          failedFiles = getUploadResult(list.get(i));
+        } catch (QuPathCloudException e) {
+          if (batch.size() == 1) {
+            failures.add(e);
+            continue;
+          }
+          LOGGER.warn("STOW-RS request of {} files failed, retrying them one by one",
+              batch.size(), e);
+          failedFiles = batch;
+        }
+        markStored(journal, batch, failedFiles);
+        if (batch.size() > 1) {
+          retryFiles.addAll(failedFiles);
+        } else if (!failedFiles.isEmpty()) {
+          failures.add(new QuPathCloudException(STOW_REFUSED + failedFiles.get(0)));
+        }
+      }
+
+      // files of a failed request are retried alone, so one bad Instance doesn't fail the others
+      List<List<Path>> retryBatches = new ArrayList<>();
+      for (Path retryFile : retryFiles) {
+        retryBatches.add(Collections.singletonList(retryFile));
+      }
+      list = submitUploads(executorService, uriBuilder, retryBatches, progress);
+      for (int i = 0; i < list.size(); i++) {
+        List<Path> failedFiles;
+        try {
+          failedFiles = getUploadResult(list.get(i));
+        } catch (QuPathCloudException e) {
+          failures.add(e);
+          continue;
+        }
+        markStored(journal, retryBatches.get(i), failedFiles);
+        if (!failedFiles.isEmpty()) {
+          failures.add(new QuPathCloudException(STOW_REFUSED + failedFiles.get(0)));
+        }
+      }
+    } finally {
+      // every request is done unless the upload is interrupted, then the rest are cancelled
+      executorService.shutdownNow();
+    }
+    CloudDaoImpl.throwIfFailed(failures, inputFiles.size(), "uploads");
+  }
+
+  private static void markStored(TransferJournal journal, List<Path> batch,
+      List<Path> failedFiles) throws QuPathCloudException {
+    if (journal == null) {
+      return;
+    }
+    for (Path file : batch) {
+      if (!failedFiles.contains(file)) {
+        journal.markDone(file.getFileName().toString());
+      }
+    }
+  }
+
+  private List<Future<List<Path>>> submitUploads(ExecutorService executorService,
+      URIBuilder uriBuilder, List<List<Path>> batches, TransferProgress progress) {
+    List<Future<List<Path>>> list = new ArrayList<>();
+    for (List<Path> batch : batches) {
+      UploadDicomCallable uploadDicomCallable = new UploadDicomCallable(oAuth20,
+          httpClient, batch, uriBuilder, progress);
+      list.add(executorService.submit(Retries.withRetries(UPLOAD.limit(uploadDicomCallable))));
+    }
+    return list;
+  }
+
+  private static List<Path> getUploadResult(Future<List<Path>> future)
+      throws QuPathCloudException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new QuPathCloudException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof QuPathCloudException) {
+        throw (QuPathCloudException) e.getCause();
+      }
+      throw new QuPathCloudException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.quantumsoft.qupathcloud.concurrent.RequestThrottle;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * HTTP client sending every request through the {@link RequestThrottle}. A permit is held until
+ * the response headers arrive, reading the body is limited by the operation types instead.
+ */
+final class ThrottledHttpClient extends CloseableHttpClient {
+
+  private final CloseableHttpClient httpClient;
+  private final RequestThrottle throttle;
+
+  /**
+   * Instantiates a new Throttled http client.
+   *
+   * @param httpClient the client sending the requests
+   * @param throttle the throttle
+   */
+  ThrottledHttpClient(CloseableHttpClient httpClient, RequestThrottle throttle) {
+    this.httpClient = httpClient;
+    this.throttle = throttle;
+  }
+
+  @Override
+  protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request,
+      HttpContext context) throws IOException {
+    RequestThrottle.Permit permit;
+    try {
+      permit = throttle.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the request throttle");
+    }
+    int statusCode = -1;
+    try {
+      CloseableHttpResponse response = httpClient.execute(target, request, context);
+      statusCode = response.getStatusLine().getStatusCode();
+      return response;
+    } finally {
+      permit.release(statusCode, request instanceof HttpEntityEnclosingRequest);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  @Override
+  @Deprecated
+  public HttpParams getParams() {
+    return httpClient.getParams();
+  }
+
+  @Override
+  @Deprecated
+  public ClientConnectionManager getConnectionManager() {
+    return httpClient.getConnectionManager();
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persisted journal of finished transfer steps, so an interrupted transfer resumes where it
+ * stopped. Each finished step is a line of its key appended to the journal file and forced to
+ * the disk before the step counts as done.
+ */
+public final class TransferJournal implements Closeable {
+
+  private final Path journalFile;
+  private final Set<String> doneKeys = ConcurrentHashMap.newKeySet();
+  private FileChannel channel;
+
+  private TransferJournal(Path journalFile) {
+    this.journalFile = journalFile;
+  }
+
+  /**
+   * Opens a journal, creating it if it doesn't exist.
+   *
+   * @param journalFile the journal file
+   * @return the journal
+   * @throws QuPathCloudException if an I/O error occurs
+   */
+  public static TransferJournal open(Path journalFile) throws QuPathCloudException {
+    TransferJournal journal = new TransferJournal(journalFile);
+    try {
+      Files.createDirectories(journalFile.toAbsolutePath().getParent());
+      if (Files.exists(journalFile)) {
+        String content = new String(Files.readAllBytes(journalFile), UTF_8);
+        String[] lines = content.split("\n", -1);
+        // the last line is either empty or torn by a crash before its line break
+        for (int i = 0; i < lines.length - 1; i++) {
+          if (!lines[i].isEmpty()) {
+            journal.doneKeys.add(lines[i]);
+          }
+        }
+      }
+      journal.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      throw new QuPathCloudException(e);
+    }
+    return journal;
+  }
+
+  /**
+   * Gets journal file.
+   *
+   * @return the journal file
+   */
+  public Path getJournalFile() {
+    return journalFile;
+  }
+
+  /**
+   * Checks whether a step is done.
+   *
+   * @param key the key of the step, without line breaks
+   * @return true if the step is done
+   */
+  public boolean isDone(String key) {
+    return doneKeys.contains(key);
+  }
+
+  /**
+   * Marks a step done.
+   *
+   * @param key the key of the step, without line breaks
+   * @throws QuPathCloudException if an I/O error occurs
+   */
+  public synchronized void markDone(String key) throws QuPathCloudException {
+    if (!doneKeys.add(key)) {
+      return;
+    }
+    // a torn previous line is ended first, so it doesn't swallow this key
+    ByteBuffer line = ByteBuffer.wrap(("\n" + key + "\n").getBytes(UTF_8));
+    try {
+      while (line.hasRemaining()) {
+        channel.write(line);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      doneKeys.remove(key);
+      throw new QuPathCloudException(e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Progress of a transfer of many files by concurrent requests. It's logged at every tenth of the
+ * total bytes.
+ */
+final class TransferProgress {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int STEPS = 10;
+
+  private final String name;
+  private final long totalBytes;
+  private final AtomicLong transferredBytes = new AtomicLong();
+  private final AtomicInteger loggedStep = new AtomicInteger();
+
+  /**
+   * Instantiates a new transfer progress.
+   *
+   * @param name the name of the transfer in the log
+   * @param totalBytes the total bytes to transfer
+   */
+  TransferProgress(String name, long totalBytes) {
+    this.name = name;
+    this.totalBytes = totalBytes;
+  }
+
+  /**
+   * Adds transferred bytes.
+   *
+   * @param bytes the bytes
+   */
+  void add(long bytes) {
+    long transferred = transferredBytes.addAndGet(bytes);
+    if (totalBytes <= 0) {
+      return;
+    }
+    int step = (int) Math.min(STEPS, transferred * STEPS / totalBytes);
+    int logged = loggedStep.get();
+    if (step > logged && loggedStep.compareAndSet(logged, step)) {
+      LOGGER.info("{}: {} of {} MB ({}%)", name, transferred >> 20, totalBytes >> 20,
+          step * 100 / STEPS);
+    }
+  }
+
+  /**
+   * Gets transferred bytes.
+   *
+   * @return the transferred bytes
+   */
+  long getTransferredBytes() {
+    return transferredBytes.get();
+  }
+}
@@ -16,83 +16,171 @@
 package com.quantumsoft.qupathcloud.dao;
 
 import static com.quantumsoft.qupathcloud.dao.Constants.BEARER;
-import static com.quantumsoft.qupathcloud.dao.Constants.MULTIPART_RELATED_TYPE_APPLICATION_DICOM_BOUNDARY;
-import static com.quantumsoft.qupathcloud.exception.Errors.FAILED_HTTP;
+import static org.apache.http.HttpHeaders.ACCEPT;
 import static org.apache.http.HttpHeaders.AUTHORIZATION;
-import static org.apache.http.entity.mime.MIME.CONTENT_TYPE;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.http.HttpStatusCodes;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import com.quantumsoft.qupathcloud.oauth20.OAuth20;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
 
 /**
- * Upload DICOM file to chosen DICOM Store.
+ * Upload DICOM files to chosen DICOM Store, all in one STOW-RS request. The DICOM Store stores
+ * each Instance of the request on its own, so the result is the files it refused. Instances it
+ * already stores, e.g. from an attempt whose response was lost, count as stored.
  */
-public class UploadDicomCallable implements Callable<Void> {
+public class UploadDicomCallable implements Callable<List<Path>> {
 
   private static final Logger LOGGER = LogManager.getLogger();
+  private static final String APPLICATION_DICOM_JSON = "application/dicom+json";
+  private static final String VALUE = "Value";
+  private static final String FAILED_SOP_SEQUENCE = "00081198";
+  private static final String REFERENCED_SOP_INSTANCE_UID = "00081155";
+  private static final String FAILURE_REASON = "00081197";
+  // 0111H Duplicate SOP Instance of PS3.7, and the reason the Healthcare API gives for an Instance
+  // it already stores
+  private static final Set<Integer> DUPLICATE_FAILURE_REASONS =
+      new HashSet<>(Arrays.asList(0x0111, 45070));
   private OAuth20 oAuth20;
-  private Path inputFile;
+  private CloseableHttpClient httpClient;
+  private List<Path> inputFiles;
   private URIBuilder uriBuilder;
+  private TransferProgress progress;
 
   /**
    * Instantiates a new Upload dicom callable.
    *
    * @param oAuth20 the oAuth20
-   * @param inputFile the input file
+   * @param httpClient the shared HTTP client
+   * @param inputFiles the input files
    * @param uriBuilder the uri builder
+   * @param progress the progress of the whole upload
    */
-  UploadDicomCallable(OAuth20 oAuth20, Path inputFile, URIBuilder uriBuilder) {
+  UploadDicomCallable(OAuth20 oAuth20, CloseableHttpClient httpClient, List<Path> inputFiles,
+      URIBuilder uriBuilder, TransferProgress progress) {
     this.oAuth20 = oAuth20;
-    this.inputFile = inputFile;
+    this.httpClient = httpClient;
+    this.inputFiles = inputFiles;
     this.uriBuilder = uriBuilder;
+    this.progress = progress;
   }
 
   @Override
-  public Void call() throws IOException, QuPathCloudException, URISyntaxException {
-    try (CloseableHttpClient httpclient = HttpClients.createDefault()) {
-      URI uri = uriBuilder.build();
-      HttpPost request = new HttpPost(uri);
+  public List<Path> call() throws IOException, QuPathCloudException, URISyntaxException {
+    URI uri = uriBuilder.build();
+    HttpPost request = new HttpPost(uri);
 
-      ContentType contentType = ContentType.create("application/dicom");
-      String boundary = UUID.randomUUID().toString();
+    String boundary = UUID.randomUUID().toString();
+    DicomMultipartEntity multipartEntity =
+        new DicomMultipartEntity(inputFiles, boundary, progress);
+    request.setEntity(multipartEntity);
 
-      HttpEntity httpEntity = MultipartEntityBuilder
-          .create()
-          .setBoundary(boundary)
-          .addBinaryBody("DICOMFile", inputFile.toFile(), contentType,
-              inputFile.getFileName().toString())
-          .build();
-      request.setEntity(httpEntity);
+    Credential credential = oAuth20.getCredential();
+    request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
+    request.addHeader(ACCEPT, APPLICATION_DICOM_JSON);
+    LOGGER.debug("Start uploading {} DICOM files", inputFiles.size());
+    List<Path> failedFiles;
+    try (CloseableHttpResponse response = httpClient.execute(request)) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      try {
+        if (statusCode == HttpStatusCodes.STATUS_CODE_OK) {
+          return Collections.emptyList();
+        }
+        // 202 means some Instances failed, 409 all of them, the body tells which ones
+        if ((statusCode != HttpStatus.SC_ACCEPTED && statusCode != HttpStatus.SC_CONFLICT)
+            || entity == null) {
+          throw Retries.statusException(response);
+        }
+        Set<String> failedUIDs = readFailedSopInstanceUIDs(entity.getContent());
+        if (failedUIDs == null) {
+          throw Retries.statusException(response);
+        }
+        // a resent request gets a conflict for the Instances a previous attempt stored
+        failedFiles = failedUIDs.isEmpty() ? Collections.emptyList() : getFailedFiles(failedUIDs);
+      } finally {
+        // the response must be consumed for the connection to return to the pool
+        EntityUtils.consume(entity);
+      }
+    } catch (IOException | QuPathCloudException | RuntimeException e) {
+      // a retry sends all files again, so the progress counts them once
+      multipartEntity.discardProgress();
+      throw e;
+    }
+    multipartEntity.discardProgress(failedFiles);
+    return failedFiles;
+  }
 
-      request.addHeader(CONTENT_TYPE, MULTIPART_RELATED_TYPE_APPLICATION_DICOM_BOUNDARY + boundary);
-      Credential credential = oAuth20.getCredential();
-      request.addHeader(AUTHORIZATION, BEARER + credential.getAccessToken());
-      LOGGER.debug("Start uploading DICOM file");
-      try (CloseableHttpResponse response = httpclient.execute(request)) {
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode != HttpStatusCodes.STATUS_CODE_OK) {
-          throw new QuPathCloudException(FAILED_HTTP + statusCode);
+  // returns the refused Instances without the ones already stored, null if none are listed
+  private static Set<String> readFailedSopInstanceUIDs(InputStream inputStream)
+      throws IOException {
+    JsonNode response = JsonCodec.getMapper().readTree(inputStream);
+    if (response == null) {
+      return null;
+    }
+    Set<String> failedUIDs = new HashSet<>();
+    boolean listed = false;
+    for (JsonNode failedSop : response.path(FAILED_SOP_SEQUENCE).path(VALUE)) {
+      String uid = failedSop.path(REFERENCED_SOP_INSTANCE_UID).path(VALUE).path(0).asText(null);
+      if (uid == null) {
+        continue;
+      }
+      listed = true;
+      JsonNode failureReason = failedSop.path(FAILURE_REASON).path(VALUE).path(0);
+      if (DUPLICATE_FAILURE_REASONS.contains(failureReason.asInt(-1))) {
+        LOGGER.info("DICOM Store already stores Instance {}", uid);
+        continue;
+      }
+      failedUIDs.add(uid);
+      LOGGER.warn("DICOM Store refused Instance {}, Failure Reason: {}", uid,
+          failureReason.asText("unknown"));
+    }
+    return listed ? failedUIDs : null;
+  }
+
+  // a file whose SOP Instance UID can't be read is counted as failed, so it gets retried alone
+  private List<Path> getFailedFiles(Set<String> failedUIDs) {
+    List<Path> failedFiles = new ArrayList<>();
+    for (Path inputFile : inputFiles) {
+      String uid = null;
+      try (DicomInputStream dis = new DicomInputStream(inputFile.toFile())) {
+        Attributes fileMetaInformation = dis.readFileMetaInformation();
+        if (fileMetaInformation != null) {
+          uid = fileMetaInformation.getString(Tag.MediaStorageSOPInstanceUID);
         }
+      } catch (IOException e) {
+        LOGGER.warn("Failed to read SOP Instance UID of {}", inputFile, e);
+      }
+      if (uid == null || failedUIDs.contains(uid)) {
+        failedFiles.add(inputFile);
       }
     }
-    return null;
+    return failedFiles;
   }
 }
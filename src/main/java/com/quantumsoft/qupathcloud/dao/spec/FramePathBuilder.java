@@ -27,10 +27,12 @@ import static com.quantumsoft.qupathcloud.dao.Constants.STAGE;
 import static com.quantumsoft.qupathcloud.dao.Constants.STUDIES;
 
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.util.StringJoiner;
 
 /**
  * FramePathBuilder builds a path to access a frame in the specified Project, Location, Dataset,
- * DICOM Store, Study, Series, and Instance.
+ * DICOM Store, Study, Series, and Instance. If frame numbers are set, the path is built for all of
+ * these frames, which are then retrieved in one multipart response.
  */
 public class FramePathBuilder implements PathBuilder {
 
@@ -65,12 +67,29 @@ public class FramePathBuilder implements PathBuilder {
     if (queryBuilder.getInstanceId() == null) {
       throw new QuPathCloudException("Instance must not be null!");
     }
-    if (queryBuilder.getFrameNumber() <= 0) {
-      throw new QuPathCloudException("Frame must be > 0!");
+    String frames;
+    int[] frameNumbers = queryBuilder.getFrameNumbers();
+    if (frameNumbers != null) {
+      if (frameNumbers.length == 0) {
+        throw new QuPathCloudException("Frames must not be empty!");
+      }
+      StringJoiner joiner = new StringJoiner(",");
+      for (int frameNumber : frameNumbers) {
+        if (frameNumber <= 0) {
+          throw new QuPathCloudException("Frame must be > 0!");
+        }
+        joiner.add(Integer.toString(frameNumber));
+      }
+      frames = joiner.toString();
+    } else {
+      if (queryBuilder.getFrameNumber() <= 0) {
+        throw new QuPathCloudException("Frame must be > 0!");
+      }
+      frames = Integer.toString(queryBuilder.getFrameNumber());
     }
     return STAGE + PROJECTS + queryBuilder.getProjectId() + LOCATIONS + queryBuilder.getLocationId()
         + DATASETS + queryBuilder.getDatasetId() + DICOM_STORES + queryBuilder.getDicomStoreId() +
         DICOM_WEB + STUDIES + queryBuilder.getStudyId() + SERIES + queryBuilder.getSeriesId() +
-        INSTANCES + queryBuilder.getInstanceId() + FRAMES + queryBuilder.getFrameNumber();
+        INSTANCES + queryBuilder.getInstanceId() + FRAMES + frames;
   }
 }
@@ -15,10 +15,14 @@
 
 package com.quantumsoft.qupathcloud.dao.spec;
 
+import com.quantumsoft.qupathcloud.dao.TransferJournal;
 import com.quantumsoft.qupathcloud.entities.Location;
 import com.quantumsoft.qupathcloud.entities.instance.Instance;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Query builder for creating a query for Healthcare API.
@@ -33,10 +37,14 @@ public class QueryBuilder {
   private String seriesId;
   private String instanceId;
   private int frameNumber;
+  private int[] frameNumbers;
   private List<Path> paths;
   private Path directory;
+  private TransferJournal journal;
   private List<Location> locations;
   private List<Instance> instances;
+  private Map<String, String> attributeMatches = new LinkedHashMap<>();
+  private List<String> includeFields;
 
   private QueryBuilder() {
   }
@@ -55,10 +63,14 @@ public class QueryBuilder {
     this.seriesId = original.seriesId;
     this.instanceId = original.instanceId;
     this.frameNumber = original.frameNumber;
+    this.frameNumbers = original.frameNumbers;
     this.paths = original.paths;
     this.directory = original.directory;
+    this.journal = original.journal;
     this.locations = original.locations;
     this.instances = original.instances;
+    this.attributeMatches = new LinkedHashMap<>(original.attributeMatches);
+    this.includeFields = original.includeFields;
   }
 
   /**
@@ -150,6 +162,17 @@ public class QueryBuilder {
     return this;
   }
 
+  /**
+   * Sets frame numbers for retrieving several frames of an Instance in one request.
+   *
+   * @param frameNumbers the frame numbers
+   * @return the frame numbers
+   */
+  public QueryBuilder setFrameNumbers(int[] frameNumbers) {
+    this.frameNumbers = frameNumbers;
+    return this;
+  }
+
   /**
    * Sets paths.
    *
@@ -172,6 +195,44 @@ public class QueryBuilder {
     return this;
   }
 
+  /**
+   * Sets journal, uploads then skip the files it marks done and mark each stored file done.
+   * Files are journaled by file name.
+   *
+   * @param journal the journal
+   * @return the query builder
+   */
+  public QueryBuilder setJournal(TransferJournal journal) {
+    this.journal = journal;
+    return this;
+  }
+
+  /**
+   * Adds an attribute match, searches then only return Series or Instances whose attribute has
+   * this value. Matches are sent as QIDO-RS query parameters, so the filtering is done by the
+   * server.
+   *
+   * @param attribute the attribute tag or keyword, for example 00080060 or Modality
+   * @param value the value to match
+   * @return the query builder
+   */
+  public QueryBuilder addAttributeMatch(String attribute, String value) {
+    attributeMatches.put(attribute, value);
+    return this;
+  }
+
+  /**
+   * Sets include fields, searches then only return these attributes besides the ones the server
+   * always returns, instead of all attributes the extension may need.
+   *
+   * @param includeFields the attribute tags or keywords
+   * @return the query builder
+   */
+  public QueryBuilder setIncludeFields(List<String> includeFields) {
+    this.includeFields = includeFields;
+    return this;
+  }
+
   /**
    * Sets instances.
    *
@@ -235,7 +296,7 @@ public class QueryBuilder {
    *
    * @return the Study ID
    */
-  String getStudyId() {
+  public String getStudyId() {
     return studyId;
   }
 
@@ -244,7 +305,7 @@ public class QueryBuilder {
    *
    * @return the Series ID
    */
-  String getSeriesId() {
+  public String getSeriesId() {
     return seriesId;
   }
 
@@ -253,7 +314,7 @@ public class QueryBuilder {
    *
    * @return the Instance ID
    */
-  String getInstanceId() {
+  public String getInstanceId() {
     return instanceId;
   }
 
@@ -262,10 +323,19 @@ public class QueryBuilder {
    *
    * @return the frame number
    */
-  int getFrameNumber() {
+  public int getFrameNumber() {
     return frameNumber;
   }
 
+  /**
+   * Gets frame numbers.
+   *
+   * @return the frame numbers
+   */
+  public int[] getFrameNumbers() {
+    return frameNumbers;
+  }
+
   /**
    * Gets paths.
    *
@@ -284,6 +354,33 @@ public class QueryBuilder {
     return directory;
   }
 
+  /**
+   * Gets journal.
+   *
+   * @return the journal or null if transfers are not journaled
+   */
+  public TransferJournal getJournal() {
+    return journal;
+  }
+
+  /**
+   * Gets attribute matches.
+   *
+   * @return the values to match by attribute
+   */
+  public Map<String, String> getAttributeMatches() {
+    return Collections.unmodifiableMap(attributeMatches);
+  }
+
+  /**
+   * Gets include fields.
+   *
+   * @return the include fields or null if searches return the default fields
+   */
+  public List<String> getIncludeFields() {
+    return includeFields;
+  }
+
   /**
    * Gets instances.
    *
@@ -0,0 +1,57 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.exception;
+
+import static com.quantumsoft.qupathcloud.exception.Errors.FAILED_HTTP;
+
+/**
+ * The type HTTP status exception, thrown when Healthcare API answers with an unexpected status.
+ */
+public class HttpStatusException extends QuPathCloudException {
+
+  private final int statusCode;
+  private final long retryAfterMillis;
+
+  /**
+   * Instantiates a new HTTP status exception.
+   *
+   * @param statusCode the status code
+   * @param retryAfterMillis the delay requested by the Retry-After header or -1 if absent
+   */
+  public HttpStatusException(int statusCode, long retryAfterMillis) {
+    super(FAILED_HTTP + statusCode);
+    this.statusCode = statusCode;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /**
+   * Gets status code.
+   *
+   * @return the status code
+   */
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  /**
+   * Gets the delay requested by the Retry-After header.
+   *
+   * @return the delay in milliseconds or -1 if absent
+   */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
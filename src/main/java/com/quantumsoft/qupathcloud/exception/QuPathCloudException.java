@@ -37,4 +37,14 @@ public class QuPathCloudException extends Exception {
   public QuPathCloudException(Throwable e) {
     super(e);
   }
+
+  /**
+   * Instantiates a new QuPath cloud exception.
+   *
+   * @param message the message
+   * @param e the cause
+   */
+  public QuPathCloudException(String message, Throwable e) {
+    super(message, e);
+  }
 }
@@ -21,6 +21,7 @@ import static com.quantumsoft.qupathcloud.gui.panels.Position.PROJECTS;
 
 import com.jfoenix.controls.JFXButton;
 import com.jfoenix.controls.JFXComboBox;
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
 import com.quantumsoft.qupathcloud.configuration.DicomStoreConfiguration;
 import com.quantumsoft.qupathcloud.dao.CloudDao;
 import com.quantumsoft.qupathcloud.dao.spec.QueryBuilder;
@@ -173,8 +174,7 @@ public class CloudWindow {
         Platform.runLater(() -> showErrorPage(e));
       }
     };
-    Thread loadThread = new Thread(loader);
-    loadThread.start();
+    IoExecutors.start(loader);
   }
 
   private void authorizationPage() {
@@ -195,8 +195,7 @@ public class CloudWindow {
         Platform.runLater(() -> showErrorPage(e));
       }
     };
-    Thread loadThread = new Thread(loader1);
-    loadThread.start();
+    IoExecutors.start(loader1);
   }
 
   private void showProjectsPage() {
@@ -240,8 +239,7 @@ public class CloudWindow {
           Platform.runLater(() -> showErrorPage(e));
         }
       };
-      Thread loadThread2 = new Thread(loader);
-      loadThread2.start();
+      IoExecutors.start(loader);
     }
   }
 
@@ -281,8 +279,7 @@ public class CloudWindow {
           Platform.runLater(() -> showErrorPage(e));
         }
       };
-      Thread loadThread = new Thread(loader);
-      loadThread.start();
+      IoExecutors.start(loader);
     });
 
     JFXButton newDatasetButton = (JFXButton) currentPage.lookup("#newDatasetButton");
@@ -314,8 +311,7 @@ public class CloudWindow {
           Platform.runLater(() -> showErrorPage(e));
         }
       };
-      Thread loadThread = new Thread(loader);
-      loadThread.start();
+      IoExecutors.start(loader);
     }
   }
 
@@ -345,8 +341,7 @@ public class CloudWindow {
           Platform.runLater(() -> showErrorPage(e));
         }
       };
-      Thread loadThread = new Thread(loader);
-      loadThread.start();
+      IoExecutors.start(loader);
     });
 
     JFXButton okButton = (JFXButton) currentPage.lookup("#okButton");
@@ -410,8 +405,7 @@ public class CloudWindow {
             Platform.runLater(() -> showErrorPage(e));
           }
         };
-        Thread loadThread = new Thread(loader);
-        loadThread.start();
+        IoExecutors.start(loader);
       }
     });
 
@@ -459,8 +453,7 @@ public class CloudWindow {
             Platform.runLater(() -> showErrorPage(e));
           }
         };
-        Thread loadThread = new Thread(loader);
-        loadThread.start();
+        IoExecutors.start(loader);
       }
     });
 
@@ -15,13 +15,14 @@
 
 package com.quantumsoft.qupathcloud.imageserver;
 
+import com.quantumsoft.qupathcloud.cache.TileCache;
+import com.quantumsoft.qupathcloud.cache.TileKey;
 import com.quantumsoft.qupathcloud.dao.CloudDao;
 import com.quantumsoft.qupathcloud.dao.spec.QueryBuilder;
 import com.quantumsoft.qupathcloud.entities.DicomStore;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import com.quantumsoft.qupathcloud.pyramid.LoadPyramidFileCallable;
 import com.quantumsoft.qupathcloud.pyramid.Pyramid;
-import com.quantumsoft.qupathcloud.pyramid.PyramidFrame;
 import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
@@ -36,11 +37,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import qupath.lib.awt.common.AwtTools;
@@ -57,18 +60,29 @@ import qupath.lib.regions.RegionRequest;
 public class CloudImageServer extends AbstractImageServer<BufferedImage> {
 
   private static final Logger LOGGER = LogManager.getLogger();
-  private static final int THREADS_COUNT = 16; // light threads that mostly wait for remote data
   private static final String DRAW_DEBUG_INFO_PROPERTY = "quPathCloud.drawDebugInfo";
   private static final String DRAW_PLACEHOLDER_TILES_PROPERTY = "quPathCloud.drawPlaceholderTiles";
   private static final boolean DRAW_DEBUG_INFO = Boolean.getBoolean(DRAW_DEBUG_INFO_PROPERTY);
   private static final boolean DRAW_PLACEHOLDER_TILES =
       Boolean.getBoolean(DRAW_PLACEHOLDER_TILES_PROPERTY);
+  private static final String DISABLE_PREFETCH_PROPERTY = "quPathCloud.disablePrefetch";
+  private static final boolean DISABLE_PREFETCH = Boolean.getBoolean(DISABLE_PREFETCH_PROPERTY);
+  private static final String TILE_CACHE_SIZE_MB_PROPERTY = "quPathCloud.tileCacheSizeMb";
+  private static final int DEFAULT_TILE_CACHE_SIZE_MB = 256;
+  private static final String MAX_FRAMES_PER_REQUEST_PROPERTY = "quPathCloud.maxFramesPerRequest";
+  private static final int DEFAULT_MAX_FRAMES_PER_REQUEST = 16;
+  private static final int MAX_FRAMES_PER_REQUEST =
+      Math.max(1, Integer.getInteger(MAX_FRAMES_PER_REQUEST_PROPERTY,
+          DEFAULT_MAX_FRAMES_PER_REQUEST));
+  // shared by all servers, so the memory budget does not grow with the number of open slides
+  private static final TileCache TILE_CACHE = new TileCache(
+      Integer.getInteger(TILE_CACHE_SIZE_MB_PROPERTY, DEFAULT_TILE_CACHE_SIZE_MB) * 1024L * 1024L);
   private final CloudDao cloudDao;
   private ImageServerMetadata originalMetadata;
   private ImageServerMetadata userMetadata;
   private DicomStore dicomStore;
   private Pyramid pyramid;
-  private ExecutorService executorService;
+  private TilePrefetcher tilePrefetcher;
 
   private URI uri;
 
@@ -86,11 +100,14 @@ public class CloudImageServer extends AbstractImageServer<BufferedImage> {
     this.uri = uri;
     this.cloudDao = cloudDao;
     this.dicomStore = dicomStore;
-    this.executorService = Executors.newFixedThreadPool(THREADS_COUNT);
 
     pyramid = new LoadPyramidFileCallable(Paths.get(uri), metadataOnly).call();
 
     originalMetadata = pyramid.getMetadata();
+    if (!metadataOnly && !DISABLE_PREFETCH) {
+      tilePrefetcher = new TilePrefetcher(pyramid, getSlideId(),
+          (level, tiles) -> createTileCallables(level, tiles, null));
+    }
   }
 
   @Override
@@ -129,83 +146,84 @@ public class CloudImageServer extends AbstractImageServer<BufferedImage> {
     double downsampleFactor = request.getDownsample();
     int level = ServerTools.getPreferredResolutionLevel(this, downsampleFactor);
     double downsample = getPreferredDownsamples()[level];
+    try {
+      // levels are built on first access, this is where a broken level surfaces
+      pyramid.buildLevel(level);
+    } catch (QuPathCloudException e) {
+      LOGGER.error("Failed to build pyramid level " + level, e);
+      return null;
+    }
     int levelWidth = (int) (region.width / downsample + .5);
     int levelHeight = (int) (region.height / downsample + .5);
 
     Map<Point, BufferedImage> tileImagesMap = new HashMap<>();
-    List<Callable<Void>> tileCallables = new ArrayList<>();
-    int baseTileX = (int) Math.round((request.getX() / downsample + .5) / pyramid.getTileWidth());
-    int baseTileY = (int) Math.round((request.getY() / downsample + .5) / pyramid.getTileHeight());
-    int widthInTiles = (int) Math.ceil((double) levelWidth / pyramid.getTileWidth());
-    int heightInTiles = (int) Math.ceil((double) levelHeight / pyramid.getTileHeight());
+    // the region origin in level pixels, tiles are cropped to the region from here
+    int levelX = (int) (region.x / downsample);
+    int levelY = (int) (region.y / downsample);
+    int tileWidth = pyramid.getTileWidth();
+    int tileHeight = pyramid.getTileHeight();
+    // only tiles intersecting the region and lying within the level are retrieved
+    int firstTileX = levelX / tileWidth;
+    int firstTileY = levelY / tileHeight;
+    int lastTileX = Math.min((levelX + levelWidth - 1) / tileWidth,
+        (pyramid.getLevelWidth(level) - 1) / tileWidth);
+    int lastTileY = Math.min((levelY + levelHeight - 1) / tileHeight,
+        (pyramid.getLevelHeight(level) - 1) / tileHeight);
 
     BufferedImage img = new BufferedImage(levelWidth, levelHeight, BufferedImage.TYPE_INT_RGB);
     Graphics2D g1 = img.createGraphics();
 
     if (DRAW_DEBUG_INFO) {
-      Font font = new Font("Serif", Font.PLAIN, levelWidth / widthInTiles / 10);
+      Font font = new Font("Serif", Font.PLAIN, tileWidth / 10);
       g1.setFont(font);
       g1.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
     }
 
-    final QueryBuilder baseQuery = QueryBuilder.forProject(dicomStore.getProjectId())
-        .setLocationId(dicomStore.getLocationId())
-        .setDatasetId(dicomStore.getDatasetId())
-        .setDicomStoreId(dicomStore.getDicomStoreId())
-        .setStudyId(pyramid.getStudyUID())
-        .setSeriesId(pyramid.getSeriesUID());
-    for (int x = 0; x < widthInTiles; x++) {
-      for (int y = 0; y < heightInTiles; y++) {
-        int tileX = baseTileX + x;
-        int tileY = baseTileY + y;
-
-        PyramidFrame frame = pyramid.getFrame(tileX + 1, tileY + 1, level);
-        if (frame != null) {
-          tileCallables.add(new Callable<>() {
-            @Override
-            public Void call() throws Exception {
-              QueryBuilder query = new QueryBuilder(baseQuery)
-                  .setInstanceId(frame.getInstanceUID())
-                  .setFrameNumber(frame.getIndex());
-              BufferedImage tileImage = cloudDao.getFrame(query);
-
-              if (tileImage != null) {
-                synchronized (tileImagesMap) {
-                  tileImagesMap.put(new Point(tileX, tileY), tileImage);
-                }
-              }
-
-              synchronized (tileCallables) {
-                tileCallables.remove(this);
-              }
-
-              return null;
-            }
-          });
-        } else {
-          LOGGER.warn("No frame for " + tileX + "/" + tileY + "/" + level);
-        }
+    List<Point> tiles = new ArrayList<>();
+    for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+      for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+        tiles.add(new Point(tileX, tileY));
       }
     }
+    List<Callable<Void>> tileCallables = createTileCallables(level, tiles, tileImagesMap);
 
-    try {
-      executorService.invokeAll(tileCallables);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-      LOGGER.error("CloudImageServer.readBufferedImage interrupted", e);
+    // the tile retrievals of all servers share one scheduler, analysis ones have no deadline
+    TileScheduler.Priority priority = TileScheduler.INSTANCE.getThreadPriority();
+    List<Future<Void>> tileFutures = new ArrayList<>();
+    for (Callable<Void> tileCallable : tileCallables) {
+      tileFutures.add(TileScheduler.INSTANCE.submit(priority, getSlideId(), tileCallable));
+    }
+    for (Future<Void> tileFuture : tileFutures) {
+      try {
+        tileFuture.get();
+      } catch (CancellationException e) {
+        LOGGER.debug("Tile retrieval cancelled for region request: " + request);
+      } catch (ExecutionException e) {
+        LOGGER.warn("Failed to retrieve tiles for region request: " + request, e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.error("CloudImageServer.readBufferedImage interrupted", e);
+        tileFutures.forEach(future -> future.cancel(false));
+        break;
+      }
+    }
+    LOGGER.trace(TILE_CACHE);
+    LOGGER.trace(TileScheduler.INSTANCE);
+    if (tilePrefetcher != null) {
+      tilePrefetcher.regionServed(level, new Rectangle(firstTileX, firstTileY,
+          lastTileX - firstTileX + 1, lastTileY - firstTileY + 1));
     }
 
-    for (int x = 0; x < widthInTiles; x++) {
-      for (int y = 0; y < heightInTiles; y++) {
-        int tileX = baseTileX + x;
-        int tileY = baseTileY + y;
-        int graphicsX = x * pyramid.getTileWidth();
-        int graphicsY = y * pyramid.getTileHeight();
+    for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+      for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+        // negative for tiles starting before the region, the compositor crops them
+        int graphicsX = tileX * tileWidth - levelX;
+        int graphicsY = tileY * tileHeight - levelY;
 
         BufferedImage tileImage = tileImagesMap.get(new Point(tileX, tileY));
 
         if (tileImage != null) {
-          g1.drawImage(tileImage, graphicsX, graphicsY, null);
+          TileCompositor.drawTile(tileImage, img, graphicsX, graphicsY);
         } else {
           if (DRAW_PLACEHOLDER_TILES) {
             // qupath will cache debug tile semi-permanently
@@ -222,11 +240,10 @@ public class CloudImageServer extends AbstractImageServer<BufferedImage> {
         if (DRAW_DEBUG_INFO) {
           g1.setColor(Color.black);
           g1.drawString(tileX + "/" + tileY + "/" + level, 10 + graphicsX,
-              graphicsY + pyramid.getTileHeight() - 20);
+              graphicsY + tileHeight - 20);
 
           g1.setColor(Color.black);
-          g1.drawRect(graphicsX, graphicsY, pyramid.getTileWidth() - 1,
-              pyramid.getTileHeight() - 1);
+          g1.drawRect(graphicsX, graphicsY, tileWidth - 1, tileHeight - 1);
         }
       }
     }
@@ -283,6 +300,96 @@ public class CloudImageServer extends AbstractImageServer<BufferedImage> {
     return originalMetadata;
   }
 
+  /**
+   * Gets the decoded tile cache shared by all Cloud image servers.
+   *
+   * @return the tile cache
+   */
+  public static TileCache getTileCache() {
+    return TILE_CACHE;
+  }
+
+  /**
+   * Creates callables retrieving tiles that are not cached yet. Frames of one Instance are
+   * retrieved in batches, one multipart request per batch, and put into the tile cache.
+   *
+   * @param level the level
+   * @param tiles the tile coordinates within the level
+   * @param tileImagesMap the map receiving both cached and retrieved tiles, or null if the tiles
+   * only need to get into the tile cache
+   * @return the callables
+   */
+  private List<Callable<Void>> createTileCallables(int level, List<Point> tiles,
+      Map<Point, BufferedImage> tileImagesMap) {
+    final QueryBuilder baseQuery = QueryBuilder.forProject(dicomStore.getProjectId())
+        .setLocationId(dicomStore.getLocationId())
+        .setDatasetId(dicomStore.getDatasetId())
+        .setDicomStoreId(dicomStore.getDicomStoreId())
+        .setStudyId(pyramid.getStudyUID())
+        .setSeriesId(pyramid.getSeriesUID());
+    Map<String, List<PendingTile>> pendingTilesByInstance = new LinkedHashMap<>();
+    for (Point tile : tiles) {
+      int frameNumber = pyramid.getFrameNumber(tile.x + 1, tile.y + 1, level);
+      if (frameNumber != 0) {
+        String instanceUID = pyramid.getFrameInstanceUID(tile.x + 1, tile.y + 1, level);
+        TileKey tileKey = new TileKey(pyramid.getSeriesUID(), instanceUID, frameNumber);
+        if (tileImagesMap == null) {
+          if (TILE_CACHE.contains(tileKey)) {
+            continue;
+          }
+        } else {
+          BufferedImage cachedTileImage = TILE_CACHE.get(tileKey);
+          if (cachedTileImage != null) {
+            tileImagesMap.put(tile, cachedTileImage);
+            continue;
+          }
+        }
+        pendingTilesByInstance
+            .computeIfAbsent(instanceUID, uid -> new ArrayList<>())
+            .add(new PendingTile(tile, tileKey));
+      } else if (tileImagesMap != null) {
+        LOGGER.warn("No frame for " + tile.x + "/" + tile.y + "/" + level);
+      }
+    }
+
+    List<Callable<Void>> tileCallables = new ArrayList<>();
+    for (Map.Entry<String, List<PendingTile>> entry : pendingTilesByInstance.entrySet()) {
+      List<PendingTile> pendingTiles = entry.getValue();
+      for (int from = 0; from < pendingTiles.size(); from += MAX_FRAMES_PER_REQUEST) {
+        List<PendingTile> batch = pendingTiles
+            .subList(from, Math.min(from + MAX_FRAMES_PER_REQUEST, pendingTiles.size()));
+        tileCallables.add(() -> {
+          int[] frameNumbers = batch.stream()
+              .mapToInt(pendingTile -> pendingTile.tileKey.getFrameIndex())
+              .toArray();
+          QueryBuilder query = new QueryBuilder(baseQuery)
+              .setInstanceId(entry.getKey())
+              .setFrameNumbers(frameNumbers);
+          List<BufferedImage> tileImages = cloudDao.getFrames(query);
+
+          for (int i = 0; i < batch.size(); i++) {
+            BufferedImage tileImage = tileImages.get(i);
+            if (tileImage != null) {
+              PendingTile pendingTile = batch.get(i);
+              TILE_CACHE.put(pendingTile.tileKey, tileImage);
+              if (tileImagesMap != null) {
+                synchronized (tileImagesMap) {
+                  tileImagesMap.put(pendingTile.tile, tileImage);
+                }
+              }
+            }
+          }
+          return null;
+        });
+      }
+    }
+    return tileCallables;
+  }
+
+  private String getSlideId() {
+    return pyramid.getSeriesUID();
+  }
+
   private void drawMultiString(Graphics g, String text, int x, int y) {
     for (String line : text.split("\n")) {
       g.drawString(line, x, y += g.getFontMetrics().getHeight());
@@ -301,4 +408,15 @@ public class CloudImageServer extends AbstractImageServer<BufferedImage> {
     g1.setColor(new Color(r, g, b));
     g1.fillRect(x, y, pyramid.getTileWidth(), pyramid.getTileHeight());
   }
+
+  private static class PendingTile {
+
+    private final Point tile;
+    private final TileKey tileKey;
+
+    private PendingTile(Point tile, TileKey tileKey) {
+      this.tile = tile;
+      this.tileKey = tileKey;
+    }
+  }
 }
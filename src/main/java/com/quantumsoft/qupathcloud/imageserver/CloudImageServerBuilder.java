@@ -15,7 +15,7 @@
 
 package com.quantumsoft.qupathcloud.imageserver;
 
-import static com.quantumsoft.qupathcloud.configuration.MetadataConfiguration.METADATA_FILE_EXTENSION;
+import static com.quantumsoft.qupathcloud.configuration.MetadataConfiguration.isMetadataFileExtension;
 
 import com.quantumsoft.qupathcloud.dao.CloudDao;
 import com.quantumsoft.qupathcloud.repository.Repository;
@@ -44,7 +44,7 @@ public class CloudImageServerBuilder implements ImageServerBuilder<BufferedImage
   private float supportLevel(URI uri, String... args) {
     Path filePath = Paths.get(uri);
     String extension = FilenameUtils.getExtension(filePath.toString());
-    if (extension.equals(METADATA_FILE_EXTENSION)) {
+    if (isMetadataFileExtension(extension)) {
       return 10;
     } else {
       return 0;
@@ -0,0 +1,88 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.imageserver;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Copies decoded tiles into region images. TYPE_INT_RGB tiles are copied row by row directly
+ * between the underlying pixel arrays, so no Java2D loops or colour conversion are involved;
+ * tiles of other types are drawn with Graphics2D.
+ */
+final class TileCompositor {
+
+  private TileCompositor() {
+  }
+
+  /**
+   * Copies a tile into a region image, clipping it to the bounds of the region image.
+   *
+   * @param tile the tile
+   * @param destination the TYPE_INT_RGB region image
+   * @param x the x coordinate of the tile origin in the region image, may be negative
+   * @param y the y coordinate of the tile origin in the region image, may be negative
+   */
+  static void drawTile(BufferedImage tile, BufferedImage destination, int x, int y) {
+    if (tile.getType() != BufferedImage.TYPE_INT_RGB
+        || destination.getType() != BufferedImage.TYPE_INT_RGB) {
+      Graphics2D graphics = destination.createGraphics();
+      graphics.drawImage(tile, x, y, null);
+      graphics.dispose();
+      return;
+    }
+
+    int sourceX = Math.max(0, -x);
+    int sourceY = Math.max(0, -y);
+    int destinationX = Math.max(0, x);
+    int destinationY = Math.max(0, y);
+    int width = Math.min(tile.getWidth() - sourceX, destination.getWidth() - destinationX);
+    int height = Math.min(tile.getHeight() - sourceY, destination.getHeight() - destinationY);
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+
+    Raster sourceRaster = tile.getRaster();
+    Raster destinationRaster = destination.getRaster();
+    int[] sourcePixels = ((DataBufferInt) sourceRaster.getDataBuffer()).getData();
+    int[] destinationPixels = ((DataBufferInt) destinationRaster.getDataBuffer()).getData();
+    int sourceStride = getScanlineStride(sourceRaster);
+    int destinationStride = getScanlineStride(destinationRaster);
+    int sourceOffset = getOffset(sourceRaster, sourceX, sourceY);
+    int destinationOffset = getOffset(destinationRaster, destinationX, destinationY);
+    for (int row = 0; row < height; row++) {
+      System.arraycopy(sourcePixels, sourceOffset, destinationPixels, destinationOffset, width);
+      sourceOffset += sourceStride;
+      destinationOffset += destinationStride;
+    }
+  }
+
+  private static int getScanlineStride(Raster raster) {
+    return ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+  }
+
+  private static int getOffset(Raster raster, int x, int y) {
+    // rasters of subimages share the pixel array of their parent
+    int rasterX = x - raster.getSampleModelTranslateX();
+    int rasterY = y - raster.getSampleModelTranslateY();
+    SinglePixelPackedSampleModel sampleModel =
+        (SinglePixelPackedSampleModel) raster.getSampleModel();
+    return raster.getDataBuffer().getOffset() + sampleModel.getOffset(rasterX, rasterY);
+  }
+}
@@ -0,0 +1,273 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.imageserver;
+
+import com.quantumsoft.qupathcloud.imageserver.TileScheduler.Priority;
+import com.quantumsoft.qupathcloud.pyramid.Pyramid;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Predicts the tiles QuPath is likely to request after a region and warms them into the tile
+ * cache at the lowest priority: the neighbouring tiles in the pan direction, a few tiles of the
+ * next level down and the parent tiles of the next level up. QuPath requests one region per tile,
+ * so the viewport is taken to be the union of the regions of a level requested within a short
+ * window, and the pan direction is the move between two such viewports. Prefetches queued for the
+ * previous viewport are cancelled when the viewport jumps elsewhere.
+ */
+final class TilePrefetcher {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  // regions of a level requested within this window make up one viewport
+  private static final long VIEWPORT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(
+      Long.getLong("quPathCloud.prefetchViewportWindowMs", 250L));
+  // a viewport moving further than this between two viewports is considered a jump
+  private static final int JUMP_DISTANCE_IN_TILES = 4;
+  // a region covers several tiles of the next level down, only the central ones are prefetched
+  private static final int MAX_FINER_LEVEL_TILES = 4;
+  private static final int MAX_PENDING_PREFETCHES = 64;
+
+  private final Pyramid pyramid;
+  private final String slideId;
+  private final TileLoader tileLoader;
+  private final Deque<Future<Void>> pendingPrefetches = new ArrayDeque<>();
+  // tiles already prefetched for the current viewport, by level
+  private final Map<Integer, Set<Point>> prefetchedTiles = new HashMap<>();
+  private int viewportLevel = -1;
+  private Rectangle viewport;
+  private long viewportStartNanos;
+  private int previousLevel = -1;
+  private Rectangle previousViewport;
+  private Future<Void> prediction;
+  private boolean predictionQueued;
+
+  /**
+   * Loader of tiles into the tile cache.
+   */
+  interface TileLoader {
+
+    /**
+     * Creates callables retrieving the given tiles into the tile cache.
+     *
+     * @param level the level
+     * @param tiles the tile coordinates within the level
+     * @return the callables
+     */
+    List<Callable<Void>> createTileCallables(int level, List<Point> tiles);
+  }
+
+  /**
+   * Instantiates a new Tile prefetcher.
+   *
+   * @param pyramid the pyramid of the served image
+   * @param slideId the identifier of the slide for the tile scheduler
+   * @param tileLoader the tile loader
+   */
+  TilePrefetcher(Pyramid pyramid, String slideId, TileLoader tileLoader) {
+    this.pyramid = pyramid;
+    this.slideId = slideId;
+    this.tileLoader = tileLoader;
+  }
+
+  /**
+   * Schedules prefetching of the tiles likely to be requested after a region. The prediction
+   * itself runs as a prefetch too, as it may build the index of a neighbouring level.
+   *
+   * @param level the level of the served region
+   * @param tiles the range of tiles of the served region
+   */
+  synchronized void regionServed(int level, Rectangle tiles) {
+    long now = System.nanoTime();
+    if (viewport != null && level == viewportLevel
+        && now - viewportStartNanos < VIEWPORT_WINDOW_NANOS) {
+      viewport.add(tiles);
+    } else {
+      previousLevel = viewportLevel;
+      previousViewport = viewport;
+      viewportLevel = level;
+      viewport = new Rectangle(tiles);
+      viewportStartNanos = now;
+      prefetchedTiles.clear();
+      if (isJump()) {
+        cancelPendingPrefetches();
+      }
+    }
+    // one queued prediction covers all regions served until it starts
+    if (prediction == null || prediction.isDone() || !predictionQueued) {
+      predictionQueued = true;
+      prediction = submit(this::predict);
+    }
+  }
+
+  /**
+   * Cancels all prefetches that haven't started yet.
+   */
+  synchronized void cancelPendingPrefetches() {
+    for (Future<Void> pendingPrefetch : pendingPrefetches) {
+      pendingPrefetch.cancel(false);
+    }
+    pendingPrefetches.clear();
+  }
+
+  private Void predict() {
+    int level;
+    Map<Integer, List<Point>> predictedTiles = new LinkedHashMap<>();
+    synchronized (this) {
+      predictionQueued = false;
+      level = viewportLevel;
+      for (int predictedLevel = level - 1; predictedLevel <= level + 1; predictedLevel++) {
+        Set<Point> prefetched =
+            prefetchedTiles.computeIfAbsent(predictedLevel, key -> new HashSet<>());
+        List<Point> newTiles = new ArrayList<>();
+        for (Point tile : predictTiles(level, viewport, predictedLevel)) {
+          if (prefetched.add(tile)) {
+            newTiles.add(tile);
+          }
+        }
+        if (!newTiles.isEmpty()) {
+          predictedTiles.put(predictedLevel, newTiles);
+        }
+      }
+    }
+    // outside the lock, levels are built on first access
+    List<Callable<Void>> callables = new ArrayList<>();
+    for (Map.Entry<Integer, List<Point>> entry : predictedTiles.entrySet()) {
+      callables.addAll(tileLoader.createTileCallables(entry.getKey(), entry.getValue()));
+    }
+    synchronized (this) {
+      if (level != viewportLevel) {
+        // the viewport moved to another level meanwhile
+        return null;
+      }
+      for (Callable<Void> callable : callables) {
+        submit(callable);
+      }
+    }
+    return null;
+  }
+
+  private synchronized Future<Void> submit(Callable<Void> callable) {
+    pendingPrefetches.removeIf(Future::isDone);
+    // prefetching never delays the tiles QuPath waits for
+    Future<Void> future = TileScheduler.INSTANCE.submit(Priority.PREFETCH, slideId, () -> {
+      try {
+        return callable.call();
+      } catch (Exception e) {
+        LOGGER.debug("Failed to prefetch tiles", e);
+        return null;
+      }
+    });
+    pendingPrefetches.addLast(future);
+    // the oldest predictions are the least relevant ones
+    while (pendingPrefetches.size() > MAX_PENDING_PREFETCHES) {
+      pendingPrefetches.removeFirst().cancel(false);
+    }
+    return future;
+  }
+
+  private Set<Point> predictTiles(int level, Rectangle tiles, int predictedLevel) {
+    Set<Point> predictedTiles = new LinkedHashSet<>();
+    if (predictedLevel < 0 || predictedLevel >= pyramid.getDownsamples().length) {
+      return predictedTiles;
+    }
+    if (predictedLevel == level) {
+      Rectangle neighbours = getNeighbourTiles(level, tiles);
+      addTiles(predictedTiles, neighbours, level);
+      // the viewport itself is already loaded
+      predictedTiles.removeIf(tiles::contains);
+    } else if (predictedLevel < level) {
+      addTiles(predictedTiles,
+          centre(toLevel(tiles, level, predictedLevel), MAX_FINER_LEVEL_TILES), predictedLevel);
+    } else {
+      addTiles(predictedTiles, toLevel(tiles, level, predictedLevel), predictedLevel);
+    }
+    return predictedTiles;
+  }
+
+  private Rectangle getNeighbourTiles(int level, Rectangle tiles) {
+    Rectangle neighbours = new Rectangle(tiles);
+    if (previousViewport == null || previousLevel != level) {
+      // no pan direction yet, so every direction is equally likely
+      neighbours.grow(1, 1);
+      return neighbours;
+    }
+    int directionX = (int) Math.signum(tiles.getCenterX() - previousViewport.getCenterX());
+    int directionY = (int) Math.signum(tiles.getCenterY() - previousViewport.getCenterY());
+    if (directionX < 0) {
+      neighbours.x--;
+    }
+    if (directionY < 0) {
+      neighbours.y--;
+    }
+    neighbours.width += Math.abs(directionX);
+    neighbours.height += Math.abs(directionY);
+    return neighbours;
+  }
+
+  private boolean isJump() {
+    if (previousViewport == null) {
+      return false;
+    }
+    if (Math.abs(viewportLevel - previousLevel) > 1) {
+      return true;
+    }
+    Rectangle reachable = toLevel(previousViewport, previousLevel, viewportLevel);
+    reachable.grow(JUMP_DISTANCE_IN_TILES, JUMP_DISTANCE_IN_TILES);
+    return !reachable.intersects(viewport);
+  }
+
+  private Rectangle toLevel(Rectangle tiles, int level, int targetLevel) {
+    double scale = pyramid.getDownsamples()[level] / pyramid.getDownsamples()[targetLevel];
+    int x = (int) Math.floor(tiles.x * scale);
+    int y = (int) Math.floor(tiles.y * scale);
+    int maxX = (int) Math.ceil((tiles.x + tiles.width) * scale);
+    int maxY = (int) Math.ceil((tiles.y + tiles.height) * scale);
+    return new Rectangle(x, y, Math.max(1, maxX - x), Math.max(1, maxY - y));
+  }
+
+  private static Rectangle centre(Rectangle tiles, int maxTiles) {
+    int width = Math.min(tiles.width, (int) Math.ceil(Math.sqrt(maxTiles)));
+    int height = Math.min(tiles.height, Math.max(1, maxTiles / width));
+    return new Rectangle(tiles.x + (tiles.width - width) / 2,
+        tiles.y + (tiles.height - height) / 2, width, height);
+  }
+
+  private void addTiles(Set<Point> predictedTiles, Rectangle tiles, int level) {
+    int widthInTiles = (pyramid.getLevelWidth(level) - 1) / pyramid.getTileWidth() + 1;
+    int heightInTiles = (pyramid.getLevelHeight(level) - 1) / pyramid.getTileHeight() + 1;
+    Rectangle levelTiles = tiles.intersection(new Rectangle(0, 0, widthInTiles, heightInTiles));
+    for (int x = levelTiles.x; x < levelTiles.x + levelTiles.width; x++) {
+      for (int y = levelTiles.y; y < levelTiles.y + levelTiles.height; y++) {
+        predictedTiles.add(new Point(x, y));
+      }
+    }
+  }
+}
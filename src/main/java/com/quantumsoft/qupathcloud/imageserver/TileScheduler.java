@@ -0,0 +1,232 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.imageserver;
+
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Process-wide scheduler of tile retrievals shared by all Cloud image servers. At most a fixed
+ * number of retrievals run at once. Waiting retrievals are started by priority, and within a
+ * priority the slides take turns, so one slide can't starve the others. Retrievals still
+ * waiting when their deadline passes are cancelled, as the viewer has most likely moved on.
+ * Retrievals requested by the threads of the viewer are VIEWPORT ones, recognised by the thread
+ * name prefixes in -DquPathCloud.viewportThreadPrefixes, and those of any other thread, such as
+ * QuPath's plugin workers and scripts, are ANALYSIS ones, which have no deadline.
+ */
+public enum TileScheduler {
+
+  /**
+   * Instance tile scheduler.
+   */
+  INSTANCE;
+
+  /**
+   * Priority of a tile retrieval, from the highest to the lowest.
+   */
+  public enum Priority {
+    /**
+     * Tiles of the visible viewport.
+     */
+    VIEWPORT,
+    /**
+     * Tiles requested by analysis.
+     */
+    ANALYSIS,
+    /**
+     * Tiles predicted by the prefetcher.
+     */
+    PREFETCH
+  }
+
+  private final Logger LOGGER = LogManager.getLogger();
+  private final int maxConcurrency =
+      Math.max(1, Integer.getInteger("quPathCloud.tileFetchConcurrency", 16));
+  private final Map<Priority, Long> deadlinesMillis = new EnumMap<>(Priority.class);
+  // QuPath's tile loader, the JavaFX thread painting thumbnails and the AWT event thread
+  private final List<String> viewportThreadPrefixes = Arrays.asList(System.getProperty(
+      "quPathCloud.viewportThreadPrefixes",
+      "region-store,JavaFX Application Thread,AWT-EventQueue").split(","));
+  private final ThreadLocal<Priority> threadPriority =
+      ThreadLocal.withInitial(() -> classifyThread(Thread.currentThread()));
+
+  // waiting tasks of each priority by slide, the first slide is the next to take its turn
+  private final Map<Priority, LinkedHashMap<String, Deque<ScheduledTask<?>>>> queues =
+      new EnumMap<>(Priority.class);
+  private final ExecutorService executorService;
+  private int runningCount;
+
+  TileScheduler() {
+    deadlinesMillis.put(Priority.VIEWPORT,
+        Long.getLong("quPathCloud.viewportTileDeadlineMs", 30_000L));
+    deadlinesMillis.put(Priority.ANALYSIS,
+        Long.getLong("quPathCloud.analysisTileDeadlineMs", Long.MAX_VALUE));
+    deadlinesMillis.put(Priority.PREFETCH,
+        Long.getLong("quPathCloud.prefetchTileDeadlineMs", 5_000L));
+    for (Priority priority : Priority.values()) {
+      queues.put(priority, new LinkedHashMap<>());
+    }
+    // the scheduler limits the number of running retrievals itself
+    executorService = IoExecutors.newExecutor("cloud-tile-fetch");
+  }
+
+  /**
+   * Sets the priority of tile retrievals requested by the current thread, overriding the one
+   * given by the thread name.
+   *
+   * @param priority the priority
+   */
+  public void setThreadPriority(Priority priority) {
+    threadPriority.set(priority);
+  }
+
+  /**
+   * Gets the priority of tile retrievals requested by the current thread.
+   *
+   * @return the priority
+   */
+  public Priority getThreadPriority() {
+    return threadPriority.get();
+  }
+
+  /**
+   * Submits a tile retrieval with the default deadline of its priority.
+   *
+   * @param priority the priority
+   * @param slideId the identifier of the slide the tiles belong to
+   * @param task the retrieval
+   * @param <V> the type of the result
+   * @return the future of the retrieval, cancelled if its deadline passes before it starts
+   */
+  public <V> Future<V> submit(Priority priority, String slideId, Callable<V> task) {
+    long deadlineMillis = deadlinesMillis.get(priority);
+    long deadline = deadlineMillis == Long.MAX_VALUE ? Long.MAX_VALUE
+        : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    ScheduledTask<V> scheduledTask = new ScheduledTask<>(task, deadline);
+    synchronized (this) {
+      queues.get(priority).computeIfAbsent(slideId, id -> new ArrayDeque<>())
+          .addLast(scheduledTask);
+      dispatch();
+    }
+    return scheduledTask;
+  }
+
+  /**
+   * Classifies a thread by its name, VIEWPORT for the threads of the viewer and ANALYSIS for any
+   * other thread.
+   *
+   * @param thread the thread
+   * @return the priority of its tile retrievals
+   */
+  Priority classifyThread(Thread thread) {
+    String threadName = thread.getName();
+    for (String prefix : viewportThreadPrefixes) {
+      if (!prefix.trim().isEmpty() && threadName.startsWith(prefix.trim())) {
+        return Priority.VIEWPORT;
+      }
+    }
+    return Priority.ANALYSIS;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder("TileScheduler{running=" + runningCount);
+    for (Priority priority : Priority.values()) {
+      int waitingCount = queues.get(priority).values().stream().mapToInt(Deque::size).sum();
+      builder.append(", ").append(priority).append('=').append(waitingCount);
+    }
+    return builder.append('}').toString();
+  }
+
+  private synchronized void dispatch() {
+    while (runningCount < maxConcurrency) {
+      ScheduledTask<?> task = pollNext();
+      if (task == null) {
+        return;
+      }
+      if (task.isDone()) {
+        // cancelled by its submitter while waiting
+        continue;
+      }
+      if (task.deadline != Long.MAX_VALUE && System.nanoTime() - task.deadline > 0) {
+        LOGGER.debug("Tile retrieval deadline passed, cancelling");
+        task.cancel(false);
+        continue;
+      }
+      runningCount++;
+      executorService.execute(task);
+    }
+  }
+
+  private ScheduledTask<?> pollNext() {
+    for (Priority priority : Priority.values()) {
+      LinkedHashMap<String, Deque<ScheduledTask<?>>> slideQueues = queues.get(priority);
+      Iterator<Map.Entry<String, Deque<ScheduledTask<?>>>> iterator =
+          slideQueues.entrySet().iterator();
+      if (!iterator.hasNext()) {
+        continue;
+      }
+      Map.Entry<String, Deque<ScheduledTask<?>>> slideQueue = iterator.next();
+      ScheduledTask<?> task = slideQueue.getValue().pollFirst();
+      iterator.remove();
+      if (!slideQueue.getValue().isEmpty()) {
+        // the slide goes to the end of the line
+        slideQueues.put(slideQueue.getKey(), slideQueue.getValue());
+      }
+      return task;
+    }
+    return null;
+  }
+
+  private synchronized void taskFinished() {
+    runningCount--;
+    dispatch();
+  }
+
+  private class ScheduledTask<V> extends FutureTask<V> {
+
+    // Long.MAX_VALUE if the task has no deadline
+    private final long deadline;
+
+    private ScheduledTask(Callable<V> callable, long deadline) {
+      super(callable);
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        taskFinished();
+      }
+    }
+  }
+}
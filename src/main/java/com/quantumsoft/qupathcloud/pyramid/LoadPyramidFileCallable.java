@@ -18,16 +18,22 @@ package com.quantumsoft.qupathcloud.pyramid;
 import com.quantumsoft.qupathcloud.configuration.MetadataConfiguration;
 import com.quantumsoft.qupathcloud.entities.instance.Instance;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.Callable;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * LoadPyramidFileCallable for loading a pyramid that contains information about tiles of
- * whole-slide images from metadata files.
+ * whole-slide images from metadata files. Pyramid index files are read directly, legacy JSON
+ * metadata files are migrated to a pyramid index file next to them on first open.
  */
 public class LoadPyramidFileCallable implements Callable<Pyramid> {
 
+  private static final Logger LOGGER = LogManager.getLogger();
+
   private Path filePath;
   private boolean metadataOnly;
 
@@ -45,8 +51,24 @@ public class LoadPyramidFileCallable implements Callable<Pyramid> {
 
   @Override
   public Pyramid call() throws QuPathCloudException {
+    Path indexFile = MetadataConfiguration.getPyramidIndexFile(filePath);
+    if (Files.exists(indexFile)) {
+      return PyramidIndexFile.read(indexFile);
+    }
     MetadataConfiguration metaConf = new MetadataConfiguration(filePath.getParent());
     List<Instance> instanceList = metaConf.readMetadataFile(filePath);
-    return new Pyramid(instanceList, metadataOnly);
+    if (metadataOnly) {
+      // migrating needs all frames, so it's left to the first full open
+      return new Pyramid(instanceList, true);
+    }
+    Pyramid pyramid = new Pyramid(instanceList, false);
+    try {
+      PyramidIndexFile.write(pyramid, indexFile);
+      LOGGER.info("Migrated metadata file " + filePath + " to " + indexFile);
+    } catch (QuPathCloudException e) {
+      // the JSON metadata file keeps working, the migration is retried on next open
+      LOGGER.warn("Failed to migrate metadata file " + filePath, e);
+    }
+    return pyramid;
   }
 }
@@ -15,20 +15,33 @@
 
 package com.quantumsoft.qupathcloud.pyramid;
 
-import com.quantumsoft.qupathcloud.entities.DicomAttribute;
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
 import com.quantumsoft.qupathcloud.entities.instance.Instance;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import qupath.lib.images.servers.ImageChannel;
 import qupath.lib.images.servers.ImageServerMetadata;
 
 /**
- * The Pyramid to display an whole-slide image in QuPath.
+ * The Pyramid to display an whole-slide image in QuPath. Levels index their frames lazily on
+ * first access. With -DquPathCloud.parallelPyramidBuild=true all levels are also built in the
+ * background right away, in parallel on at most one thread per processor and starting from the
+ * lowest resolution.
  */
 public class Pyramid {
 
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final boolean PARALLEL_BUILD =
+      Boolean.getBoolean("quPathCloud.parallelPyramidBuild");
+  // building a level is CPU-bound, and the common pool is shared with the rest of QuPath
+  private static final ExecutorService BUILD_EXECUTOR = IoExecutors.newExecutor("pyramid-build",
+      Runtime.getRuntime().availableProcessors());
+
   private List<PyramidLevel> levels = new ArrayList<>();
   private double[] downsamples;
 
@@ -45,31 +58,57 @@ public class Pyramid {
    */
   public Pyramid(List<Instance> instances, boolean metadataOnly) throws QuPathCloudException {
     validateInstances(instances);
-
-    if (instances.get(0).isFullTiled()) {
-      instances.sort(Comparator.comparingInt(Pyramid::getInstanceFrameOffset));
-    }
-    instances.sort(Comparator.comparingInt(Pyramid::getInstanceWidth).reversed());
-
-    PyramidLevel currentLevel = null;
+    List<PyramidInstance> pyramidInstances = new ArrayList<>(instances.size());
     for (Instance instance : instances) {
-      if (currentLevel == null || currentLevel.getWidth() != getInstanceWidth(instance)) {
-        currentLevel = new PyramidLevel(instance);
-        levels.add(currentLevel);
-      }
-      if (!metadataOnly) {
-        currentLevel.addInstance(instance);
-      }
+      pyramidInstances.add(PyramidInstance.of(instance));
     }
+    buildLevels(pyramidInstances, metadataOnly);
+  }
 
-    downsamples = new double[levels.size()];
-    downsamples[0] = 1.0;
-    for (int i = 1; i < levels.size(); i++) {
-      downsamples[i] = (double) getWidth() / levels.get(i).getWidth();
+  private Pyramid() {
+  }
+
+  /**
+   * Instantiates a new Pyramid from levels read from a pyramid index file.
+   *
+   * @param studyUID the Study UID
+   * @param seriesUID the Series UID
+   * @param levels the levels, from the highest resolution to the lowest
+   */
+  Pyramid(String studyUID, String seriesUID, List<PyramidLevel> levels) {
+    this.studyUID = studyUID;
+    this.seriesUID = seriesUID;
+    this.levels = levels;
+    calculateDownsamples();
+
+    if (PARALLEL_BUILD) {
+      buildLevelsInBackground();
     }
+  }
 
-    studyUID = instances.get(0).getStudyInstanceUID().getValue1();
-    seriesUID = instances.get(0).getSeriesInstanceUID().getValue1();
+  /**
+   * Creates a Pyramid from Instances read by {@link PyramidInstanceReader}.
+   *
+   * @param instances the instances
+   * @param metadataOnly if true, parses metadata, but not actual frames
+   * @return the pyramid
+   * @throws QuPathCloudException if an exception occurs
+   */
+  public static Pyramid create(List<PyramidInstance> instances, boolean metadataOnly)
+      throws QuPathCloudException {
+    Pyramid pyramid = new Pyramid();
+    pyramid.buildLevels(new ArrayList<>(instances), metadataOnly);
+    return pyramid;
+  }
+
+  /**
+   * Builds the frame index of a level, if it isn't built yet.
+   *
+   * @param level the level
+   * @throws QuPathCloudException if the level can't be built
+   */
+  public void buildLevel(int level) throws QuPathCloudException {
+    levels.get(level).build();
   }
 
   /**
@@ -100,6 +139,26 @@ public class Pyramid {
     return levels.get(0).getHeight();
   }
 
+  /**
+   * Gets level width.
+   *
+   * @param level the level
+   * @return the width of the level
+   */
+  public int getLevelWidth(int level) {
+    return levels.get(level).getWidth();
+  }
+
+  /**
+   * Gets level height.
+   *
+   * @param level the level
+   * @return the height of the level
+   */
+  public int getLevelHeight(int level) {
+    return levels.get(level).getHeight();
+  }
+
   /**
    * Gets tile width.
    *
@@ -148,6 +207,30 @@ public class Pyramid {
     return levels.get(level).getFrame(tileX, tileY);
   }
 
+  /**
+   * Gets frame number of a tile without allocating.
+   *
+   * @param tileX the tile x, starting at 1
+   * @param tileY the tile y, starting at 1
+   * @param level the level
+   * @return the frame number within its Instance or 0 if the tile has no frame
+   */
+  public int getFrameNumber(int tileX, int tileY, int level) {
+    return levels.get(level).getFrameNumber(tileX, tileY);
+  }
+
+  /**
+   * Gets Instance UID of the frame of a tile without allocating.
+   *
+   * @param tileX the tile x, starting at 1
+   * @param tileY the tile y, starting at 1
+   * @param level the level
+   * @return the Instance UID or null if the tile has no frame
+   */
+  public String getFrameInstanceUID(int tileX, int tileY, int level) {
+    return levels.get(level).getFrameInstanceUID(tileX, tileY);
+  }
+
   /**
    * Gets Series Metadata.
    *
@@ -164,13 +247,66 @@ public class Pyramid {
         .build();
   }
 
-  private static int getInstanceWidth(Instance instance) {
-    return instance.getTotalPixelMatrixColumns().getValue1();
+  /**
+   * Gets levels, from the highest resolution to the lowest.
+   *
+   * @return the levels
+   */
+  List<PyramidLevel> getLevels() {
+    return levels;
   }
 
-  private static int getInstanceFrameOffset(Instance instance) {
-    DicomAttribute<Integer> offset = instance.getConcatenationFrameOffsetNumber();
-    return offset == null ? 0 : offset.getValue1();
+  private void buildLevels(List<PyramidInstance> instances, boolean metadataOnly)
+      throws QuPathCloudException {
+    if (instances.isEmpty()) {
+      throw new QuPathCloudException("Not a valid DICOM WSI series: no instances");
+    }
+    if (instances.get(0).isFullTiled()) {
+      instances.sort(Comparator.comparingInt(PyramidInstance::getConcatenationFrameOffsetNumber));
+    }
+    instances.sort(Comparator.comparingInt(PyramidInstance::getTotalPixelMatrixColumns).reversed());
+
+    PyramidLevel currentLevel = null;
+    for (PyramidInstance instance : instances) {
+      if (currentLevel == null
+          || currentLevel.getWidth() != instance.getTotalPixelMatrixColumns()) {
+        currentLevel = new PyramidLevel(instance);
+        levels.add(currentLevel);
+      }
+      if (!metadataOnly) {
+        currentLevel.addInstance(instance);
+      }
+    }
+
+    studyUID = instances.get(0).getStudyInstanceUID();
+    seriesUID = instances.get(0).getSeriesInstanceUID();
+    calculateDownsamples();
+
+    if (PARALLEL_BUILD && !metadataOnly) {
+      buildLevelsInBackground();
+    }
+  }
+
+  private void calculateDownsamples() {
+    downsamples = new double[levels.size()];
+    downsamples[0] = 1.0;
+    for (int i = 1; i < levels.size(); i++) {
+      downsamples[i] = (double) getWidth() / levels.get(i).getWidth();
+    }
+  }
+
+  private void buildLevelsInBackground() {
+    // the viewer shows the lowest resolution first
+    for (int i = levels.size() - 1; i >= 0; i--) {
+      PyramidLevel level = levels.get(i);
+      BUILD_EXECUTOR.execute(() -> {
+        try {
+          level.build();
+        } catch (QuPathCloudException e) {
+          LOGGER.warn("Failed to build pyramid level of series " + seriesUID, e);
+        }
+      });
+    }
   }
 
   private static void validateInstances(List<Instance> instances) throws QuPathCloudException {
@@ -0,0 +1,202 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.pyramid;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Binary pyramid index file, read into memory in one go when an image is opened so no metadata
+ * has to be parsed. The file isn't memory-mapped: a mapping would keep it open until garbage
+ * collection, and Windows doesn't allow replacing a mapped file. All numbers are big-endian and
+ * strings are an int length followed by UTF-8 bytes.
+ *
+ * <pre>
+ * header:      int magic, int version, string Study UID, string Series UID, int level count
+ * level table: per level int width, height, tile width, tile height, full tiled (0 or 1),
+ *              long offset and long length of the level data
+ * level data:  int Instance count, Instance UID strings, frame table of the PyramidLevel
+ * </pre>
+ */
+public final class PyramidIndexFile {
+
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int MAGIC = 0x51505952;
+  private static final int VERSION = 1;
+  private static final int LEVEL_TABLE_ENTRY_SIZE = 5 * Integer.BYTES + 2 * Long.BYTES;
+
+  private PyramidIndexFile() {
+  }
+
+  /**
+   * Writes the index of a pyramid, building all its levels. The file is replaced atomically, so
+   * readers never see a partially written index.
+   *
+   * @param pyramid the pyramid
+   * @param indexFile the index file
+   * @throws QuPathCloudException if a level can't be built or an I/O error occurs
+   */
+  public static void write(Pyramid pyramid, Path indexFile) throws QuPathCloudException {
+    LOGGER.debug("Start writing pyramid index file");
+    List<PyramidLevel> levels = pyramid.getLevels();
+    List<byte[]> levelData = new ArrayList<>();
+    byte[] studyUID = pyramid.getStudyUID().getBytes(UTF_8);
+    byte[] seriesUID = pyramid.getSeriesUID().getBytes(UTF_8);
+    Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+    try {
+      for (PyramidLevel level : levels) {
+        level.build();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(level.getInstanceUIDs().size());
+        for (String instanceUID : level.getInstanceUIDs()) {
+          writeString(out, instanceUID.getBytes(UTF_8));
+        }
+        level.writeFrames(out);
+        levelData.add(bytes.toByteArray());
+      }
+
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, studyUID);
+        writeString(out, seriesUID);
+        out.writeInt(levels.size());
+        long offset = 5 * Integer.BYTES + studyUID.length + seriesUID.length
+            + (long) levels.size() * LEVEL_TABLE_ENTRY_SIZE;
+        for (int i = 0; i < levels.size(); i++) {
+          PyramidLevel level = levels.get(i);
+          out.writeInt(level.getWidth());
+          out.writeInt(level.getHeight());
+          out.writeInt(level.getTileWidth());
+          out.writeInt(level.getTileHeight());
+          out.writeInt(level.isFullTiled() ? 1 : 0);
+          out.writeLong(offset);
+          out.writeLong(levelData.get(i).length);
+          offset += levelData.get(i).length;
+        }
+        for (byte[] data : levelData) {
+          out.write(data);
+        }
+      }
+      Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      try {
+        Files.deleteIfExists(tempFile);
+      } catch (IOException deleteException) {
+        e.addSuppressed(deleteException);
+      }
+      throw new QuPathCloudException(e);
+    }
+  }
+
+  /**
+   * Reads an index file. Only the header and the level table are parsed, the frame table of a
+   * level is parsed when the level is built. The file is closed when this method returns.
+   *
+   * @param indexFile the index file
+   * @return the pyramid
+   * @throws QuPathCloudException if the file isn't a valid index file or an I/O error occurs
+   */
+  public static Pyramid read(Path indexFile) throws QuPathCloudException {
+    LOGGER.debug("Start reading pyramid index file");
+    ByteBuffer buffer;
+    try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new QuPathCloudException("Pyramid index file is too large: " + indexFile);
+      }
+      buffer = ByteBuffer.allocate((int) channel.size());
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new QuPathCloudException("Pyramid index file is truncated: " + indexFile);
+        }
+      }
+      buffer.flip();
+    } catch (IOException e) {
+      throw new QuPathCloudException(e);
+    }
+    try {
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        throw new QuPathCloudException("Not a supported pyramid index file: " + indexFile);
+      }
+      String studyUID = readString(buffer);
+      String seriesUID = readString(buffer);
+      int levelCount = buffer.getInt();
+      if (levelCount <= 0) {
+        throw new QuPathCloudException("Pyramid index file has no levels: " + indexFile);
+      }
+      List<PyramidLevel> levels = new ArrayList<>(levelCount);
+      for (int i = 0; i < levelCount; i++) {
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int tileWidth = buffer.getInt();
+        int tileHeight = buffer.getInt();
+        boolean isFullTiled = buffer.getInt() != 0;
+        ByteBuffer levelData = slice(buffer, buffer.getLong(), buffer.getLong());
+        int instanceCount = levelData.getInt();
+        List<String> instanceUIDs = new ArrayList<>(instanceCount);
+        for (int j = 0; j < instanceCount; j++) {
+          instanceUIDs.add(readString(levelData));
+        }
+        levels.add(new PyramidLevel(width, height, tileWidth, tileHeight, isFullTiled,
+            instanceUIDs, levelData.slice()));
+      }
+      return new Pyramid(studyUID, seriesUID, levels);
+    } catch (BufferUnderflowException | IllegalArgumentException
+        | NegativeArraySizeException e) {
+      throw new QuPathCloudException("Pyramid index file is truncated: " + indexFile);
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+    if (offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+      throw new BufferUnderflowException();
+    }
+    ByteBuffer slice = buffer.duplicate();
+    slice.position((int) offset);
+    slice.limit((int) (offset + length));
+    return slice.slice();
+  }
+
+  private static void writeString(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
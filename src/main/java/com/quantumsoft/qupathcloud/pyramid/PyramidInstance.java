@@ -0,0 +1,221 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.pyramid;
+
+import com.quantumsoft.qupathcloud.entities.DicomAttribute;
+import com.quantumsoft.qupathcloud.entities.instance.Instance;
+import com.quantumsoft.qupathcloud.entities.instance.objects.ObjectOfPerframeFunctionalGroupsSequence;
+
+/**
+ * The attributes of a whole-slide image Instance needed to build a Pyramid. The tile coordinates
+ * of TILED_SPARSE Instances are kept in primitive arrays instead of the object graph of the
+ * Per-frame Functional Groups Sequence.
+ */
+public final class PyramidInstance {
+
+  private final String studyInstanceUID;
+  private final String seriesInstanceUID;
+  private final String sopInstanceUID;
+  private final int totalPixelMatrixColumns;
+  private final int totalPixelMatrixRows;
+  private final int columns;
+  private final int rows;
+  private final int numberOfFrames;
+  private final boolean isFullTiled;
+  private final int concatenationFrameOffsetNumber;
+  private final int[] frameTileXs;
+  private final int[] frameTileYs;
+
+  /**
+   * Instantiates a new Pyramid instance.
+   *
+   * @param studyInstanceUID the Study Instance UID
+   * @param seriesInstanceUID the Series Instance UID
+   * @param sopInstanceUID the SOP Instance UID
+   * @param totalPixelMatrixColumns the Total Pixel Matrix Columns
+   * @param totalPixelMatrixRows the Total Pixel Matrix Rows
+   * @param columns the Columns
+   * @param rows the Rows
+   * @param numberOfFrames the Number of Frames
+   * @param isFullTiled true if the Dimension Organization Type is TILED_FULL
+   * @param concatenationFrameOffsetNumber the Concatenation Frame Offset Number, 0 if absent
+   * @param frameTileXs the first Dimension Index Value of each frame of a TILED_SPARSE Instance
+   * @param frameTileYs the second Dimension Index Value of each frame of a TILED_SPARSE Instance
+   */
+  public PyramidInstance(String studyInstanceUID, String seriesInstanceUID,
+      String sopInstanceUID, int totalPixelMatrixColumns, int totalPixelMatrixRows, int columns,
+      int rows, int numberOfFrames, boolean isFullTiled, int concatenationFrameOffsetNumber,
+      int[] frameTileXs, int[] frameTileYs) {
+    this.studyInstanceUID = studyInstanceUID;
+    this.seriesInstanceUID = seriesInstanceUID;
+    this.sopInstanceUID = sopInstanceUID;
+    this.totalPixelMatrixColumns = totalPixelMatrixColumns;
+    this.totalPixelMatrixRows = totalPixelMatrixRows;
+    this.columns = columns;
+    this.rows = rows;
+    this.numberOfFrames = numberOfFrames;
+    this.isFullTiled = isFullTiled;
+    this.concatenationFrameOffsetNumber = concatenationFrameOffsetNumber;
+    this.frameTileXs = frameTileXs;
+    this.frameTileYs = frameTileYs;
+  }
+
+  /**
+   * Creates a Pyramid instance from a validated Instance.
+   *
+   * @param instance the Instance
+   * @return the Pyramid instance
+   */
+  static PyramidInstance of(Instance instance) {
+    boolean isFullTiled = instance.isFullTiled();
+    DicomAttribute<Integer> frameOffset = instance.getConcatenationFrameOffsetNumber();
+    int[] frameTileXs = new int[0];
+    int[] frameTileYs = new int[0];
+    if (!isFullTiled && instance.getPerframeFunctionalGroupsSequence() != null) {
+      ObjectOfPerframeFunctionalGroupsSequence[] frames =
+          instance.getPerframeFunctionalGroupsSequence().getValue();
+      frameTileXs = new int[frames.length];
+      frameTileYs = new int[frames.length];
+      for (int i = 0; i < frames.length; i++) {
+        DicomAttribute<Integer> values = frames[i].getFrameContentSequence().getValue1()
+            .getDimensionIndexValues();
+        frameTileXs[i] = values.getValue1();
+        frameTileYs[i] = values.getValue2();
+      }
+    }
+    return new PyramidInstance(
+        instance.getStudyInstanceUID().getValue1(),
+        instance.getSeriesInstanceUID().getValue1(),
+        instance.getSopInstanceUID().getValue1(),
+        instance.getTotalPixelMatrixColumns().getValue1(),
+        instance.getTotalPixelMatrixRows().getValue1(),
+        instance.getColumns().getValue1(),
+        instance.getRows().getValue1(),
+        instance.getNumberOfFrames().getValue1(),
+        isFullTiled,
+        frameOffset == null ? 0 : frameOffset.getValue1(),
+        frameTileXs,
+        frameTileYs);
+  }
+
+  /**
+   * Gets Study Instance UID.
+   *
+   * @return the Study Instance UID
+   */
+  public String getStudyInstanceUID() {
+    return studyInstanceUID;
+  }
+
+  /**
+   * Gets Series Instance UID.
+   *
+   * @return the Series Instance UID
+   */
+  public String getSeriesInstanceUID() {
+    return seriesInstanceUID;
+  }
+
+  /**
+   * Gets SOP Instance UID.
+   *
+   * @return the SOP Instance UID
+   */
+  public String getSopInstanceUID() {
+    return sopInstanceUID;
+  }
+
+  /**
+   * Gets Total Pixel Matrix Columns.
+   *
+   * @return the Total Pixel Matrix Columns
+   */
+  public int getTotalPixelMatrixColumns() {
+    return totalPixelMatrixColumns;
+  }
+
+  /**
+   * Gets Total Pixel Matrix Rows.
+   *
+   * @return the Total Pixel Matrix Rows
+   */
+  public int getTotalPixelMatrixRows() {
+    return totalPixelMatrixRows;
+  }
+
+  /**
+   * Gets Columns.
+   *
+   * @return the Columns
+   */
+  public int getColumns() {
+    return columns;
+  }
+
+  /**
+   * Gets Rows.
+   *
+   * @return the Rows
+   */
+  public int getRows() {
+    return rows;
+  }
+
+  /**
+   * Gets Number of Frames.
+   *
+   * @return the Number of Frames
+   */
+  public int getNumberOfFrames() {
+    return numberOfFrames;
+  }
+
+  /**
+   * Is full tiled boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isFullTiled() {
+    return isFullTiled;
+  }
+
+  /**
+   * Gets Concatenation Frame Offset Number.
+   *
+   * @return the Concatenation Frame Offset Number, 0 if absent
+   */
+  public int getConcatenationFrameOffsetNumber() {
+    return concatenationFrameOffsetNumber;
+  }
+
+  /**
+   * Gets the tile x of each frame of a TILED_SPARSE Instance, starting at 1.
+   *
+   * @return the tile x of each frame
+   */
+  public int[] getFrameTileXs() {
+    return frameTileXs;
+  }
+
+  /**
+   * Gets the tile y of each frame of a TILED_SPARSE Instance, starting at 1.
+   *
+   * @return the tile y of each frame
+   */
+  public int[] getFrameTileYs() {
+    return frameTileYs;
+  }
+}
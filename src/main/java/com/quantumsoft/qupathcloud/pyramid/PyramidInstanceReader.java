@@ -0,0 +1,303 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.pyramid;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming reader of QIDO-RS Instance responses in the DICOM JSON model. Only the attributes
+ * needed to build a Pyramid are read, everything else is skipped token by token, and the
+ * Dimension Index Values of the Per-frame Functional Groups Sequence go straight into primitive
+ * arrays. Peak heap therefore grows with the number of frames, not with the size of the JSON.
+ */
+public final class PyramidInstanceReader {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+  private static final String VALUE = "Value";
+  private static final String TILED_FULL = "TILED_FULL";
+  private static final String INVALID_INSTANCE_MESSAGE =
+      "Not a valid DICOM WSI instance: %s, Reason: %s";
+
+  private static final String STUDY_INSTANCE_UID = "0020000D";
+  private static final String SERIES_INSTANCE_UID = "0020000E";
+  private static final String SOP_INSTANCE_UID = "00080018";
+  private static final String TOTAL_PIXEL_MATRIX_COLUMNS = "00480006";
+  private static final String TOTAL_PIXEL_MATRIX_ROWS = "00480007";
+  private static final String ROWS = "00280010";
+  private static final String COLUMNS = "00280011";
+  private static final String NUMBER_OF_FRAMES = "00280008";
+  private static final String DIMENSION_ORGANIZATION_TYPE = "00209311";
+  private static final String CONCATENATION_FRAME_OFFSET_NUMBER = "00209228";
+  private static final String PERFRAME_FUNCTIONAL_GROUPS_SEQUENCE = "52009230";
+  private static final String FRAME_CONTENT_SEQUENCE = "00209111";
+  private static final String DIMENSION_INDEX_VALUES = "00209157";
+
+  private PyramidInstanceReader() {
+  }
+
+  /**
+   * Reads the Instances of a QIDO-RS response.
+   *
+   * @param inputStream the response body, an empty body means no Instances
+   * @return the instances
+   * @throws IOException if the response can't be read
+   * @throws QuPathCloudException if the response isn't a list of valid DICOM WSI instances
+   */
+  public static List<PyramidInstance> read(InputStream inputStream)
+      throws IOException, QuPathCloudException {
+    List<PyramidInstance> instances = new ArrayList<>();
+    try (JsonParser parser = JSON_FACTORY.createParser(inputStream)) {
+      JsonToken token = parser.nextToken();
+      if (token == null) {
+        return instances;
+      }
+      if (token != JsonToken.START_ARRAY) {
+        throw new QuPathCloudException("QIDO-RS response is not a JSON array");
+      }
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        instances.add(readInstance(parser));
+      }
+    }
+    return instances;
+  }
+
+  private static PyramidInstance readInstance(JsonParser parser)
+      throws IOException, QuPathCloudException {
+    InstanceAttributes attributes = new InstanceAttributes();
+    forEachField(parser, (tag, attributeParser) -> {
+      switch (tag) {
+        case STUDY_INSTANCE_UID:
+          attributes.studyInstanceUID = readFirstString(attributeParser);
+          break;
+        case SERIES_INSTANCE_UID:
+          attributes.seriesInstanceUID = readFirstString(attributeParser);
+          break;
+        case SOP_INSTANCE_UID:
+          attributes.sopInstanceUID = readFirstString(attributeParser);
+          break;
+        case DIMENSION_ORGANIZATION_TYPE:
+          attributes.dimensionOrganizationType = readFirstString(attributeParser);
+          break;
+        case TOTAL_PIXEL_MATRIX_COLUMNS:
+          attributes.totalPixelMatrixColumns = readFirstInt(attributeParser);
+          break;
+        case TOTAL_PIXEL_MATRIX_ROWS:
+          attributes.totalPixelMatrixRows = readFirstInt(attributeParser);
+          break;
+        case COLUMNS:
+          attributes.columns = readFirstInt(attributeParser);
+          break;
+        case ROWS:
+          attributes.rows = readFirstInt(attributeParser);
+          break;
+        case NUMBER_OF_FRAMES:
+          attributes.numberOfFrames = readFirstInt(attributeParser);
+          break;
+        case CONCATENATION_FRAME_OFFSET_NUMBER:
+          attributes.concatenationFrameOffsetNumber = Math.max(0, readFirstInt(attributeParser));
+          break;
+        case PERFRAME_FUNCTIONAL_GROUPS_SEQUENCE:
+          readFrameTiles(attributeParser, attributes.frameTileXs, attributes.frameTileYs);
+          break;
+        default:
+          attributeParser.skipChildren();
+      }
+    });
+    return attributes.toPyramidInstance();
+  }
+
+  private static void readFrameTiles(JsonParser parser, IntList frameTileXs,
+      IntList frameTileYs) throws IOException, QuPathCloudException {
+    forEachValue(parser, frameParser -> {
+      int[] dimensionIndexValues = {-1, -1};
+      forEachField(frameParser, (tag, frameContentParser) -> {
+        if (!FRAME_CONTENT_SEQUENCE.equals(tag)) {
+          frameContentParser.skipChildren();
+          return;
+        }
+        forEachValue(frameContentParser, itemParser ->
+            forEachField(itemParser, (itemTag, valuesParser) -> {
+              if (!DIMENSION_INDEX_VALUES.equals(itemTag)) {
+                valuesParser.skipChildren();
+                return;
+              }
+              int[] index = {0};
+              forEachValue(valuesParser, valueParser -> {
+                if (index[0] < dimensionIndexValues.length) {
+                  dimensionIndexValues[index[0]++] = valueParser.getValueAsInt(-1);
+                }
+                valueParser.skipChildren();
+              });
+            }));
+      });
+      if (dimensionIndexValues[0] < 0 || dimensionIndexValues[1] < 0) {
+        throw new QuPathCloudException(String.format(INVALID_INSTANCE_MESSAGE, "unknown",
+            "DimensionIndexValues tag absent"));
+      }
+      frameTileXs.add(dimensionIndexValues[0]);
+      frameTileYs.add(dimensionIndexValues[1]);
+    });
+  }
+
+  private static String readFirstString(JsonParser parser)
+      throws IOException, QuPathCloudException {
+    String[] value = new String[1];
+    forEachValue(parser, valueParser -> {
+      if (value[0] == null && valueParser.currentToken() == JsonToken.VALUE_STRING) {
+        value[0] = valueParser.getText();
+      }
+      valueParser.skipChildren();
+    });
+    return value[0];
+  }
+
+  private static int readFirstInt(JsonParser parser) throws IOException, QuPathCloudException {
+    // the values of IS attributes may come as strings
+    int[] value = {-1};
+    boolean[] read = {false};
+    forEachValue(parser, valueParser -> {
+      if (!read[0]) {
+        value[0] = valueParser.getValueAsInt(-1);
+        read[0] = true;
+      }
+      valueParser.skipChildren();
+    });
+    return value[0];
+  }
+
+  // calls the handler with the parser at the value of each field of the current object
+  private static void forEachField(JsonParser parser, FieldHandler handler)
+      throws IOException, QuPathCloudException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return;
+    }
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      handler.handle(name, parser);
+    }
+  }
+
+  // calls the handler with the parser at each element of the Value array of the current attribute
+  private static void forEachValue(JsonParser parser, ValueHandler handler)
+      throws IOException, QuPathCloudException {
+    forEachField(parser, (name, valueParser) -> {
+      if (!VALUE.equals(name) || valueParser.currentToken() != JsonToken.START_ARRAY) {
+        valueParser.skipChildren();
+        return;
+      }
+      while (valueParser.nextToken() != JsonToken.END_ARRAY) {
+        handler.handle(valueParser);
+      }
+    });
+  }
+
+  private static final class InstanceAttributes {
+
+    private String studyInstanceUID;
+    private String seriesInstanceUID;
+    private String sopInstanceUID;
+    private String dimensionOrganizationType;
+    // -1 marks an absent attribute
+    private int totalPixelMatrixColumns = -1;
+    private int totalPixelMatrixRows = -1;
+    private int columns = -1;
+    private int rows = -1;
+    private int numberOfFrames = -1;
+    private int concatenationFrameOffsetNumber;
+    private final IntList frameTileXs = new IntList();
+    private final IntList frameTileYs = new IntList();
+
+    private PyramidInstance toPyramidInstance() throws QuPathCloudException {
+      if (sopInstanceUID == null) {
+        throw invalidInstance("SopInstanceUID tag absent");
+      }
+      if (studyInstanceUID == null || seriesInstanceUID == null) {
+        throw invalidInstance("StudyInstanceUID or SeriesInstanceUID tag absent");
+      }
+      if (totalPixelMatrixColumns < 0) {
+        throw invalidInstance("TotalPixelMatrixColumns tag absent");
+      }
+      if (totalPixelMatrixRows < 0) {
+        throw invalidInstance("TotalPixelMatrixRows tag absent");
+      }
+      if (columns < 0) {
+        throw invalidInstance("Columns tag absent");
+      }
+      if (rows < 0) {
+        throw invalidInstance("Rows tag absent");
+      }
+      if (numberOfFrames < 0) {
+        throw invalidInstance("NumberOfFrames tag absent");
+      }
+      boolean isFullTiled = TILED_FULL.equals(dimensionOrganizationType);
+      if (!isFullTiled && frameTileXs.size == 0) {
+        throw invalidInstance(
+            "TILED_SPARSE(default), but PerframeFunctionalGroupsSequence is absent");
+      }
+      // TILED_FULL instances may have no per-frame items, but never a partial list of them
+      if (frameTileXs.size != 0 && frameTileXs.size != numberOfFrames) {
+        throw invalidInstance("NumberOfFrames is " + numberOfFrames + ", but "
+            + "PerframeFunctionalGroupsSequence has " + frameTileXs.size + " items");
+      }
+      return new PyramidInstance(studyInstanceUID, seriesInstanceUID, sopInstanceUID,
+          totalPixelMatrixColumns, totalPixelMatrixRows, columns, rows, numberOfFrames,
+          isFullTiled, concatenationFrameOffsetNumber,
+          frameTileXs.toArray(), frameTileYs.toArray());
+    }
+
+    private QuPathCloudException invalidInstance(String reason) {
+      return new QuPathCloudException(String.format(INVALID_INSTANCE_MESSAGE,
+          sopInstanceUID == null ? "unknown" : sopInstanceUID, reason));
+    }
+  }
+
+  private interface FieldHandler {
+
+    void handle(String name, JsonParser parser) throws IOException, QuPathCloudException;
+  }
+
+  private interface ValueHandler {
+
+    void handle(JsonParser parser) throws IOException, QuPathCloudException;
+  }
+
+  private static final class IntList {
+
+    private int[] values = new int[16];
+    private int size;
+
+    private void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    private int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -15,41 +15,93 @@
 
 package com.quantumsoft.qupathcloud.pyramid;
 
-import com.quantumsoft.qupathcloud.entities.DicomAttribute;
-import com.quantumsoft.qupathcloud.entities.instance.Instance;
-import com.quantumsoft.qupathcloud.entities.instance.objects.ObjectOfPerframeFunctionalGroupsSequence;
 import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
-import java.awt.Point;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * The PyramidLevel contains Pyramid frames with level parameters for a level of a whole-slide
- * image.
+ * image. Frames are indexed in primitive arrays holding the ordinal of the Instance UID and the
+ * frame number of every tile, so looking a frame up allocates nothing. Tiles of TILED_FULL levels
+ * are addressed directly by y * widthInTiles + x; TILED_SPARSE levels, which may have frames for
+ * only a part of the tiles, use an open addressing table keyed by the tile coordinates. The index
+ * is built on first access, so opening a slide only pays for the levels actually viewed.
  */
 public class PyramidLevel {
 
+  private static final Logger LOGGER = LogManager.getLogger();
+  private static final int INITIAL_SPARSE_CAPACITY = 64;
+
   private int width;
   private int height;
   private int tileWidth;
   private int tileHeight;
 
   private boolean isFullTiled;
+  private int widthInTiles;
+  private int heightInTiles;
+
+  private List<PyramidInstance> pendingInstances = new ArrayList<>();
+  // frame table of a level read from a pyramid index file, used instead of Instances
+  private ByteBuffer storedFrames;
+  private volatile boolean built;
+  private QuPathCloudException buildError;
 
-  private HashMap<Point, PyramidFrame> frameMap = new HashMap<>();
+  private final List<String> instanceUIDs = new ArrayList<>();
+  // dense index of TILED_FULL levels, frame number 0 marks a tile without a frame
+  private int[] instanceOrdinals;
+  private int[] frameNumbers;
+  // sparse index of TILED_SPARSE levels, key 0 marks an empty slot as tile coordinates start at 1
+  private long[] sparseKeys;
+  private int[] sparseInstanceOrdinals;
+  private int[] sparseFrameNumbers;
+  private int sparseSize;
 
   /**
    * Instantiates a new Pyramid level.
    *
    * @param instance the instance
    */
-  public PyramidLevel(Instance instance) {
-    this.width = instance.getTotalPixelMatrixColumns().getValue1();
-    this.height = instance.getTotalPixelMatrixRows().getValue1();
-    this.tileWidth = instance.getColumns().getValue1();
-    this.tileHeight = instance.getRows().getValue1();
+  public PyramidLevel(PyramidInstance instance) {
+    this.width = instance.getTotalPixelMatrixColumns();
+    this.height = instance.getTotalPixelMatrixRows();
+    this.tileWidth = instance.getColumns();
+    this.tileHeight = instance.getRows();
     this.isFullTiled = instance.isFullTiled();
+    this.widthInTiles = (int) Math.ceil((double) width / tileWidth);
+    this.heightInTiles = (int) Math.ceil((double) height / tileHeight);
+  }
+
+  /**
+   * Instantiates a new Pyramid level from the frame table of a pyramid index file.
+   *
+   * @param width the width
+   * @param height the height
+   * @param tileWidth the tile width
+   * @param tileHeight the tile height
+   * @param isFullTiled true if the level is TILED_FULL
+   * @param instanceUIDs the Instance UIDs by their ordinal
+   * @param storedFrames the frame table written by {@link #writeFrames(DataOutput)}
+   */
+  PyramidLevel(int width, int height, int tileWidth, int tileHeight, boolean isFullTiled,
+      List<String> instanceUIDs, ByteBuffer storedFrames) {
+    this.width = width;
+    this.height = height;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    this.isFullTiled = isFullTiled;
+    this.widthInTiles = (int) Math.ceil((double) width / tileWidth);
+    this.heightInTiles = (int) Math.ceil((double) height / tileHeight);
+    this.instanceUIDs.addAll(instanceUIDs);
+    this.pendingInstances = null;
+    this.storedFrames = storedFrames;
   }
 
   /**
@@ -88,6 +140,24 @@ public class PyramidLevel {
     return tileHeight;
   }
 
+  /**
+   * Checks whether the level is TILED_FULL.
+   *
+   * @return true if the level is TILED_FULL
+   */
+  boolean isFullTiled() {
+    return isFullTiled;
+  }
+
+  /**
+   * Gets Instance UIDs by their ordinal in the frame table.
+   *
+   * @return the Instance UIDs
+   */
+  List<String> getInstanceUIDs() {
+    return instanceUIDs;
+  }
+
   /**
    * Gets frame.
    *
@@ -96,35 +166,187 @@ public class PyramidLevel {
    * @return the frame
    */
   public PyramidFrame getFrame(int tileX, int tileY) {
-    return frameMap.get(new Point(tileX, tileY));
+    int frameNumber = getFrameNumber(tileX, tileY);
+    if (frameNumber == 0) {
+      return null;
+    }
+    return new PyramidFrame(getFrameInstanceUID(tileX, tileY), frameNumber);
+  }
+
+  /**
+   * Gets frame number of a tile without allocating.
+   *
+   * @param tileX the tile x, starting at 1
+   * @param tileY the tile y, starting at 1
+   * @return the frame number within its Instance or 0 if the tile has no frame
+   */
+  public int getFrameNumber(int tileX, int tileY) {
+    if (!built && !buildQuietly()) {
+      return 0;
+    }
+    if (isFullTiled) {
+      int index = getDenseIndex(tileX, tileY);
+      return index < 0 ? 0 : frameNumbers[index];
+    }
+    int slot = findSparseSlot(tileX, tileY);
+    return sparseKeys[slot] == 0 ? 0 : sparseFrameNumbers[slot];
   }
 
   /**
-   * Add Instance.
+   * Gets Instance UID of the frame of a tile without allocating.
+   *
+   * @param tileX the tile x, starting at 1
+   * @param tileY the tile y, starting at 1
+   * @return the Instance UID or null if the tile has no frame
+   */
+  public String getFrameInstanceUID(int tileX, int tileY) {
+    if (!built && !buildQuietly()) {
+      return null;
+    }
+    if (isFullTiled) {
+      int index = getDenseIndex(tileX, tileY);
+      return index < 0 || frameNumbers[index] == 0
+          ? null : instanceUIDs.get(instanceOrdinals[index]);
+    }
+    int slot = findSparseSlot(tileX, tileY);
+    return sparseKeys[slot] == 0 ? null : instanceUIDs.get(sparseInstanceOrdinals[slot]);
+  }
+
+  /**
+   * Add Instance. Its frames are indexed when the level is built.
    *
    * @param instance the Instance
    * @throws QuPathCloudException if an exception occurs
    */
-  public void addInstance(Instance instance) throws QuPathCloudException {
-    if (instance.getTotalPixelMatrixColumns().getValue1() != width ||
-        instance.getTotalPixelMatrixRows().getValue1() != height ||
-        instance.getColumns().getValue1() != tileWidth ||
-        instance.getRows().getValue1() != tileHeight ||
+  public synchronized void addInstance(PyramidInstance instance) throws QuPathCloudException {
+    if (instance.getTotalPixelMatrixColumns() != width ||
+        instance.getTotalPixelMatrixRows() != height ||
+        instance.getColumns() != tileWidth ||
+        instance.getRows() != tileHeight ||
         instance.isFullTiled() != isFullTiled
     ) {
       throw new QuPathCloudException("PyramidLevel and instance parameters do not match");
     }
-    String instanceUID = instance.getSopInstanceUID().getValue1();
+    if (pendingInstances == null) {
+      throw new QuPathCloudException("PyramidLevel is already built");
+    }
+    pendingInstances.add(instance);
+  }
 
+  /**
+   * Builds the frame index from the added Instances, if it isn't built yet. Frame lookups build
+   * the level themselves, this method surfaces build errors to the caller.
+   *
+   * @throws QuPathCloudException if the Instances have tiles with same coordinates
+   */
+  public synchronized void build() throws QuPathCloudException {
+    if (built) {
+      return;
+    }
+    if (buildError != null) {
+      throw buildError;
+    }
+    try {
+      if (isFullTiled) {
+        instanceOrdinals = new int[widthInTiles * heightInTiles];
+        frameNumbers = new int[widthInTiles * heightInTiles];
+      } else {
+        sparseKeys = new long[INITIAL_SPARSE_CAPACITY];
+        sparseInstanceOrdinals = new int[INITIAL_SPARSE_CAPACITY];
+        sparseFrameNumbers = new int[INITIAL_SPARSE_CAPACITY];
+      }
+      if (storedFrames != null) {
+        readStoredFrames();
+      } else {
+        for (PyramidInstance instance : pendingInstances) {
+          indexInstance(instance);
+        }
+      }
+    } catch (QuPathCloudException e) {
+      buildError = e;
+      throw e;
+    }
+    pendingInstances = null;
+    storedFrames = null;
+    built = true;
+  }
+
+  /**
+   * Writes the frame table of the built level. TILED_FULL levels are written as the instance
+   * ordinals and frame numbers of all tiles in row-major order, TILED_SPARSE levels as the number
+   * of frames followed by the tile x, tile y, instance ordinal and frame number of each frame.
+   *
+   * @param out the output
+   * @throws IOException if an I/O error occurs
+   */
+  synchronized void writeFrames(DataOutput out) throws IOException {
     if (isFullTiled) {
-      int numberOfFrames = instance.getNumberOfFrames().getValue1();
+      for (int instanceOrdinal : instanceOrdinals) {
+        out.writeInt(instanceOrdinal);
+      }
+      for (int frameNumber : frameNumbers) {
+        out.writeInt(frameNumber);
+      }
+      return;
+    }
+    int[][] columns = new int[4][sparseSize];
+    int i = 0;
+    for (int slot = 0; slot < sparseKeys.length; slot++) {
+      if (sparseKeys[slot] != 0) {
+        columns[0][i] = (int) (sparseKeys[slot] >>> 32);
+        columns[1][i] = (int) sparseKeys[slot];
+        columns[2][i] = sparseInstanceOrdinals[slot];
+        columns[3][i] = sparseFrameNumbers[slot];
+        i++;
+      }
+    }
+    out.writeInt(sparseSize);
+    for (int[] column : columns) {
+      for (int value : column) {
+        out.writeInt(value);
+      }
+    }
+  }
 
-      // single-instance levels can come without concatenation tags
-      DicomAttribute<Integer> frameOffsetAttribute = instance.getConcatenationFrameOffsetNumber();
-      int frameOffset = frameOffsetAttribute == null ? 0 : frameOffsetAttribute.getValue1();
+  private boolean buildQuietly() {
+    try {
+      build();
+      return true;
+    } catch (QuPathCloudException e) {
+      LOGGER.debug("PyramidLevel has no frames, its build failed", e);
+      return false;
+    }
+  }
 
-      int widthInTiles = (int) Math.ceil((double) width / tileWidth);
-      int heightInTiles = (int) Math.ceil((double) height / tileHeight);
+  private void readStoredFrames() throws QuPathCloudException {
+    IntBuffer frames = storedFrames.duplicate().asIntBuffer();
+    try {
+      if (isFullTiled) {
+        frames.get(instanceOrdinals).get(frameNumbers);
+        return;
+      }
+      int count = frames.get();
+      int[] tileXs = new int[count];
+      int[] tileYs = new int[count];
+      int[] ordinals = new int[count];
+      int[] numbers = new int[count];
+      frames.get(tileXs).get(tileYs).get(ordinals).get(numbers);
+      for (int i = 0; i < count; i++) {
+        putSparseFrame(tileXs[i], tileYs[i], ordinals[i], numbers[i]);
+      }
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new QuPathCloudException("Pyramid index file is truncated");
+    }
+  }
+
+  private void indexInstance(PyramidInstance instance) throws QuPathCloudException {
+    int instanceOrdinal = instanceUIDs.size();
+    instanceUIDs.add(instance.getSopInstanceUID());
+
+    if (isFullTiled) {
+      int numberOfFrames = instance.getNumberOfFrames();
+      // single-instance levels can come without concatenation tags, the offset is 0 then
+      int frameOffset = instance.getConcatenationFrameOffsetNumber();
 
       int startX = Math.floorMod(frameOffset, widthInTiles);
       int startY = Math.floorDiv(frameOffset, widthInTiles);
@@ -132,12 +354,12 @@ public class PyramidLevel {
       int frameIndex = 0;
       for (int y = startY; y < heightInTiles; y++) {
         for (int x = frameIndex == 0 ? startX : 0; x < widthInTiles; x++) {
-          Point tileCoordinate = new Point(x + 1, y + 1);
-          if (frameMap.get(tileCoordinate) != null) {
+          int index = y * widthInTiles + x;
+          if (frameNumbers[index] != 0) {
             throw new QuPathCloudException("PyramidLevel build error: tiles with same coordinates");
           }
-          PyramidFrame frame = new PyramidFrame(instanceUID, ++frameIndex);
-          frameMap.put(tileCoordinate, frame);
+          instanceOrdinals[index] = instanceOrdinal;
+          frameNumbers[index] = ++frameIndex;
 
           if (frameIndex >= numberOfFrames) {
             break;
@@ -148,24 +370,68 @@ public class PyramidLevel {
         }
       }
     } else {
-      ObjectOfPerframeFunctionalGroupsSequence[] objectsOfPerframeFunctionalGroupsSequences =
-          instance.getPerframeFunctionalGroupsSequence().getValue();
-      List<ObjectOfPerframeFunctionalGroupsSequence> frameList =
-          Arrays.asList(objectsOfPerframeFunctionalGroupsSequences);
-      for (int i = 0; i < frameList.size(); i++) {
-        Point tileCoordinate = getFrameCoordinate(frameList.get(i));
-        if (frameMap.get(tileCoordinate) != null) {
-          throw new QuPathCloudException("PyramidLevel build error: tiles with same coordinates");
-        }
-        PyramidFrame frame = new PyramidFrame(instanceUID, i + 1);
-        frameMap.put(tileCoordinate, frame);
+      int[] frameTileXs = instance.getFrameTileXs();
+      int[] frameTileYs = instance.getFrameTileYs();
+      for (int i = 0; i < frameTileXs.length; i++) {
+        putSparseFrame(frameTileXs[i], frameTileYs[i], instanceOrdinal, i + 1);
+      }
+    }
+  }
+
+  private int getDenseIndex(int tileX, int tileY) {
+    if (tileX < 1 || tileX > widthInTiles || tileY < 1 || tileY > heightInTiles) {
+      return -1;
+    }
+    return (tileY - 1) * widthInTiles + tileX - 1;
+  }
+
+  private void putSparseFrame(int tileX, int tileY, int instanceOrdinal, int frameNumber)
+      throws QuPathCloudException {
+    if (tileX < 1 || tileY < 1) {
+      throw new QuPathCloudException("PyramidLevel build error: invalid tile coordinates");
+    }
+    // the table is kept at most half full, so probe sequences stay short
+    if ((sparseSize + 1) * 2 > sparseKeys.length) {
+      resizeSparseIndex();
+    }
+    int slot = findSparseSlot(tileX, tileY);
+    if (sparseKeys[slot] != 0) {
+      throw new QuPathCloudException("PyramidLevel build error: tiles with same coordinates");
+    }
+    sparseKeys[slot] = getSparseKey(tileX, tileY);
+    sparseInstanceOrdinals[slot] = instanceOrdinal;
+    sparseFrameNumbers[slot] = frameNumber;
+    sparseSize++;
+  }
+
+  private int findSparseSlot(int tileX, int tileY) {
+    long key = getSparseKey(tileX, tileY);
+    int mask = sparseKeys.length - 1;
+    int slot = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+    while (sparseKeys[slot] != 0 && sparseKeys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resizeSparseIndex() {
+    long[] oldKeys = sparseKeys;
+    int[] oldInstanceOrdinals = sparseInstanceOrdinals;
+    int[] oldFrameNumbers = sparseFrameNumbers;
+    sparseKeys = new long[oldKeys.length * 2];
+    sparseInstanceOrdinals = new int[oldKeys.length * 2];
+    sparseFrameNumbers = new int[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int slot = findSparseSlot((int) (oldKeys[i] >>> 32), (int) oldKeys[i]);
+        sparseKeys[slot] = oldKeys[i];
+        sparseInstanceOrdinals[slot] = oldInstanceOrdinals[i];
+        sparseFrameNumbers[slot] = oldFrameNumbers[i];
       }
     }
   }
 
-  private static Point getFrameCoordinate(ObjectOfPerframeFunctionalGroupsSequence frame) {
-    DicomAttribute<Integer> values = frame.getFrameContentSequence().getValue1()
-        .getDimensionIndexValues();
-    return new Point(values.getValue1(), values.getValue2());
+  private static long getSparseKey(int tileX, int tileY) {
+    return ((long) tileX << 32) | (tileY & 0xFFFFFFFFL);
   }
 }
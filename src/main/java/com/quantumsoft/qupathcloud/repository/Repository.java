@@ -17,6 +17,8 @@ package com.quantumsoft.qupathcloud.repository;
 
 import static com.quantumsoft.qupathcloud.converter.ImageDataUtilities.LAST_CHANGE;
 
+import com.quantumsoft.qupathcloud.cache.FrameDiskCache;
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
 import com.quantumsoft.qupathcloud.configuration.DicomStoreConfiguration;
 import com.quantumsoft.qupathcloud.dao.CloudDao;
 import com.quantumsoft.qupathcloud.dao.CloudDaoImpl;
@@ -55,6 +57,10 @@ public enum Repository {
    */
   INSTANCE;
 
+  // next to the OAuth20 store directory
+  private static final String FRAME_CACHE_DIRECTORY = ".store/frames";
+  private static final String FRAME_CACHE_SIZE_MB_PROPERTY = "quPathCloud.frameCacheSizeMb";
+  private static final int DEFAULT_FRAME_CACHE_SIZE_MB = 2048;
   private final Logger LOGGER = LogManager.getLogger();
   private final ObjectProperty<DicomStore> dicomStore;
   private final ObjectProperty<CloudDao> cloudDao;
@@ -99,13 +105,17 @@ public enum Repository {
           Dialogs.showErrorMessage("Repository error!", e);
         }
       };
-      new Thread(loader).start();
+      IoExecutors.start(loader);
     });
 
     cloudDao = new SimpleObjectProperty<>();
     Path baseQupathDirectory = Paths.get(PathPrefs.getUserPath());
     OAuth20 oAuth20 = new OAuth20(baseQupathDirectory);
-    cloudDao.set(new CloudDaoImpl(oAuth20));
+    long frameCacheSize = Integer.getInteger(FRAME_CACHE_SIZE_MB_PROPERTY,
+        DEFAULT_FRAME_CACHE_SIZE_MB) * 1024L * 1024L;
+    FrameDiskCache frameDiskCache =
+        new FrameDiskCache(baseQupathDirectory.resolve(FRAME_CACHE_DIRECTORY), frameCacheSize);
+    cloudDao.set(new CloudDaoImpl(oAuth20, frameDiskCache));
 
     hierarchyListener = new QuPathHierarchyListener();
     qupath.imageDataProperty().addListener(hierarchyListener);
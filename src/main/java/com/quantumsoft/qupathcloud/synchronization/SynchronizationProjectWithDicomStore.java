@@ -15,8 +15,10 @@
 
 package com.quantumsoft.qupathcloud.synchronization;
 
-import static com.quantumsoft.qupathcloud.configuration.MetadataConfiguration.METADATA_FILE_EXTENSION;
+import static com.quantumsoft.qupathcloud.configuration.MetadataConfiguration.isMetadataFileExtension;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.quantumsoft.qupathcloud.concurrent.IoExecutors;
 import com.quantumsoft.qupathcloud.configuration.MetadataConfiguration;
 import com.quantumsoft.qupathcloud.converter.ImageDataUtilities;
 import com.quantumsoft.qupathcloud.converter.dicomizer.ImageToWsiDcmConverter;
@@ -24,6 +26,8 @@ import com.quantumsoft.qupathcloud.converter.qpdata.DataToDcmConverter;
 import com.quantumsoft.qupathcloud.converter.qpdata.DcmToDataConverter;
 import com.quantumsoft.qupathcloud.dao.CloudDao;
 import com.quantumsoft.qupathcloud.dao.DaoHelper;
+import com.quantumsoft.qupathcloud.dao.QidoSearch;
+import com.quantumsoft.qupathcloud.dao.TransferJournal;
 import com.quantumsoft.qupathcloud.dao.spec.QueryBuilder;
 import com.quantumsoft.qupathcloud.entities.DicomStore;
 import com.quantumsoft.qupathcloud.entities.Series;
@@ -32,6 +36,7 @@ import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
 import com.quantumsoft.qupathcloud.gui.windows.ConflictsWindow;
 import com.quantumsoft.qupathcloud.gui.windows.SynchronizationWindow;
 import com.quantumsoft.qupathcloud.imageserver.CloudImageServer;
+import com.quantumsoft.qupathcloud.pyramid.PyramidInstance;
 import com.quantumsoft.qupathcloud.repository.Repository;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
@@ -46,13 +51,13 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import javafx.application.Platform;
 import javafx.util.Pair;
 import org.apache.commons.io.FileUtils;
@@ -71,6 +76,10 @@ import qupath.lib.projects.ProjectImageEntry;
 public class SynchronizationProjectWithDicomStore {
 
   private static final Path METADATA_FOLDER = Paths.get("metadata");
+  private static final Path TRANSFERS_FOLDER = Paths.get("transfers");
+  private static final Path DICOM_FOLDER = Paths.get("dicom");
+  private static final Path JOURNAL_FILE = Paths.get("journal");
+  private static final String DICOMIZATION_STEP = "#dicomized";
   private static final Path QU_PATH_DATA_FILE = Paths.get("data.qpdata");
   private static final Logger LOGGER = LogManager.getLogger();
   private CloudDao cloudDao;
@@ -108,10 +117,19 @@ public class SynchronizationProjectWithDicomStore {
     synchronizationWindow.showSynchronizationWindow();
     Runnable loader = () -> {
       try {
-        synchronizeImages();
+        // failed image uploads don't stop the rest of the synchronization
+        QuPathCloudException imagesException = null;
+        try {
+          synchronizeImages();
+        } catch (QuPathCloudException e) {
+          imagesException = e;
+        }
         synchronizeMetadata();
         synchronizeQpdata();
         project.syncChanges();
+        if (imagesException != null) {
+          throw imagesException;
+        }
       } catch (QuPathCloudException | IOException e) {
         LOGGER.error("Synchronization error: ", e);
         Dialogs.showErrorMessage("Synchronization error!", e);
@@ -122,14 +140,15 @@ public class SynchronizationProjectWithDicomStore {
         });
       }
     };
-    Thread loadThread = new Thread(loader);
-    loadThread.start();
+    IoExecutors.start(loader);
   }
 
   private void synchronizeImages() throws QuPathCloudException {
     List<ProjectImageEntry<BufferedImage>> imageList = project.getImageList();
-    ExecutorService executorService = Executors.newSingleThreadExecutor();
-    List<Future<Void>> futureList = new ArrayList<>();
+    // uploads overlap with the dicomization of the next images
+    List<CompletableFuture<Void>> uploadFutures = new ArrayList<>();
+    List<ProjectImageEntry<BufferedImage>> uploadedEntries = new ArrayList<>();
+    List<TransferJournal> journals = new ArrayList<>();
     QueryBuilder queryBuilder = QueryBuilder.forProject(projectId)
         .setLocationId(locationId)
         .setDatasetId(datasetId)
@@ -137,60 +156,118 @@ public class SynchronizationProjectWithDicomStore {
     List<Series> remoteSeriesList = cloudDao.getSeries(queryBuilder);
     List<Series> remoteImageSeriesList = DaoHelper.getImageSeries(remoteSeriesList);
 
-    List<Path> tempDirectories = new ArrayList<>();
-    for (ProjectImageEntry<BufferedImage> currentEntry : imageList) {
-      URI serverUri;
-      try {
-        serverUri = currentEntry.getServerURIs().iterator().next();
-      } catch (IOException e) {
-        throw new QuPathCloudException(e);
-      }
-
-      String imageExtension = FilenameUtils.getExtension(serverUri.toString());
-      String imageName = FilenameUtils.getBaseName(serverUri.toString());
-
-      if (!imageExtension.equals(METADATA_FILE_EXTENSION)) {
-        Path tempDirectory = createTempDirectory("QuPath-");
-        tempDirectory.toFile().deleteOnExit();
-        tempDirectories.add(tempDirectory);
-
-        Path pathToImage = Paths.get(serverUri);
-        ImageToWsiDcmConverter converter = new ImageToWsiDcmConverter(pathToImage, tempDirectory);
-        String checkedFileName = checkFileName(remoteImageSeriesList, imageName);
-        converter.convertImageToWsiDcm(checkedFileName);
-
-        List<Path> dicomizedFiles;
+    // a failed image stays in the project for the next synchronization, the others are done
+    List<Exception> failures = new ArrayList<>();
+    int imageCount = 0;
+    try {
+      for (ProjectImageEntry<BufferedImage> currentEntry : imageList) {
+        URI serverUri;
         try {
-          dicomizedFiles = Files.list(tempDirectory).collect(Collectors.toList());
+          serverUri = currentEntry.getServerURIs().iterator().next();
         } catch (IOException e) {
           throw new QuPathCloudException(e);
         }
-        if (dicomizedFiles.size() == 0) {
-          String errorParam = MessageFormat.format("Dicomization failed for: {0}", serverUri);
-          throw new QuPathCloudException(errorParam);
+        if (isMetadataFileExtension(FilenameUtils.getExtension(serverUri.toString()))) {
+          continue;
+        }
+        imageCount++;
+        // the transfer of an image is kept in the project until it's done, so an interrupted
+        // synchronization resumes without dicomizing the image or uploading files again
+        Path transferDirectory = projectDirectory.resolve(TRANSFERS_FOLDER).resolve(
+            UUID.nameUUIDFromBytes(serverUri.toString().getBytes(UTF_8)).toString());
+        TransferJournal journal = TransferJournal.open(transferDirectory.resolve(JOURNAL_FILE));
+        journals.add(journal);
+        try {
+          uploadFutures.add(startImageUpload(queryBuilder, serverUri, remoteImageSeriesList,
+              transferDirectory.resolve(DICOM_FOLDER), journal));
+          uploadedEntries.add(currentEntry);
+        } catch (QuPathCloudException | RuntimeException e) {
+          LOGGER.error("Dicomization of {} failed, it will be retried by the next synchronization",
+              currentEntry.getImageName(), e);
+          failures.add(e);
+          journals.remove(journal);
+          closeJournal(journal);
+        }
+      }
+
+      for (int i = 0; i < uploadFutures.size(); i++) {
+        TransferJournal journal = journals.get(i);
+        try {
+          uploadFutures.get(i).get();
+          journal.close();
+          deleteDirectory(journal.getJournalFile().getParent());
+          project.removeImage(uploadedEntries.get(i), true);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new QuPathCloudException(e);
+        } catch (ExecutionException | IOException | QuPathCloudException e) {
+          String imageName = uploadedEntries.get(i).getImageName();
+          LOGGER.error("Upload of {} failed, it will be resumed by the next synchronization",
+              imageName, e);
+          failures.add(e);
         }
-        queryBuilder.setPaths(dicomizedFiles);
-        Callable<Void> callable = () -> {
-          cloudDao.uploadToDicomStore(queryBuilder);
-          return null;
-        };
-        Future<Void> future = executorService.submit(callable);
-        futureList.add(future);
-
-        project.removeImage(currentEntry, true);
       }
+    } finally {
+      // uploads are awaited above, anything still running here is left behind by a failure
+      uploadFutures.forEach(future -> future.cancel(true));
+      journals.forEach(this::closeJournal);
+    }
+    if (failures.isEmpty()) {
+      // also drops transfers of images removed from the project before they were done
+      deleteDirectory(projectDirectory.resolve(TRANSFERS_FOLDER));
+    } else {
+      QuPathCloudException exception = new QuPathCloudException(failures.size() + " of "
+          + imageCount + " image uploads failed", failures.get(0));
+      for (Exception failure : failures.subList(1, failures.size())) {
+        exception.addSuppressed(failure);
+      }
+      throw exception;
     }
-    for (Future<Void> future : futureList) {
+  }
+
+  // dicomizes the image unless its journal says it's done, and starts the upload of its files
+  private CompletableFuture<Void> startImageUpload(QueryBuilder queryBuilder, URI serverUri,
+      List<Series> remoteImageSeriesList, Path dicomDirectory, TransferJournal journal)
+      throws QuPathCloudException {
+    String imageName = FilenameUtils.getBaseName(serverUri.toString());
+    if (!journal.isDone(DICOMIZATION_STEP)) {
+      deleteDirectory(dicomDirectory);
       try {
-        future.get();
-      } catch (InterruptedException | ExecutionException e) {
+        Files.createDirectories(dicomDirectory);
+      } catch (IOException e) {
         throw new QuPathCloudException(e);
       }
+      Path pathToImage = Paths.get(serverUri);
+      ImageToWsiDcmConverter converter =
+          new ImageToWsiDcmConverter(pathToImage, dicomDirectory);
+      String checkedFileName = checkFileName(remoteImageSeriesList, imageName);
+      converter.convertImageToWsiDcm(checkedFileName);
+      journal.markDone(DICOMIZATION_STEP);
+    } else {
+      LOGGER.info("Resuming upload of {}", imageName);
     }
-    executorService.shutdown();
 
-    for (Path tempDirectory : tempDirectories) {
-      deleteDirectory(tempDirectory);
+    List<Path> dicomizedFiles;
+    try (Stream<Path> files = Files.list(dicomDirectory)) {
+      dicomizedFiles = files.collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new QuPathCloudException(e);
+    }
+    if (dicomizedFiles.size() == 0) {
+      String errorParam = MessageFormat.format("Dicomization failed for: {0}", serverUri);
+      throw new QuPathCloudException(errorParam);
+    }
+    QueryBuilder uploadQuery = new QueryBuilder(queryBuilder)
+        .setPaths(dicomizedFiles)
+        .setJournal(journal);
+    return cloudDao.getAsyncCloudDao().uploadAsync(uploadQuery);
+  }
+
+  private void closeJournal(TransferJournal journal) {
+    try {
+      journal.close();
+    } catch (IOException e) {
+      LOGGER.warn("Failed to close transfer journal {}", journal.getJournalFile(), e);
     }
   }
 
@@ -245,7 +322,7 @@ public class SynchronizationProjectWithDicomStore {
           .setDicomStoreId(dicomStoreId)
           .setStudyId(studyId)
           .setSeriesId(seriesId);
-      List<Instance> instances = cloudDao.getInstances(queryBuilder);
+      List<PyramidInstance> instances = cloudDao.getPyramidInstances(queryBuilder);
       Path metadataImageFile = metadataConfiguration.saveMetadataFile(series, instances);
       String serverPath = metadataImageFile.toString();
 
@@ -372,15 +449,18 @@ public class SynchronizationProjectWithDicomStore {
 
   private List<Pair<Instance, Date>> collectRemoteInstanceInfos() throws QuPathCloudException {
     List<Pair<Instance, Date>> remoteInstanceInfos = new ArrayList<>();
-    QueryBuilder queryBuilder = QueryBuilder.forProject(projectId)
+    QueryBuilder queryBuilder = DaoHelper.forQpdataInstances(QueryBuilder.forProject(projectId)
         .setLocationId(locationId)
         .setDatasetId(datasetId)
-        .setDicomStoreId(dicomStoreId);
-    List<Instance> instances = cloudDao.getInstances(queryBuilder);
-    List<Instance> remoteInstances = DaoHelper.getQpdataInstancesInDicomStore(instances);
-    for (Instance instance : remoteInstances) {
-      Pair<Instance, Date> instanceInfo = new Pair<>(instance, instance.getCreationDate());
-      remoteInstanceInfos.add(instanceInfo);
+        .setDicomStoreId(dicomStoreId));
+    // the server only returns QuPath data instances, the filter below guards against servers
+    // ignoring the Modality match
+    QidoSearch<Instance> search = cloudDao.searchInstances(queryBuilder);
+    for (List<Instance> page = search.nextPage(); page != null; page = search.nextPage()) {
+      for (Instance instance : DaoHelper.getQpdataInstancesInDicomStore(page)) {
+        Pair<Instance, Date> instanceInfo = new Pair<>(instance, instance.getCreationDate());
+        remoteInstanceInfos.add(instanceInfo);
+      }
     }
     return remoteInstanceInfos;
   }
@@ -419,32 +499,17 @@ public class SynchronizationProjectWithDicomStore {
       imageDirectories.put(imageName, pathToCurrentEntry);
     }
 
-    Path directoryToDownload = createTempDirectory("qpDataDcmDownload-");
-
     List<Instance> remoteQpdataInstances = remoteInstanceInfos.stream().map(Pair::getKey)
         .collect(Collectors.toList());
-    QueryBuilder query = new QueryBuilder(baseQuery)
-        .setDirectory(directoryToDownload)
-        .setInstances(remoteQpdataInstances);
-    cloudDao.downloadInstances(query);
-
-    for (Instance instance : remoteQpdataInstances) {
-      String sopInstanceUID = instance.getSopInstanceUID().getValue1();
-      Path downloadedQpdataInstance = directoryToDownload.resolve(sopInstanceUID + ".dcm");
+    QueryBuilder query = new QueryBuilder(baseQuery).setInstances(remoteQpdataInstances);
+    // each Instance is converted while it downloads, straight into its image directory
+    cloudDao.streamInstances(query, (instance, inputStream) -> {
       String imageName = instance.getSopAuthorizationComment().getValue1();
       Path imageDirectory = imageDirectories.get(imageName);
-      Path qpdataFile = imageDirectory.resolve(QU_PATH_DATA_FILE);
-      try {
-        Files.createDirectories(imageDirectory);
-      } catch (IOException e) {
-        throw new QuPathCloudException(e);
-      }
-      DcmToDataConverter dcmToDataConverter =
-          new DcmToDataConverter(downloadedQpdataInstance, qpdataFile);
-      dcmToDataConverter.convertDcmToQuPathData();
-    }
-
-    deleteDirectory(directoryToDownload);
+      Files.createDirectories(imageDirectory);
+      DcmToDataConverter.convertDcmToQuPathData(inputStream,
+          imageDirectory.resolve(QU_PATH_DATA_FILE));
+    });
   }
 
   private Path createTempDirectory(String prefix) throws QuPathCloudException {
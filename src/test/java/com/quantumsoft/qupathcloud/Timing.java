@@ -0,0 +1,72 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Simple timing harness for the *Benchmark classes under src/test. Surefire only runs *Test
+ * classes, so benchmarks are never part of the build; run a benchmark's main method on the test
+ * classpath instead. Each measurement is warmed up first and the best of several rounds is
+ * reported, which is good enough to compare two code paths on the same machine, not to publish
+ * absolute numbers.
+ */
+public final class Timing {
+
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int MEASURED_ROUNDS = 5;
+
+  // results are folded in here, so the JIT can't drop the measured code
+  private static volatile int sink;
+
+  private Timing() {
+  }
+
+  /**
+   * Measures a task and prints the best time per operation.
+   *
+   * @param name the name printed with the result
+   * @param operations the number of operations per round
+   * @param task the task, run once per operation
+   * @return the best time per operation in nanoseconds
+   * @throws Exception if the task fails
+   */
+  public static double measure(String name, int operations, Callable<?> task) throws Exception {
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      runRound(operations, task);
+    }
+    long bestNanos = Long.MAX_VALUE;
+    for (int round = 0; round < MEASURED_ROUNDS; round++) {
+      bestNanos = Math.min(bestNanos, runRound(operations, task));
+    }
+    double nanosPerOperation = (double) bestNanos / operations;
+    System.out.printf("%-40s %12.1f us/op %12.1f op/s%n", name, nanosPerOperation / 1000,
+        1e9 / nanosPerOperation);
+    return nanosPerOperation;
+  }
+
+  private static long runRound(int operations, Callable<?> task) throws Exception {
+    int hash = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < operations; i++) {
+      Object result = task.call();
+      hash += result == null ? 0 : System.identityHashCode(result);
+    }
+    long nanos = System.nanoTime() - start;
+    sink += hash;
+    return nanos;
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FrameDiskCacheTest {
+
+  private static final String STUDY_UID = "1.2";
+  private static final String SERIES_UID = "1.2.1";
+  private static final String INSTANCE_UID = "1.2.1.1";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void getsWhatWasPut() {
+    FrameDiskCache cache = new FrameDiskCache(temporaryFolder.getRoot().toPath(), 1000);
+    ByteBuffer frame = ByteBuffer.wrap(new byte[] {1, 2, 3});
+
+    cache.put(STUDY_UID, SERIES_UID, INSTANCE_UID, 1, frame);
+
+    assertEquals(frame, cache.get(STUDY_UID, SERIES_UID, INSTANCE_UID, 1));
+    assertNull(cache.get(STUDY_UID, SERIES_UID, INSTANCE_UID, 2));
+  }
+
+  @Test
+  public void removedFrameIsNotServedAgain() {
+    Path directory = temporaryFolder.getRoot().toPath();
+    FrameDiskCache cache = new FrameDiskCache(directory, 1000);
+    cache.put(STUDY_UID, SERIES_UID, INSTANCE_UID, 1, ByteBuffer.wrap(new byte[10]));
+    cache.put(STUDY_UID, SERIES_UID, INSTANCE_UID, 2, ByteBuffer.wrap(new byte[20]));
+
+    cache.remove(STUDY_UID, SERIES_UID, INSTANCE_UID, 1);
+
+    assertNull(cache.get(STUDY_UID, SERIES_UID, INSTANCE_UID, 1));
+    assertEquals(20, cache.getSizeInBytes());
+    // a new cache doesn't find it on disk either
+    assertNull(new FrameDiskCache(directory, 1000).get(STUDY_UID, SERIES_UID, INSTANCE_UID, 1));
+  }
+
+  @Test
+  public void removingLastFramePrunesDirectories() {
+    Path directory = temporaryFolder.getRoot().toPath();
+    FrameDiskCache cache = new FrameDiskCache(directory, 1000);
+    cache.put(STUDY_UID, SERIES_UID, INSTANCE_UID, 1, ByteBuffer.wrap(new byte[10]));
+
+    cache.remove(STUDY_UID, SERIES_UID, INSTANCE_UID, 1);
+
+    assertFalse(Files.exists(directory.resolve(STUDY_UID)));
+    assertEquals(0, cache.getSizeInBytes());
+  }
+}
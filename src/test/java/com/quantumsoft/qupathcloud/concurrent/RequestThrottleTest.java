@@ -0,0 +1,193 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.quantumsoft.qupathcloud.concurrent.RequestThrottle.Permit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class RequestThrottleTest {
+
+  private static final int OK = 200;
+  private static final int TOO_MANY_REQUESTS = 429;
+  private static final int SERVICE_UNAVAILABLE = 503;
+
+  @Test
+  public void throttledResponseHalvesLimit() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 16, 64);
+
+    throttle.acquire().release(TOO_MANY_REQUESTS, false);
+
+    assertEquals(8, throttle.getConcurrencyLimit());
+    assertEquals(1, throttle.getThrottledCount());
+    assertEquals(1, throttle.getDecreaseCount());
+  }
+
+  @Test
+  public void responsesToRequestsSentBeforeDecreaseDecreaseOnce() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 16, 64);
+    List<Permit> permits = acquire(throttle, 4);
+
+    for (Permit permit : permits) {
+      permit.release(SERVICE_UNAVAILABLE, false);
+    }
+
+    assertEquals(8, throttle.getConcurrencyLimit());
+    assertEquals(4, throttle.getThrottledCount());
+    assertEquals(1, throttle.getDecreaseCount());
+  }
+
+  @Test
+  public void limitNeverDropsBelowOne() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 16, 64);
+
+    for (int i = 0; i < 10; i++) {
+      throttle.acquire().release(TOO_MANY_REQUESTS, false);
+    }
+
+    assertEquals(1, throttle.getConcurrencyLimit());
+  }
+
+  @Test
+  public void healthyResponsesGrowLimitByAboutOnePerLimit() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 4, 64);
+
+    // 4 + 1/4 + 1/4.25 + ... stays below 5 after four responses and passes it after five
+    for (int i = 0; i < 4; i++) {
+      throttle.acquire().release(OK, true);
+    }
+    assertEquals(4, throttle.getConcurrencyLimit());
+    throttle.acquire().release(OK, true);
+    assertEquals(5, throttle.getConcurrencyLimit());
+  }
+
+  @Test
+  public void limitNeverGrowsAboveMax() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 4, 6);
+
+    for (int i = 0; i < 100; i++) {
+      throttle.acquire().release(OK, true);
+    }
+
+    assertEquals(6, throttle.getConcurrencyLimit());
+  }
+
+  @Test
+  public void failuresWithoutResponseLeaveLimit() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 4, 64);
+
+    throttle.acquire().release(-1, false);
+    throttle.acquire().release(500, false);
+
+    assertEquals(4, throttle.getConcurrencyLimit());
+    assertEquals(0, throttle.getInFlight());
+  }
+
+  @Test
+  public void growingLatencyCutsLimitByATenth() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 20, 64);
+    // the best latency is at least 1 ms, so the first fast response sets it to 1 ms
+    throttle.acquire().release(OK, false);
+    int limit = throttle.getConcurrencyLimit();
+
+    Permit slow = throttle.acquire();
+    TimeUnit.MILLISECONDS.sleep(50);
+    slow.release(OK, false);
+
+    assertEquals((int) (limit * 0.9), throttle.getConcurrencyLimit());
+    assertEquals(1, throttle.getDecreaseCount());
+  }
+
+  @Test
+  public void uploadLatencyIsNotTakenForOverload() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 20, 64);
+    throttle.acquire().release(OK, false);
+
+    Permit upload = throttle.acquire();
+    TimeUnit.MILLISECONDS.sleep(50);
+    upload.release(OK, true);
+
+    assertEquals(0, throttle.getDecreaseCount());
+  }
+
+  @Test
+  public void waitersGetPermitsAsRequestsFinish() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 2, 2);
+    List<Permit> permits = acquire(throttle, 2);
+
+    CompletableFuture<Permit> waiter = throttle.acquireAsync();
+    assertFalse(waiter.isDone());
+
+    permits.get(0).release(OK, true);
+    assertTrue(waiter.isDone());
+    assertEquals(2, throttle.getInFlight());
+  }
+
+  @Test
+  public void cancelledWaiterIsSkipped() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 1, 1);
+    Permit permit = throttle.acquire();
+    CompletableFuture<Permit> cancelled = throttle.acquireAsync();
+    CompletableFuture<Permit> waiter = throttle.acquireAsync();
+
+    cancelled.cancel(false);
+    permit.release(OK, true);
+
+    assertTrue(waiter.isDone());
+    assertEquals(1, throttle.getInFlight());
+  }
+
+  @Test
+  public void releasingTwiceHasNoEffect() throws InterruptedException {
+    RequestThrottle throttle = new RequestThrottle(0, 4, 4);
+    List<Permit> permits = acquire(throttle, 2);
+
+    permits.get(0).release(OK, true);
+    permits.get(0).release(OK, true);
+
+    assertEquals(1, throttle.getInFlight());
+  }
+
+  @Test
+  public void rateLimitDelaysRequestsBeyondBurst() throws Exception {
+    RequestThrottle throttle = new RequestThrottle(10, 64, 64);
+
+    // a second worth of requests may burst, the next one waits for a token
+    List<Permit> permits = acquire(throttle, 10);
+    assertEquals(0, throttle.getDelayedCount());
+    long start = System.nanoTime();
+    permits.add(throttle.acquireAsync().get(5, TimeUnit.SECONDS));
+
+    assertEquals(1, throttle.getDelayedCount());
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  private static List<Permit> acquire(RequestThrottle throttle, int count)
+      throws InterruptedException {
+    List<Permit> permits = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      permits.add(throttle.acquire());
+    }
+    return permits;
+  }
+}
@@ -0,0 +1,148 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.converter.qpdata;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DcmToDataConverterTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void streamConversionMatchesInMemoryConversionOfEvenLength() throws Exception {
+    assertStreamMatchesInMemory(createDicom(100_000));
+  }
+
+  @Test
+  public void streamConversionMatchesInMemoryConversionOfOddLength() throws Exception {
+    assertStreamMatchesInMemory(createDicom(70_001));
+  }
+
+  @Test
+  public void fileConversionMatchesInMemoryConversion() throws Exception {
+    Path dicomFile = createDicom(12_345);
+    Path outputFile = temporaryFolder.getRoot().toPath().resolve("file.qpdata");
+
+    new DcmToDataConverter(dicomFile, outputFile).convertDcmToQuPathData();
+
+    assertArrayEquals(readInMemory(dicomFile), Files.readAllBytes(outputFile));
+  }
+
+  @Test
+  public void streamConversionLeavesStreamOpen() throws Exception {
+    Path dicomFile = createDicom(1000);
+    boolean[] closed = {false};
+    InputStream inputStream = new FilterInputStream(Files.newInputStream(dicomFile)) {
+      @Override
+      public void close() throws IOException {
+        closed[0] = true;
+        super.close();
+      }
+    };
+
+    try (InputStream ignored = inputStream) {
+      DcmToDataConverter.convertDcmToQuPathData(inputStream,
+          temporaryFolder.getRoot().toPath().resolve("open.qpdata"));
+      assertFalse(closed[0]);
+    }
+  }
+
+  @Test
+  public void dicomWithoutQpdataLeavesNoFile() throws Exception {
+    Path outputDirectory = temporaryFolder.newFolder("output").toPath();
+    Path dicomFile = temporaryFolder.getRoot().toPath().resolve("empty.dcm");
+    Attributes attributes = new Attributes();
+    attributes.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3");
+    attributes.setString(Tag.SOPClassUID, VR.UI, UID.VerificationSOPClass);
+    try (DicomOutputStream dos = new DicomOutputStream(dicomFile.toFile())) {
+      dos.writeDataset(attributes.createFileMetaInformation(UID.VerificationSOPClass),
+          attributes);
+    }
+
+    try (InputStream inputStream = Files.newInputStream(dicomFile)) {
+      DcmToDataConverter.convertDcmToQuPathData(inputStream,
+          outputDirectory.resolve("missing.qpdata"));
+      fail("DICOM without Qpdata converted");
+    } catch (QuPathCloudException e) {
+      // expected
+    }
+
+    try (Stream<Path> files = Files.list(outputDirectory)) {
+      assertEquals(List.of(), files.collect(Collectors.toList()));
+    }
+  }
+
+  private void assertStreamMatchesInMemory(Path dicomFile) throws Exception {
+    Path outputFile = temporaryFolder.getRoot().toPath().resolve("stream.qpdata");
+    // the stream variant sees the body as a download would, not as a file
+    byte[] dicomBytes = Files.readAllBytes(dicomFile);
+
+    DcmToDataConverter.convertDcmToQuPathData(new ByteArrayInputStream(dicomBytes), outputFile);
+
+    assertArrayEquals(readInMemory(dicomFile), Files.readAllBytes(outputFile));
+  }
+
+  // the conversion the stream variant replaced, reading the whole dataset into memory
+  private static byte[] readInMemory(Path dicomFile) throws IOException {
+    try (DicomInputStream dis = new DicomInputStream(dicomFile.toFile())) {
+      Attributes attributes = dis.readDataset(-1, -1);
+      return (byte[]) ((Fragments) attributes.getValue(DataToDcmConverter.QPDATA_TAG)).get(0);
+    }
+  }
+
+  private Path createDicom(int qpdataLength) throws IOException, QuPathCloudException {
+    byte[] qpdata = new byte[qpdataLength];
+    new Random(qpdataLength).nextBytes(qpdata);
+    Path qpdataFile =
+        temporaryFolder.getRoot().toPath().resolve("data-" + qpdataLength + ".qpdata");
+    Files.write(qpdataFile, qpdata);
+    Path dicomFile = new DataToDcmConverter(qpdataFile, temporaryFolder.getRoot().toPath(),
+        new Date(), "image-" + qpdataLength).convertQuPathDataToDcm();
+    // the Qpdata is stored with a pad byte if its length is odd
+    byte[] stored = readInMemory(dicomFile);
+    assertArrayEquals(qpdata, Arrays.copyOf(stored, qpdataLength));
+    assertEquals((qpdataLength + 1) & ~1, stored.length);
+    return dicomFile;
+  }
+}
@@ -0,0 +1,120 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DicomMultipartEntityTest {
+
+  private static final String BOUNDARY = "stow-boundary";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void writesOnePartPerFile() throws Exception {
+    List<Path> files = List.of(createFile("a.dcm", 100_000), createFile("b.dcm", 0),
+        createFile("c.dcm", 17));
+    DicomMultipartEntity entity = new DicomMultipartEntity(files, BOUNDARY, null);
+
+    byte[] body = write(entity);
+
+    assertEquals(entity.getContentLength(), body.length);
+    List<ByteBuffer> parts =
+        new MultipartRelatedReader(new ByteArrayInputStream(body), BOUNDARY).readAllParts();
+    assertEquals(files.size(), parts.size());
+    for (int i = 0; i < files.size(); i++) {
+      assertArrayEquals(Files.readAllBytes(files.get(i)), toArray(parts.get(i)));
+    }
+  }
+
+  @Test
+  public void contentIsTheWrittenBody() throws Exception {
+    List<Path> files = List.of(createFile("a.dcm", 70_000), createFile("b.dcm", 3));
+    DicomMultipartEntity entity = new DicomMultipartEntity(files, BOUNDARY, null);
+
+    byte[] content;
+    try (InputStream inputStream = entity.getContent()) {
+      content = inputStream.readAllBytes();
+    }
+
+    assertArrayEquals(write(entity), content);
+    // the content can be read again, like the body can be written again
+    try (InputStream inputStream = entity.getContent()) {
+      assertArrayEquals(content, inputStream.readAllBytes());
+    }
+  }
+
+  @Test
+  public void rewriteCountsFileBytesOnce() throws Exception {
+    List<Path> files = List.of(createFile("a.dcm", 200_000), createFile("b.dcm", 1000));
+    TransferProgress progress = new TransferProgress("test", 201_000);
+    DicomMultipartEntity entity = new DicomMultipartEntity(files, BOUNDARY, progress);
+
+    write(entity);
+    write(entity);
+
+    assertEquals(201_000, progress.getTransferredBytes());
+  }
+
+  @Test
+  public void discardedProgressIsTakenBack() throws Exception {
+    Path refused = createFile("b.dcm", 1000);
+    List<Path> files = List.of(createFile("a.dcm", 5000), refused);
+    TransferProgress progress = new TransferProgress("test", 6000);
+    DicomMultipartEntity entity = new DicomMultipartEntity(files, BOUNDARY, progress);
+
+    write(entity);
+    entity.discardProgress(Collections.singletonList(refused));
+    assertEquals(5000, progress.getTransferredBytes());
+
+    entity.discardProgress();
+    assertEquals(0, progress.getTransferredBytes());
+  }
+
+  private Path createFile(String name, int size) throws IOException {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return Files.write(temporaryFolder.getRoot().toPath().resolve(name), bytes);
+  }
+
+  private static byte[] write(DicomMultipartEntity entity) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    entity.writeTo(outputStream);
+    return outputStream.toByteArray();
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.quantumsoft.qupathcloud.Timing;
+import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Compares the tiles per second of the HTTP/1.1 and HTTP/2 frame transports against a local stub
+ * server that answers every frame request after a fixed delay, like a remote DICOM Store. Not run
+ * by the build. The JDK only has an HTTP/1.1 server, so the HTTP/2 transport falls back to
+ * HTTP/1.1 here: the numbers compare the clients and their connection handling, not HTTP/2
+ * multiplexing, which needs a real HTTP/2 endpoint. The shared request throttle is opened up,
+ * unless its properties are given, as it would otherwise cap both transports at the same rate.
+ */
+public class FrameTransportBenchmark {
+
+  private static final String BOUNDARY = "frame-boundary";
+  private static final int FRAME_SIZE = 40_000;
+  private static final int SERVER_DELAY_MILLIS = 20;
+  private static final int CONCURRENT_REQUESTS = 64;
+  private static final int OPERATIONS = 5;
+
+  public static void main(String[] args) throws Exception {
+    setPropertyIfAbsent("quPathCloud.maxRequestsPerSecond", "1000000");
+    setPropertyIfAbsent("quPathCloud.initialRequestConcurrency",
+        String.valueOf(CONCURRENT_REQUESTS));
+    byte[] body = createMultipartBody();
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/", exchange -> {
+      try {
+        Thread.sleep(SERVER_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      exchange.getResponseHeaders().add("Content-Type",
+          "multipart/related; type=\"image/jpeg\"; boundary=" + BOUNDARY);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream outputStream = exchange.getResponseBody()) {
+        outputStream.write(body);
+      }
+    });
+    server.start();
+    URI uri = URI.create("http://" + server.getAddress().getHostString() + ":"
+        + server.getAddress().getPort() + "/studies/1.2/series/1.2.1/instances/1.2.1.1/frames/1");
+    OAuth20 oAuth20 = new OAuth20(Paths.get("")) {
+      @Override
+      public synchronized Credential getCredential() {
+        return new Credential(BearerToken.authorizationHeaderAccessMethod())
+            .setAccessToken("benchmark-token");
+      }
+    };
+    ExecutorService executorService = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+
+    try (CloseableHttpClient httpClient = HttpClientFactory.createPooledHttpClient()) {
+      run("http1", new HttpClientFrameTransport(oAuth20, httpClient), uri, executorService);
+      run("http2", new Http2FrameTransport(oAuth20), uri, executorService);
+    } finally {
+      executorService.shutdown();
+      server.stop(0);
+      ((ExecutorService) server.getExecutor()).shutdown();
+    }
+  }
+
+  private static void run(String name, FrameTransport transport, URI uri,
+      ExecutorService executorService) throws Exception {
+    double nanosPerBatch = Timing.measure(name + " " + CONCURRENT_REQUESTS + " concurrent tiles",
+        OPERATIONS, () -> {
+          List<Future<?>> futures = new ArrayList<>();
+          for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            futures.add(executorService.submit(() -> transport.retrieveFrames(uri)));
+          }
+          for (Future<?> future : futures) {
+            future.get();
+          }
+          return futures;
+        });
+    System.out.printf("%-40s %12.1f tiles/s%n", name, CONCURRENT_REQUESTS * 1e9 / nanosPerBatch);
+  }
+
+  private static void setPropertyIfAbsent(String key, String value) {
+    if (System.getProperty(key) == null) {
+      System.setProperty(key, value);
+    }
+  }
+
+  private static byte[] createMultipartBody() {
+    byte[] frame = new byte[FRAME_SIZE];
+    new Random(FRAME_SIZE).nextBytes(frame);
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.writeBytes(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n\r\n")
+        .getBytes(StandardCharsets.US_ASCII));
+    body.writeBytes(frame);
+    body.writeBytes(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    return body.toByteArray();
+  }
+}
@@ -0,0 +1,230 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.quantumsoft.qupathcloud.exception.HttpStatusException;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import com.quantumsoft.qupathcloud.oauth20.OAuth20;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrameTransportTest {
+
+  private static final String BOUNDARY = "frame-boundary";
+  private static final String ACCESS_TOKEN = "test-token";
+
+  private final Queue<StubResponse> responses = new ConcurrentLinkedQueue<>();
+  private final Queue<String> authorizations = new ConcurrentLinkedQueue<>();
+  private final OAuth20 oAuth20 = new OAuth20(Paths.get("")) {
+    @Override
+    public synchronized Credential getCredential() {
+      return new Credential(BearerToken.authorizationHeaderAccessMethod())
+          .setAccessToken(ACCESS_TOKEN);
+    }
+  };
+  private HttpServer server;
+  private CloseableHttpClient httpClient;
+
+  @Before
+  public void startServer() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::respond);
+    server.start();
+    httpClient = HttpClientFactory.createPooledHttpClient();
+  }
+
+  @After
+  public void stopServer() throws IOException {
+    httpClient.close();
+    server.stop(0);
+    System.clearProperty(FrameTransport.TRANSPORT_PROPERTY);
+  }
+
+  @Test
+  public void transportIsChosenByProperty() {
+    assertTrue(FrameTransport.create(oAuth20, httpClient) instanceof HttpClientFrameTransport);
+
+    System.setProperty(FrameTransport.TRANSPORT_PROPERTY, "HTTP2");
+    assertTrue(FrameTransport.create(oAuth20, httpClient) instanceof Http2FrameTransport);
+
+    System.setProperty(FrameTransport.TRANSPORT_PROPERTY, "http1");
+    assertTrue(FrameTransport.create(oAuth20, httpClient) instanceof HttpClientFrameTransport);
+  }
+
+  @Test
+  public void http2TransportReadsEveryFrame() throws Exception {
+    assertReadsEveryFrame(new Http2FrameTransport(oAuth20));
+  }
+
+  @Test
+  public void http1TransportReadsEveryFrame() throws Exception {
+    assertReadsEveryFrame(new HttpClientFrameTransport(oAuth20, httpClient));
+  }
+
+  @Test
+  public void http2TransportReportsStatusAndRetryAfter() {
+    assertReportsStatusAndRetryAfter(new Http2FrameTransport(oAuth20));
+  }
+
+  @Test
+  public void http1TransportReportsStatusAndRetryAfter() {
+    assertReportsStatusAndRetryAfter(new HttpClientFrameTransport(oAuth20, httpClient));
+  }
+
+  @Test
+  public void http2TransportIsRetriedAfterServiceUnavailable() throws QuPathCloudException {
+    byte[] frame = createFrame(5000);
+    responses.add(new StubResponse(503, "0", null));
+    responses.add(new StubResponse(200, null, createMultipartBody(frame)));
+    FrameTransport transport = new Http2FrameTransport(oAuth20);
+
+    List<ByteBuffer> frames = Retries.call(() -> transport.retrieveFrames(getFramesUri()));
+
+    assertEquals(1, frames.size());
+    assertArrayEquals(frame, toArray(frames.get(0)));
+    assertTrue(responses.isEmpty());
+  }
+
+  @Test
+  public void http2TransportDoesNotRetryMalformedBody() {
+    responses.add(new StubResponse(200, null,
+        "--other\r\n\r\nnot a frame".getBytes(StandardCharsets.US_ASCII)));
+    FrameTransport transport = new Http2FrameTransport(oAuth20);
+
+    try {
+      Retries.call(() -> transport.retrieveFrames(getFramesUri()));
+      fail("Malformed body parsed");
+    } catch (QuPathCloudException e) {
+      assertEquals(1, authorizations.size());
+    }
+  }
+
+  private void assertReadsEveryFrame(FrameTransport transport) throws Exception {
+    // frames larger than the reader's buffer, and an empty one
+    byte[][] frames = {createFrame(200_000), createFrame(0), createFrame(70_001)};
+    responses.add(new StubResponse(200, null, createMultipartBody(frames)));
+
+    List<ByteBuffer> received = transport.retrieveFrames(getFramesUri());
+
+    assertEquals(frames.length, received.size());
+    for (int i = 0; i < frames.length; i++) {
+      assertArrayEquals(frames[i], toArray(received.get(i)));
+    }
+    assertEquals("Bearer " + ACCESS_TOKEN, authorizations.poll());
+  }
+
+  private void assertReportsStatusAndRetryAfter(FrameTransport transport) {
+    responses.add(new StubResponse(429, "7", null));
+
+    try {
+      transport.retrieveFrames(getFramesUri());
+      fail("Throttled request succeeded");
+    } catch (HttpStatusException e) {
+      assertEquals(429, e.getStatusCode());
+      assertEquals(7000, e.getRetryAfterMillis());
+    } catch (QuPathCloudException e) {
+      throw new AssertionError("Status not reported", e);
+    }
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+    StubResponse response = responses.poll();
+    if (response == null) {
+      response = new StubResponse(500, null, null);
+    }
+    if (response.retryAfter != null) {
+      exchange.getResponseHeaders().add("Retry-After", response.retryAfter);
+    }
+    if (response.body == null) {
+      exchange.sendResponseHeaders(response.statusCode, -1);
+    } else {
+      exchange.getResponseHeaders().add("Content-Type",
+          "multipart/related; type=\"image/jpeg\"; boundary=" + BOUNDARY);
+      exchange.sendResponseHeaders(response.statusCode, response.body.length);
+      try (OutputStream outputStream = exchange.getResponseBody()) {
+        outputStream.write(response.body);
+      }
+    }
+    exchange.close();
+  }
+
+  private URI getFramesUri() {
+    return URI.create("http://" + server.getAddress().getHostString() + ":"
+        + server.getAddress().getPort() + "/studies/1.2/series/1.2.1/instances/1.2.1.1/frames/1");
+  }
+
+  private static byte[] createFrame(int size) {
+    byte[] frame = new byte[size];
+    new Random(size).nextBytes(frame);
+    return frame;
+  }
+
+  private static byte[] createMultipartBody(byte[]... frames) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (byte[] frame : frames) {
+      body.writeBytes(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n\r\n")
+          .getBytes(StandardCharsets.US_ASCII));
+      body.writeBytes(frame);
+      body.writeBytes("\r\n".getBytes(StandardCharsets.US_ASCII));
+    }
+    body.writeBytes(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+    return body.toByteArray();
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private static final class StubResponse {
+
+    private final int statusCode;
+    private final String retryAfter;
+    private final byte[] body;
+
+    StubResponse(int statusCode, String retryAfter, byte[] body) {
+      this.statusCode = statusCode;
+      this.retryAfter = retryAfter;
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpClientFactoryTest {
+
+  private static final String SOCKET_TIMEOUT_SECONDS_PROPERTY = "quPathCloud.socketTimeoutSeconds";
+
+  private final CountDownLatch released = new CountDownLatch(1);
+  private HttpServer server;
+
+  @Before
+  public void startServer() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    // a server that accepts the request but never answers, like a half-open connection
+    server.createContext("/", exchange -> {
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    released.countDown();
+    server.stop(0);
+    System.clearProperty(SOCKET_TIMEOUT_SECONDS_PROPERTY);
+  }
+
+  @Test
+  public void silentServerTimesOut() throws Exception {
+    System.setProperty(SOCKET_TIMEOUT_SECONDS_PROPERTY, "1");
+    HttpGet request = new HttpGet("http://" + server.getAddress().getHostString() + ":"
+        + server.getAddress().getPort() + "/frames");
+    long start = System.nanoTime();
+
+    try (CloseableHttpClient httpClient = HttpClientFactory.createPooledHttpClient()) {
+      httpClient.execute(request).close();
+      fail("Request to a silent server completed");
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.quantumsoft.qupathcloud.Timing;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Compares JpegTileDecoder with the former ImageIO.read path, which also had to draw the decoded
+ * image into an INT_RGB tile. Not run by the build. Pass JPEG frame files, e.g. frames saved
+ * from a real slide, as arguments; without them synthetic 256 and 512 pixel tissue-like frames
+ * are used.
+ */
+public class JpegTileDecoderBenchmark {
+
+  private static final int OPERATIONS = 200;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      run("synthetic 256px", createFrame(256));
+      run("synthetic 512px", createFrame(512));
+    }
+    for (String file : args) {
+      run(Paths.get(file).getFileName().toString(), Files.readAllBytes(Paths.get(file)));
+    }
+  }
+
+  private static void run(String name, byte[] frame) throws Exception {
+    ByteBuffer buffer = ByteBuffer.wrap(frame);
+    Timing.measure(name + " ImageIO.read + draw", OPERATIONS,
+        () -> decodeWithImageIo(frame));
+    Timing.measure(name + " JpegTileDecoder", OPERATIONS,
+        () -> JpegTileDecoder.decode(buffer));
+  }
+
+  private static BufferedImage decodeWithImageIo(byte[] frame) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(frame));
+    BufferedImage tile =
+        new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = tile.createGraphics();
+    graphics.drawImage(image, 0, 0, null);
+    graphics.dispose();
+    return tile;
+  }
+
+  // smooth stain-like colours with noise, so the frame compresses like tissue, not like a flat fill
+  private static byte[] createFrame(int size) throws IOException {
+    BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(size);
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        double wave = Math.sin(x / 17.0) * Math.cos(y / 23.0);
+        int red = clamp(200 + (int) (40 * wave) + random.nextInt(16));
+        int green = clamp(120 + (int) (60 * wave) + random.nextInt(16));
+        int blue = clamp(180 + (int) (30 * wave) + random.nextInt(16));
+        image.setRGB(x, y, (red << 16) | (green << 8) | blue);
+      }
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", outputStream);
+    return outputStream.toByteArray();
+  }
+
+  private static int clamp(int channel) {
+    return Math.max(0, Math.min(255, channel));
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+public class JpegTileDecoderTest {
+
+  private static final int TILE_SIZE = 64;
+
+  @Test
+  public void decodesColourFrameIntoIntRgb() throws IOException {
+    BufferedImage image = JpegTileDecoder.decode(createFrame(0x336699));
+
+    assertEquals(BufferedImage.TYPE_INT_RGB, image.getType());
+    assertEquals(TILE_SIZE, image.getWidth());
+    assertEquals(TILE_SIZE, image.getHeight());
+    assertColourClose(0x336699, image.getRGB(TILE_SIZE / 2, TILE_SIZE / 2));
+  }
+
+  @Test
+  public void decodingDoesNotConsumeFrame() throws IOException {
+    ByteBuffer frame = createFrame(0xff0000);
+    int position = frame.position();
+
+    JpegTileDecoder.decode(frame);
+
+    assertEquals(position, frame.position());
+  }
+
+  @Test
+  public void corruptFrameKeepsReaderInPool() throws IOException {
+    JpegTileDecoder.decode(createFrame(0x00ff00));
+    int idleReaders = JpegTileDecoder.getIdleReaderCount();
+
+    try {
+      JpegTileDecoder.decode(ByteBuffer.wrap(new byte[] {(byte) 0xff, (byte) 0xd8, 1, 2, 3}));
+      fail("Corrupt frame decoded");
+    } catch (IIOException e) {
+      // expected
+    }
+
+    assertEquals(idleReaders, JpegTileDecoder.getIdleReaderCount());
+  }
+
+  @Test
+  public void concurrentDecodesKeepPoolBounded() throws Exception {
+    ByteBuffer frame = createFrame(0x0000ff);
+    int threads = Runtime.getRuntime().availableProcessors() * 4;
+    ExecutorService executorService = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<BufferedImage>> futures = new ArrayList<>();
+      for (int i = 0; i < threads * 8; i++) {
+        futures.add(executorService.submit(() -> JpegTileDecoder.decode(frame)));
+      }
+      for (Future<BufferedImage> future : futures) {
+        assertColourClose(0x0000ff, future.get().getRGB(0, 0));
+      }
+    } finally {
+      executorService.shutdown();
+    }
+
+    int poolSize = Integer.getInteger("quPathCloud.jpegReaderPoolSize",
+        Runtime.getRuntime().availableProcessors());
+    assertTrue(JpegTileDecoder.getIdleReaderCount() <= Math.max(1, poolSize));
+  }
+
+  private static ByteBuffer createFrame(int rgb) throws IOException {
+    BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < TILE_SIZE; y++) {
+      for (int x = 0; x < TILE_SIZE; x++) {
+        image.setRGB(x, y, rgb);
+      }
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", outputStream);
+    return ByteBuffer.wrap(outputStream.toByteArray());
+  }
+
+  // JPEG is lossy, so each channel only has to be close
+  private static void assertColourClose(int expected, int actual) {
+    for (int shift = 0; shift <= 16; shift += 8) {
+      int expectedChannel = (expected >> shift) & 0xff;
+      int actualChannel = (actual >> shift) & 0xff;
+      assertTrue("expected " + Integer.toHexString(expected) + ", was "
+          + Integer.toHexString(actual), Math.abs(expectedChannel - actualChannel) <= 8);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.quantumsoft.qupathcloud.Timing;
+import com.quantumsoft.qupathcloud.entities.Projects;
+
+/**
+ * Compares the per-call cost of reading a Healthcare API response with a new ObjectMapper, as
+ * requests did before JsonCodec, and with the cached JsonCodec reader. Not run by the build. Run
+ * it with -DquPathCloud.jsonAfterburner=true and Afterburner on the classpath to time that too.
+ */
+public class JsonCodecBenchmark {
+
+  private static final int PROJECTS = 20;
+  private static final int OPERATIONS = 2000;
+
+  public static void main(String[] args) throws Exception {
+    String json = createProjectsJson();
+    TypeReference<Projects> typeReference = new TypeReference<Projects>() {};
+
+    Timing.measure("new ObjectMapper per call", OPERATIONS, () -> {
+      ObjectMapper mapper = new ObjectMapper();
+      mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+      return mapper.readValue(json, typeReference);
+    });
+    Timing.measure("JsonCodec response reader", OPERATIONS,
+        () -> JsonCodec.getResponseReader(typeReference).readValue(json));
+  }
+
+  private static String createProjectsJson() {
+    StringBuilder json = new StringBuilder("{\"projects\": [");
+    for (int i = 0; i < PROJECTS; i++) {
+      if (i > 0) {
+        json.append(", ");
+      }
+      json.append("{\"projectId\": \"project-").append(i).append("\", \"projectNumber\": \"")
+          .append(100_000 + i).append("\", \"name\": \"Project ").append(i)
+          .append("\", \"lifecycleState\": \"ACTIVE\", \"createTime\": \"2019-01-01T00:00:00Z\"}");
+    }
+    return json.append("], \"nextPageToken\": \"token\"}").toString();
+  }
+}
@@ -0,0 +1,75 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.quantumsoft.qupathcloud.entities.Project;
+import com.quantumsoft.qupathcloud.entities.Projects;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+
+public class JsonCodecTest {
+
+  @Test
+  public void cachesOneReaderPerType() {
+    ObjectReader reader = JsonCodec.getResponseReader(new TypeReference<Projects>() {});
+
+    assertSame(reader, JsonCodec.getResponseReader(new TypeReference<Projects>() {}));
+    assertNotSame(reader, JsonCodec.getResponseReader(new TypeReference<List<Project>>() {}));
+  }
+
+  @Test
+  public void responseReaderIgnoresUnknownProperties() throws IOException {
+    String json = "{\"projects\": [{\"projectId\": \"p-1\", \"name\": \"First\", "
+        + "\"lifecycleState\": \"ACTIVE\"}], \"nextPageToken\": \"token\", \"unknown\": {}}";
+
+    Projects projects = JsonCodec.getResponseReader(new TypeReference<Projects>() {})
+        .readValue(json);
+
+    assertEquals(1, projects.getProjects().size());
+    assertEquals("p-1", projects.getProjects().get(0).getProjectId());
+    assertEquals("First", projects.getProjects().get(0).getName());
+    assertEquals("token", projects.getNextPageToken());
+  }
+
+  @Test
+  public void sharedReaderReadsConcurrently() throws Exception {
+    ObjectReader reader = JsonCodec.getResponseReader(new TypeReference<List<Project>>() {});
+    ExecutorService executorService = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<List<Project>>> futures = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        String json = "[{\"projectId\": \"p-" + i + "\", \"name\": \"Project " + i + "\"}]";
+        futures.add(executorService.submit(() -> reader.<List<Project>>readValue(json)));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        assertEquals("p-" + i, futures.get(i).get().get(0).getProjectId());
+      }
+    } finally {
+      executorService.shutdown();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class MultipartRelatedReaderTest {
+
+  private static final String BOUNDARY = "frame-boundary";
+  private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+  @Test
+  public void readsPartsWithoutHeadersAndDelimiters() throws Exception {
+    byte[][] parts = {createPart(10, 1), createPart(0, 2), createPart(300, 3)};
+
+    List<ByteBuffer> read = readAll(new ByteArrayInputStream(createBody(parts)));
+
+    assertParts(parts, read);
+  }
+
+  @Test
+  public void skipsPreamble() throws Exception {
+    byte[][] parts = {createPart(20, 4)};
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write("preamble\r\n".getBytes(US_ASCII));
+    body.write(createBody(parts));
+
+    assertParts(parts, readAll(new ByteArrayInputStream(body.toByteArray())));
+  }
+
+  @Test
+  public void readsBodyArrivingInSmallPieces() throws Exception {
+    byte[][] parts = {createPart(100, 5), createPart(7, 6), createPart(1000, 7)};
+    byte[] body = createBody(parts);
+
+    for (int pieceSize = 1; pieceSize <= 9; pieceSize++) {
+      assertParts(parts, readAll(new PieceInputStream(body, pieceSize)));
+    }
+  }
+
+  @Test
+  public void readsDelimiterSplitAcrossBuffers() throws Exception {
+    byte[] delimiter = ("\r\n--" + BOUNDARY).getBytes(US_ASCII);
+    String headers = "--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n\r\n";
+    // each body has the delimiter after the first part start a few bytes earlier, so one of them
+    // is cut by the end of the first read at every position
+    for (int shift = -delimiter.length - 1; shift <= 1; shift++) {
+      int firstPartLength = READ_CHUNK_SIZE - headers.length() + shift;
+      byte[][] parts = {createPart(firstPartLength, shift), createPart(50, 8)};
+
+      assertParts(parts, readAll(new ByteArrayInputStream(createBody(parts))));
+    }
+  }
+
+  @Test
+  public void readsPartLargerThanBuffer() throws Exception {
+    byte[][] parts = {createPart(3 * READ_CHUNK_SIZE + 17, 9), createPart(5, 10)};
+
+    assertParts(parts, readAll(new PieceInputStream(createBody(parts), 4093)));
+  }
+
+  @Test
+  public void returnsNullAfterCloseDelimiter() throws Exception {
+    MultipartRelatedReader reader = new MultipartRelatedReader(
+        new ByteArrayInputStream(createBody(new byte[][] {createPart(3, 11)})), BOUNDARY);
+
+    reader.nextPart();
+
+    assertNull(reader.nextPart());
+    assertNull(reader.nextPart());
+  }
+
+  @Test(expected = QuPathCloudException.class)
+  public void rejectsBodyWithoutCloseDelimiter() throws Exception {
+    byte[] body = createBody(new byte[][] {createPart(3, 12)});
+    byte[] truncated = Arrays.copyOf(body, body.length - BOUNDARY.length() - 8);
+
+    readAll(new ByteArrayInputStream(truncated));
+  }
+
+  @Test(expected = QuPathCloudException.class)
+  public void rejectsMissingBoundary() throws Exception {
+    new MultipartRelatedReader(new ByteArrayInputStream(new byte[0]), "");
+  }
+
+  private static List<ByteBuffer> readAll(InputStream inputStream)
+      throws IOException, QuPathCloudException {
+    return new MultipartRelatedReader(inputStream, BOUNDARY).readAllParts();
+  }
+
+  private static byte[] createBody(byte[][] parts) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (byte[] part : parts) {
+      body.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\n\r\n").getBytes(US_ASCII));
+      body.write(part);
+      body.write("\r\n".getBytes(US_ASCII));
+    }
+    body.write(("--" + BOUNDARY + "--\r\n").getBytes(US_ASCII));
+    return body.toByteArray();
+  }
+
+  // random bytes with CR, LF and dashes, so a part looks like a delimiter as often as possible
+  private static byte[] createPart(int length, long seed) {
+    byte[] alphabet = {'\r', '\n', '-', 'f', 'r', 0, (byte) 0xff};
+    Random random = new Random(seed);
+    byte[] part = new byte[length];
+    for (int i = 0; i < length; i++) {
+      part[i] = alphabet[random.nextInt(alphabet.length)];
+    }
+    return part;
+  }
+
+  private static void assertParts(byte[][] expected, List<ByteBuffer> actual) {
+    assertEquals(expected.length, actual.size());
+    for (int i = 0; i < expected.length; i++) {
+      ByteBuffer part = actual.get(i);
+      byte[] bytes = new byte[part.remaining()];
+      part.duplicate().get(bytes);
+      assertArrayEquals("part " + i, expected[i], bytes);
+    }
+  }
+
+  // returns at most pieceSize bytes per read, like a body arriving over the network
+  private static final class PieceInputStream extends InputStream {
+
+    private final byte[] data;
+    private final int pieceSize;
+    private int position;
+
+    private PieceInputStream(byte[] data, int pieceSize) {
+      this.data = data;
+      this.pieceSize = pieceSize;
+    }
+
+    @Override
+    public int read() {
+      return position < data.length ? data[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+      if (position == data.length) {
+        return -1;
+      }
+      int count = Math.min(Math.min(length, pieceSize), data.length - position);
+      System.arraycopy(data, position, buffer, offset, count);
+      position += count;
+      return count;
+    }
+  }
+}
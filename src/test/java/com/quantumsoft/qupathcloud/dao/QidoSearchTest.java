@@ -0,0 +1,65 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.Test;
+
+public class QidoSearchTest {
+
+  @Test
+  public void readsAllResults() throws Exception {
+    assertReadsAllResults(2500, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void readsResultsEndingOnPageBoundary() throws Exception {
+    assertReadsAllResults(2000, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void readsNoResults() throws Exception {
+    assertReadsAllResults(0, Integer.MAX_VALUE);
+  }
+
+  @Test
+  public void readsAllResultsWhenServerCapsLimit() throws Exception {
+    assertReadsAllResults(2500, 300);
+    assertReadsAllResults(2500, 1);
+  }
+
+  private static void assertReadsAllResults(int resultCount, int maxLimit) throws Exception {
+    List<Integer> expected = IntStream.range(0, resultCount).boxed().collect(Collectors.toList());
+
+    assertEquals(expected, new QidoSearch<Integer>(
+        (offset, limit) -> loadPage(resultCount, maxLimit, offset, limit)).toList());
+    assertEquals(expected, QidoSearch.<Integer>toListAsync((offset, limit) ->
+        CompletableFuture.supplyAsync(() -> loadPage(resultCount, maxLimit, offset, limit)))
+        .get());
+  }
+
+  // a server with results 0 to resultCount - 1 that returns at most maxLimit of them per page
+  private static List<Integer> loadPage(int resultCount, int maxLimit, int offset, int limit) {
+    int end = (int) Math.min(resultCount, (long) offset + Math.min(limit, maxLimit));
+    return IntStream.range(Math.min(offset, resultCount), end).boxed()
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,161 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.quantumsoft.qupathcloud.exception.HttpStatusException;
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.utils.DateUtils;
+import org.junit.Test;
+
+public class RetriesTest {
+
+  private static final long BASE_DELAY_MILLIS =
+      Math.max(1, Long.getLong("quPathCloud.retryBaseDelayMillis", 500));
+  private static final long MAX_DELAY_MILLIS =
+      Math.max(BASE_DELAY_MILLIS, Long.getLong("quPathCloud.retryMaxDelayMillis", 30_000));
+
+  @Test
+  public void parsesRetryAfterSeconds() {
+    assertEquals(120_000, Retries.parseRetryAfterMillis("120"));
+    assertEquals(0, Retries.parseRetryAfterMillis(" 0 "));
+    assertEquals(0, Retries.parseRetryAfterMillis("-5"));
+  }
+
+  @Test
+  public void parsesRetryAfterDate() {
+    String date = DateUtils.formatDate(new Date(System.currentTimeMillis() + 60_000));
+
+    long delayMillis = Retries.parseRetryAfterMillis(date);
+
+    // the date has a resolution of seconds
+    assertTrue(String.valueOf(delayMillis), delayMillis > 58_000 && delayMillis <= 60_000);
+  }
+
+  @Test
+  public void parsesPastRetryAfterDateAsNoDelay() {
+    assertEquals(0, Retries.parseRetryAfterMillis("Wed, 21 Oct 2015 07:28:00 GMT"));
+  }
+
+  @Test
+  public void ignoresInvalidRetryAfter() {
+    assertEquals(-1, Retries.parseRetryAfterMillis(null));
+    assertEquals(-1, Retries.parseRetryAfterMillis(""));
+    assertEquals(-1, Retries.parseRetryAfterMillis("soon"));
+  }
+
+  @Test
+  public void backoffGrowsWithinEqualJitterBounds() {
+    IOException failure = new IOException("reset");
+    for (int attempt = 0; attempt < 40; attempt++) {
+      long backoff = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt, 30));
+      for (int i = 0; i < 100; i++) {
+        long delayMillis = Retries.getDelayMillis(attempt, failure);
+        assertTrue(attempt + ": " + delayMillis,
+            delayMillis >= backoff / 2 && delayMillis <= backoff);
+      }
+    }
+  }
+
+  @Test
+  public void backoffWaitsAtLeastRetryAfter() {
+    HttpStatusException failure = new HttpStatusException(429, 45_000);
+
+    assertTrue(Retries.getDelayMillis(0, new QuPathCloudException(failure)) >= 45_000);
+  }
+
+  @Test
+  public void doesNotRetryClientErrors() {
+    AtomicInteger attempts = new AtomicInteger();
+    HttpStatusException notFound = new HttpStatusException(404, -1);
+
+    try {
+      Retries.call(() -> {
+        attempts.incrementAndGet();
+        throw notFound;
+      });
+      fail("Client error retried into success");
+    } catch (QuPathCloudException e) {
+      assertSame(notFound, e);
+    }
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  public void doesNotRetryMissingFiles() {
+    AtomicInteger attempts = new AtomicInteger();
+
+    try {
+      Retries.call(() -> {
+        attempts.incrementAndGet();
+        throw new FileNotFoundException("instance.dcm");
+      });
+      fail("Missing file retried into success");
+    } catch (QuPathCloudException e) {
+      assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+    assertEquals(1, attempts.get());
+  }
+
+  @Test
+  public void retriesServerErrors() throws QuPathCloudException {
+    AtomicInteger attempts = new AtomicInteger();
+
+    String result = Retries.call(() -> {
+      if (attempts.incrementAndGet() == 1) {
+        throw new HttpStatusException(503, 0);
+      }
+      return "stored";
+    });
+
+    assertEquals("stored", result);
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  public void retriesAsyncIoFailures() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+
+    CompletableFuture<String> result = Retries.callAsync(() -> attempts.incrementAndGet() == 1
+        ? CompletableFuture.failedFuture(new IOException("reset"))
+        : CompletableFuture.completedFuture("frames"));
+
+    assertEquals("frames", result.get());
+    assertEquals(2, attempts.get());
+  }
+
+  @Test
+  public void failsAsyncOnClientErrors() throws InterruptedException {
+    HttpStatusException forbidden = new HttpStatusException(403, -1);
+
+    try {
+      Retries.callAsync(() -> CompletableFuture.failedFuture(forbidden)).get();
+      fail("Client error retried into success");
+    } catch (ExecutionException e) {
+      assertSame(forbidden, e.getCause());
+    }
+  }
+}
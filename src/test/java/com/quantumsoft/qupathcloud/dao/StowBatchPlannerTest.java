@@ -0,0 +1,99 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.dao;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class StowBatchPlannerTest {
+
+  private final Map<Path, Long> sizes = new HashMap<>();
+
+  @Test
+  public void plansNothingForNoFiles() {
+    assertEquals(Collections.emptyList(),
+        StowBatchPlanner.plan(Collections.emptyList(), sizes::get, 100, 10));
+  }
+
+  @Test
+  public void packsSmallFilesUpToInstanceBudget() {
+    List<Path> files = createFiles(10, 10, 10, 10, 10, 10, 10);
+
+    List<List<Path>> batches = StowBatchPlanner.plan(files, sizes::get, 1000, 3);
+
+    assertEquals(List.of(files.subList(0, 3), files.subList(3, 6), files.subList(6, 7)),
+        batches);
+  }
+
+  @Test
+  public void packsFilesUpToByteBudget() {
+    List<Path> files = createFiles(40, 40, 20, 30, 50, 50);
+
+    List<List<Path>> batches = StowBatchPlanner.plan(files, sizes::get, 100, 10);
+
+    assertEquals(List.of(files.subList(0, 3), files.subList(3, 5), files.subList(5, 6)),
+        batches);
+  }
+
+  @Test
+  public void sendsLargeFileAlone() {
+    List<Path> files = createFiles(10, 500, 10, 10);
+
+    List<List<Path>> batches = StowBatchPlanner.plan(files, sizes::get, 100, 10);
+
+    assertEquals(List.of(files.subList(0, 1), files.subList(1, 2), files.subList(2, 4)),
+        batches);
+  }
+
+  @Test
+  public void keepsEveryFileOnceInOrder() {
+    long[] fileSizes = new long[1000];
+    for (int i = 0; i < fileSizes.length; i++) {
+      fileSizes[i] = (i * 7919L) % 300;
+    }
+    List<Path> files = createFiles(fileSizes);
+
+    List<List<Path>> batches = StowBatchPlanner.plan(files, sizes::get, 1000, 16);
+
+    List<Path> planned = new ArrayList<>();
+    for (List<Path> batch : batches) {
+      long batchBytes = batch.stream().mapToLong(sizes::get).sum();
+      assertTrue(batch.size() <= 16);
+      assertTrue(batch.size() == 1 || batchBytes <= 1000);
+      planned.addAll(batch);
+    }
+    assertEquals(files, planned);
+  }
+
+  private List<Path> createFiles(long... fileSizes) {
+    List<Path> files = new ArrayList<>();
+    for (int i = 0; i < fileSizes.length; i++) {
+      Path file = Paths.get("instance-" + i + ".dcm");
+      sizes.put(file, fileSizes[i]);
+      files.add(file);
+    }
+    return files;
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.imageserver;
+
+import com.quantumsoft.qupathcloud.Timing;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Compares TileCompositor with Graphics2D.drawImage when a region is assembled from tiles. Not
+ * run by the build. The region is offset against the tile grid, so the edge tiles are clipped
+ * like in a real viewer request.
+ */
+public class TileCompositorBenchmark {
+
+  private static final int TILE_SIZE = 512;
+  private static final int TILES_PER_SIDE = 4;
+  private static final int REGION_SIZE = TILE_SIZE * (TILES_PER_SIDE - 1);
+  private static final int OFFSET = TILE_SIZE / 3;
+  private static final int OPERATIONS = 100;
+
+  public static void main(String[] args) throws Exception {
+    BufferedImage tile = createTile();
+
+    Timing.measure("drawImage " + TILES_PER_SIDE * TILES_PER_SIDE + " tiles", OPERATIONS, () -> {
+      BufferedImage region = createRegion();
+      Graphics2D graphics = region.createGraphics();
+      for (int row = 0; row < TILES_PER_SIDE; row++) {
+        for (int column = 0; column < TILES_PER_SIDE; column++) {
+          graphics.drawImage(tile, column * TILE_SIZE - OFFSET, row * TILE_SIZE - OFFSET, null);
+        }
+      }
+      graphics.dispose();
+      return region;
+    });
+    Timing.measure("TileCompositor " + TILES_PER_SIDE * TILES_PER_SIDE + " tiles", OPERATIONS,
+        () -> {
+          BufferedImage region = createRegion();
+          for (int row = 0; row < TILES_PER_SIDE; row++) {
+            for (int column = 0; column < TILES_PER_SIDE; column++) {
+              TileCompositor.drawTile(tile, region, column * TILE_SIZE - OFFSET,
+                  row * TILE_SIZE - OFFSET);
+            }
+          }
+          return region;
+        });
+  }
+
+  private static BufferedImage createRegion() {
+    return new BufferedImage(REGION_SIZE, REGION_SIZE, BufferedImage.TYPE_INT_RGB);
+  }
+
+  private static BufferedImage createTile() {
+    BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(TILE_SIZE);
+    for (int y = 0; y < TILE_SIZE; y++) {
+      for (int x = 0; x < TILE_SIZE; x++) {
+        tile.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    return tile;
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.imageserver;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.Test;
+
+public class TileCompositorTest {
+
+  private static final int REGION_WIDTH = 50;
+  private static final int REGION_HEIGHT = 40;
+
+  @Test
+  public void copiesTileInside() {
+    assertSameAsDrawImage(createTile(16, 16, BufferedImage.TYPE_INT_RGB), 10, 5);
+  }
+
+  @Test
+  public void clipsTileAtNegativeOrigin() {
+    assertSameAsDrawImage(createTile(16, 16, BufferedImage.TYPE_INT_RGB), -7, -3);
+  }
+
+  @Test
+  public void clipsTileAtFarEdges() {
+    assertSameAsDrawImage(createTile(16, 16, BufferedImage.TYPE_INT_RGB),
+        REGION_WIDTH - 5, REGION_HEIGHT - 9);
+  }
+
+  @Test
+  public void ignoresTileOutside() {
+    assertSameAsDrawImage(createTile(16, 16, BufferedImage.TYPE_INT_RGB), REGION_WIDTH, 0);
+    assertSameAsDrawImage(createTile(16, 16, BufferedImage.TYPE_INT_RGB), 0, -16);
+  }
+
+  @Test
+  public void copiesSubimageTile() {
+    BufferedImage parent = createTile(32, 32, BufferedImage.TYPE_INT_RGB);
+    assertSameAsDrawImage(parent.getSubimage(5, 7, 20, 12), 3, -2);
+  }
+
+  @Test
+  public void drawsTileOfOtherType() {
+    assertSameAsDrawImage(createTile(16, 16, BufferedImage.TYPE_3BYTE_BGR), 20, 30);
+  }
+
+  private static void assertSameAsDrawImage(BufferedImage tile, int x, int y) {
+    BufferedImage expected =
+        new BufferedImage(REGION_WIDTH, REGION_HEIGHT, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = expected.createGraphics();
+    graphics.drawImage(tile, x, y, null);
+    graphics.dispose();
+    BufferedImage actual =
+        new BufferedImage(REGION_WIDTH, REGION_HEIGHT, BufferedImage.TYPE_INT_RGB);
+
+    TileCompositor.drawTile(tile, actual, x, y);
+
+    assertArrayEquals(getPixels(expected), getPixels(actual));
+  }
+
+  private static BufferedImage createTile(int width, int height, int type) {
+    BufferedImage tile = new BufferedImage(width, height, type);
+    Random random = new Random(width * 31L + height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        tile.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    return tile;
+  }
+
+  private static int[] getPixels(BufferedImage image) {
+    return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.pyramid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PyramidIndexFileTest {
+
+  private static final String STUDY_UID = "1.2.840.1";
+  private static final String SERIES_UID = "1.2.840.1.2";
+  private static final int TILE_SIZE = 256;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void readsWhatWasWritten() throws Exception {
+    Pyramid written = createPyramid();
+    Path indexFile = temporaryFolder.getRoot().toPath().resolve("series.pyr");
+
+    PyramidIndexFile.write(written, indexFile);
+    Pyramid read = PyramidIndexFile.read(indexFile);
+
+    assertEquals(STUDY_UID, read.getStudyUID());
+    assertEquals(SERIES_UID, read.getSeriesUID());
+    assertArrayEquals(written.getDownsamples(), read.getDownsamples(), 0);
+    assertEquals(written.getTileWidth(), read.getTileWidth());
+    assertEquals(written.getTileHeight(), read.getTileHeight());
+    for (int level = 0; level < written.getDownsamples().length; level++) {
+      assertEquals(written.getLevelWidth(level), read.getLevelWidth(level));
+      assertEquals(written.getLevelHeight(level), read.getLevelHeight(level));
+      int widthInTiles = written.getLevelWidth(level) / TILE_SIZE;
+      int heightInTiles = written.getLevelHeight(level) / TILE_SIZE;
+      for (int y = 0; y <= heightInTiles + 1; y++) {
+        for (int x = 0; x <= widthInTiles + 1; x++) {
+          assertEquals(written.getFrameNumber(x, y, level), read.getFrameNumber(x, y, level));
+          assertEquals(written.getFrameInstanceUID(x, y, level),
+              read.getFrameInstanceUID(x, y, level));
+        }
+      }
+    }
+    try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+      assertEquals(List.of(indexFile), files.collect(Collectors.toList()));
+    }
+  }
+
+  @Test
+  public void fileCanBeReplacedWhileReadPyramidIsInUse() throws Exception {
+    Pyramid written = createPyramid();
+    Path indexFile = temporaryFolder.getRoot().toPath().resolve("series.pyr");
+    PyramidIndexFile.write(written, indexFile);
+    Pyramid read = PyramidIndexFile.read(indexFile);
+
+    // levels of the read pyramid aren't built yet, so they still hold the frame tables
+    PyramidIndexFile.write(createPyramid(), indexFile);
+    Files.delete(indexFile);
+
+    assertEquals(written.getFrameNumber(3, 2, 0), read.getFrameNumber(3, 2, 0));
+    assertEquals(written.getFrameInstanceUID(3, 2, 1), read.getFrameInstanceUID(3, 2, 1));
+  }
+
+  @Test(expected = QuPathCloudException.class)
+  public void rejectsTruncatedFile() throws Exception {
+    Path indexFile = temporaryFolder.getRoot().toPath().resolve("series.pyr");
+    PyramidIndexFile.write(createPyramid(), indexFile);
+    byte[] bytes = Files.readAllBytes(indexFile);
+    Files.write(indexFile, Arrays.copyOf(bytes, 40));
+
+    PyramidIndexFile.read(indexFile).buildLevel(0);
+  }
+
+  @Test(expected = QuPathCloudException.class)
+  public void rejectsOtherFile() throws IOException, QuPathCloudException {
+    Path indexFile = temporaryFolder.newFile("series.mtd").toPath();
+    Files.write(indexFile, "{\"levels\": []}".getBytes());
+
+    PyramidIndexFile.read(indexFile);
+  }
+
+  // a TILED_FULL level concatenated from two Instances and a TILED_SPARSE level with gaps
+  private static Pyramid createPyramid() throws QuPathCloudException {
+    PyramidInstance full1 = new PyramidInstance(STUDY_UID, SERIES_UID, "1.2.840.1.2.1",
+        8 * TILE_SIZE, 6 * TILE_SIZE, TILE_SIZE, TILE_SIZE, 20, true, 0, new int[0], new int[0]);
+    PyramidInstance full2 = new PyramidInstance(STUDY_UID, SERIES_UID, "1.2.840.1.2.2",
+        8 * TILE_SIZE, 6 * TILE_SIZE, TILE_SIZE, TILE_SIZE, 28, true, 20, new int[0], new int[0]);
+    PyramidInstance sparse = new PyramidInstance(STUDY_UID, SERIES_UID, "1.2.840.1.2.3",
+        4 * TILE_SIZE, 3 * TILE_SIZE, TILE_SIZE, TILE_SIZE, 5, false, 0,
+        new int[] {1, 4, 2, 3, 1}, new int[] {1, 1, 2, 3, 3});
+    return Pyramid.create(List.of(full1, full2, sparse), false);
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright (C) 2019 Google LLC
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.quantumsoft.qupathcloud.pyramid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.quantumsoft.qupathcloud.exception.QuPathCloudException;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class PyramidLevelTest {
+
+  private static final int TILE_SIZE = 256;
+
+  @Test
+  public void findsEverySparseFrameAfterResizes() throws QuPathCloudException {
+    int widthInTiles = 120;
+    int heightInTiles = 90;
+    // a random half of the tiles in random order, spread over three Instances
+    List<Point> tiles = new ArrayList<>();
+    for (int y = 1; y <= heightInTiles; y++) {
+      for (int x = 1; x <= widthInTiles; x++) {
+        tiles.add(new Point(x, y));
+      }
+    }
+    Collections.shuffle(tiles, new Random(42));
+    tiles = tiles.subList(0, tiles.size() / 2);
+    PyramidLevel level = null;
+    Map<Point, PyramidFrame> expected = new HashMap<>();
+    int instanceCount = 3;
+    for (int i = 0; i < instanceCount; i++) {
+      List<Point> instanceTiles =
+          tiles.subList(i * tiles.size() / instanceCount, (i + 1) * tiles.size() / instanceCount);
+      PyramidInstance instance = createSparseInstance("1.2.3." + i, widthInTiles, heightInTiles,
+          instanceTiles);
+      if (level == null) {
+        level = new PyramidLevel(instance);
+      }
+      level.addInstance(instance);
+      for (int frame = 0; frame < instanceTiles.size(); frame++) {
+        expected.put(instanceTiles.get(frame), new PyramidFrame("1.2.3." + i, frame + 1));
+      }
+    }
+
+    for (int y = 1; y <= heightInTiles; y++) {
+      for (int x = 1; x <= widthInTiles; x++) {
+        PyramidFrame frame = expected.get(new Point(x, y));
+        if (frame == null) {
+          assertEquals(0, level.getFrameNumber(x, y));
+          assertNull(level.getFrameInstanceUID(x, y));
+          assertNull(level.getFrame(x, y));
+        } else {
+          assertEquals(frame.getIndex(), level.getFrameNumber(x, y));
+          assertEquals(frame.getInstanceUID(), level.getFrameInstanceUID(x, y));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void sparseLookupOutsideLevelFindsNothing() throws QuPathCloudException {
+    PyramidInstance instance = createSparseInstance("1.2.3", 4, 4,
+        Collections.singletonList(new Point(2, 3)));
+    PyramidLevel level = new PyramidLevel(instance);
+    level.addInstance(instance);
+
+    assertEquals(1, level.getFrameNumber(2, 3));
+    assertEquals(0, level.getFrameNumber(0, 0));
+    assertEquals(0, level.getFrameNumber(-1, 3));
+    assertEquals(0, level.getFrameNumber(1000, 1000));
+  }
+
+  @Test(expected = QuPathCloudException.class)
+  public void rejectsSparseTilesWithSameCoordinates() throws QuPathCloudException {
+    PyramidInstance instance = createSparseInstance("1.2.3", 4, 4,
+        List.of(new Point(1, 1), new Point(2, 2), new Point(1, 1)));
+    PyramidLevel level = new PyramidLevel(instance);
+    level.addInstance(instance);
+
+    level.build();
+  }
+
+  @Test(expected = QuPathCloudException.class)
+  public void rejectsSparseTilesOutsideCoordinateRange() throws QuPathCloudException {
+    PyramidInstance instance = createSparseInstance("1.2.3", 4, 4,
+        Collections.singletonList(new Point(0, 1)));
+    PyramidLevel level = new PyramidLevel(instance);
+    level.addInstance(instance);
+
+    level.build();
+  }
+
+  @Test
+  public void indexesConcatenatedFullTiledInstances() throws QuPathCloudException {
+    int widthInTiles = 5;
+    int heightInTiles = 3;
+    // the second Instance continues in the middle of the second row
+    PyramidInstance first = createFullInstance("1.2.3.1", widthInTiles, heightInTiles, 7, 0);
+    PyramidInstance second = createFullInstance("1.2.3.2", widthInTiles, heightInTiles, 8, 7);
+    PyramidLevel level = new PyramidLevel(first);
+    level.addInstance(first);
+    level.addInstance(second);
+
+    for (int index = 0; index < widthInTiles * heightInTiles; index++) {
+      int x = index % widthInTiles + 1;
+      int y = index / widthInTiles + 1;
+      boolean inFirst = index < 7;
+      assertEquals(inFirst ? "1.2.3.1" : "1.2.3.2", level.getFrameInstanceUID(x, y));
+      assertEquals(inFirst ? index + 1 : index - 6, level.getFrameNumber(x, y));
+    }
+    assertEquals(0, level.getFrameNumber(widthInTiles + 1, 1));
+  }
+
+  private static PyramidInstance createSparseInstance(String uid, int widthInTiles,
+      int heightInTiles, List<Point> tiles) {
+    int[] tileXs = new int[tiles.size()];
+    int[] tileYs = new int[tiles.size()];
+    for (int i = 0; i < tiles.size(); i++) {
+      tileXs[i] = tiles.get(i).x;
+      tileYs[i] = tiles.get(i).y;
+    }
+    return new PyramidInstance("1.2", "1.2.1", uid, widthInTiles * TILE_SIZE,
+        heightInTiles * TILE_SIZE, TILE_SIZE, TILE_SIZE, tiles.size(), false, 0, tileXs, tileYs);
+  }
+
+  private static PyramidInstance createFullInstance(String uid, int widthInTiles,
+      int heightInTiles, int numberOfFrames, int frameOffset) {
+    return new PyramidInstance("1.2", "1.2.1", uid, widthInTiles * TILE_SIZE,
+        heightInTiles * TILE_SIZE, TILE_SIZE, TILE_SIZE, numberOfFrames, true, frameOffset,
+        new int[0], new int[0]);
+  }
+}